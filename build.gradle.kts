@@ -1,6 +1,9 @@
+import groovy.json.JsonSlurper
+
 plugins {
     id("java")
     id("com.diffplug.spotless") version "6.21.0"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "io.github.pltb"
@@ -25,3 +28,89 @@ spotless {
         formatAnnotations()
     }
 }
+
+// ./gradlew jmh runs the benchmarks in src/jmh, -PjmhIncludes=<regex> narrows them down, e.g. to "readFile"
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes.set(listOf(it)) }
+}
+
+// a benchmark's score in a JMH JSON result file, by benchmark and parameters
+data class JmhScore(val score: Double, val error: Double, val unit: String)
+
+fun readJmhScores(file: File): Map<String, JmhScore> =
+    (JsonSlurper().parse(file) as List<*>).associate { entry ->
+        val result = entry as Map<*, *>
+        val params = (result["params"] as Map<*, *>? ?: emptyMap<Any, Any>()).entries
+            .sortedBy { it.key.toString() }
+            .joinToString(", ") { "${it.key}=${it.value}" }
+        val metric = result["primaryMetric"] as Map<*, *>
+        val error = (metric["scoreError"] as? Number)?.toDouble()?.takeUnless { it.isNaN() } ?: 0.0
+        "${result["benchmark"]} ($params)" to
+            JmhScore((metric["score"] as Number).toDouble(), error, metric["scoreUnit"].toString())
+    }
+
+// Compares the results of the last jmh run with the checked-in baseline. Benchmarks that got slower by more than 1.25x
+// with confidence intervals that do not overlap are marked, as single runs on a busy machine vary a lot. Only a
+// baseline recorded on the same machine says anything, so the task reports and only fails the build when asked to,
+// with -PjmhRegressionThreshold=<ratio>. All benchmarks measure time, so lower is better.
+tasks.register("jmhCompare") {
+    group = "benchmark"
+    description = "Compares the last JMH results with docs/benchmarks/baseline.json"
+    val baselineFile = file("docs/benchmarks/baseline.json")
+    val resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    val failThreshold = providers.gradleProperty("jmhRegressionThreshold").map { it.toDouble() }
+    doLast {
+        val threshold = failThreshold.getOrElse(1.25)
+        val baseline = readJmhScores(baselineFile)
+        val regressions = mutableListOf<String>()
+        readJmhScores(resultsFile.get().asFile).forEach { (name, result) ->
+            val base = baseline[name]
+            if (base == null || base.unit != result.unit) {
+                println("%-140s %12s %12.3f %-6s (no baseline)".format(name, "-", result.score, result.unit))
+                return@forEach
+            }
+            val ratio = result.score / base.score
+            val slower = ratio > threshold && result.score - result.error > base.score + base.error
+            println("%-140s %12.3f %12.3f %-6s %6.2fx%s".format(name, base.score, result.score, result.unit, ratio,
+                if (slower) "  <- slower" else ""))
+            if (slower) {
+                regressions.add(name)
+            }
+        }
+        if (regressions.isNotEmpty()) {
+            val message = "${regressions.size} benchmark(s) slower than the baseline by more than ${threshold}x"
+            if (failThreshold.isPresent) {
+                throw GradleException(message)
+            }
+            println(message)
+        }
+    }
+}
+
+// fails when a benchmark in src/jmh has no score in the baseline, which jmhCompare would compare with nothing
+val jmhBaselineCheck = tasks.register("jmhBaselineCheck") {
+    group = "verification"
+    description = "Checks that docs/benchmarks/baseline.json has every benchmark of src/jmh"
+    val baselineFile = file("docs/benchmarks/baseline.json")
+    val benchmarkSources = fileTree("src/jmh/java") { include("**/*.java") }
+    inputs.file(baselineFile)
+    inputs.files(benchmarkSources)
+    doLast {
+        val inBaseline = readJmhScores(baselineFile).keys.map { it.substringBefore(" (") }.toSet()
+        val benchmarkMethod = Regex("""@Benchmark\s+public\s+\S+\s+(\w+)\s*\(""")
+        val missing = benchmarkSources.files.flatMap { source ->
+            val className = "io.github.pltb." + source.nameWithoutExtension
+            benchmarkMethod.findAll(source.readText()).map { "$className.${it.groupValues[1]}" }.toList()
+        }.filter { it !in inBaseline }
+        if (missing.isNotEmpty()) {
+            throw GradleException("no baseline for ${missing.joinToString()}, record one with ./gradlew jmh")
+        }
+    }
+}
+
+tasks.named("check") {
+    dependsOn(jmhBaselineCheck)
+}
@@ -0,0 +1,106 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// A mounted container filled with fileCount files of fileSizeBytes each, spread over NUM_DIRS directories.
+// The files are written a block at a time; after each block the writer moves on to the next file with a chance of
+// fragmentationPercent, so that 0 leaves every file in one run of blocks and 100 interleaves all of them block by block.
+@State(Scope.Benchmark)
+public class BenchmarkContainer {
+
+    final static int NUM_DIRS = 16;
+    final private static long SEED = 42;
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    @Param({"4096", "65536"})
+    public int fileSizeBytes;
+
+    @Param({"0", "100"})
+    public int fragmentationPercent;
+
+    @Param({"256", "2048"})
+    public int containerSizeMb;
+
+    File tempDir;
+    File containerFile;
+    FileSystemImpl fs;
+    String[] paths;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("fs-benchmark").toFile();
+        containerFile = new File(tempDir, "container.fs");
+        fs = FileSystemImpl.createNew(containerFile, containerSizeMb * 1024L * 1024);
+        paths = fill(fs, fileCount, fileSizeBytes, fragmentationPercent);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (fs != null) {
+            fs.close();
+        }
+        deleteRecursively(tempDir);
+    }
+
+    static String getPath(int fileNum) {
+        return "dir" + (fileNum % NUM_DIRS) + "/file" + fileNum;
+    }
+
+    static String[] fill(FileSystem fs, int fileCount, int fileSizeBytes, int fragmentationPercent) throws IOException {
+        var random = new Random(SEED);
+        var blockSize = ((FileSystemImpl) fs).getBlockSizeBytes();
+        var paths = new String[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            paths[i] = getPath(i);
+            fs.createFile(paths[i]);
+        }
+
+        var written = new int[fileCount];
+        var numFilesLeft = fileCount;
+        var current = 0;
+        while (numFilesLeft > 0) {
+            if (written[current] == fileSizeBytes) {
+                current = (current + 1) % fileCount;
+                continue;
+            }
+            // the blocks up to the next switch go out in a single append
+            var runBytes = 0;
+            do {
+                runBytes += Math.min(blockSize, fileSizeBytes - written[current] - runBytes);
+            } while (written[current] + runBytes < fileSizeBytes && random.nextInt(100) >= fragmentationPercent);
+
+            var bytes = new byte[runBytes];
+            random.nextBytes(bytes);
+            fs.appendToFile(paths[current], bytes);
+            written[current] += runBytes;
+            if (written[current] == fileSizeBytes) {
+                numFilesLeft--;
+            }
+            current = (current + 1) % fileCount;
+        }
+        return paths;
+    }
+
+    static void deleteRecursively(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        try (var walk = Files.walk(file.toPath())) {
+            for (var path : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A full compaction of a container with every other file deleted. Compaction changes the container for good,
+// so every iteration gets a container of its own and runs it once.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactionBenchmark {
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    @Param({"4096", "65536"})
+    public int fileSizeBytes;
+
+    @Param({"0", "100"})
+    public int fragmentationPercent;
+
+    @Param({"256", "2048"})
+    public int containerSizeMb;
+
+    File tempDir;
+    FileSystemImpl fs;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("fs-benchmark").toFile();
+        fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), containerSizeMb * 1024L * 1024);
+        var paths = BenchmarkContainer.fill(fs, fileCount, fileSizeBytes, fragmentationPercent);
+        for (int i = 0; i < paths.length; i += 2) {
+            fs.deleteFile(paths[i]);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        fs.close();
+        BenchmarkContainer.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public long compact() throws IOException {
+        fs.compact();
+        return fs.getFreeSpaceBytes();
+    }
+}
@@ -0,0 +1,145 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Single operations against a filled container. The operations that add data work on files of their own,
+// which are reset before they grow large enough to change the container noticeably.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileOperationsBenchmark {
+
+    final private static int SMALL_APPEND_BYTES = 100;
+    final private static int LARGE_APPEND_BYTES = 1024 * 1024;
+    final private static int MAX_APPENDED_BYTES = 16 * 1024 * 1024;
+
+    @State(Scope.Thread)
+    public static class CreatedFiles {
+        int numCreated;
+
+        @TearDown(Level.Iteration)
+        public void deleteCreated(BenchmarkContainer container) throws IOException {
+            for (int i = 0; i < numCreated; i++) {
+                container.fs.deleteFile("created/file" + i);
+            }
+            numCreated = 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AppendTarget {
+        final static String PATH = "appended.bin";
+        final byte[] bytes = new byte[SMALL_APPEND_BYTES];
+
+        @Setup(Level.Iteration)
+        public void recreate(BenchmarkContainer container) throws IOException {
+            container.fs.deleteFile(PATH);
+            container.fs.createFile(PATH);
+        }
+    }
+
+    // large appends reach the cap within a few invocations, so the check runs before each of them
+    @State(Scope.Thread)
+    public static class LargeAppendTarget {
+        final static String PATH = "appended-large.bin";
+        final byte[] bytes = new byte[LARGE_APPEND_BYTES];
+        int numAppends = Integer.MAX_VALUE;
+
+        @Setup(Level.Invocation)
+        public void recreateIfFull(BenchmarkContainer container) throws IOException {
+            if (numAppends * (long) LARGE_APPEND_BYTES >= MAX_APPENDED_BYTES) {
+                container.fs.deleteFile(PATH);
+                container.fs.createFile(PATH);
+                numAppends = 0;
+            }
+        }
+    }
+
+    // a file of the container's file size, created again before each delete
+    @State(Scope.Thread)
+    public static class FileToDelete {
+        final static String PATH = "deleted.bin";
+        byte[] content;
+
+        @Setup(Level.Invocation)
+        public void create(BenchmarkContainer container) throws IOException {
+            if (content == null) {
+                content = new byte[container.fileSizeBytes];
+            }
+            container.fs.createFile(PATH);
+            container.fs.appendToFile(PATH, content);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OffsetWrite {
+        byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkContainer container) {
+            bytes = new byte[container.fs.getBlockSizeBytes()];
+        }
+    }
+
+    @Benchmark
+    public int createFile(BenchmarkContainer container, CreatedFiles created) throws IOException {
+        return container.fs.createFile("created/file" + created.numCreated++);
+    }
+
+    @Benchmark
+    public int appendSmall(BenchmarkContainer container, AppendTarget target) throws IOException {
+        return container.fs.appendToFile(AppendTarget.PATH, target.bytes);
+    }
+
+    @Benchmark
+    public int appendLarge(BenchmarkContainer container, LargeAppendTarget target) throws IOException {
+        target.numAppends++;
+        return container.fs.appendToFile(LargeAppendTarget.PATH, target.bytes);
+    }
+
+    @Benchmark
+    public byte[] readFile(BenchmarkContainer container) throws IOException {
+        return container.fs.readFile(randomPath(container)).get();
+    }
+
+    // a block at a random block-aligned offset
+    @Benchmark
+    public int writeToFileFromOffset(BenchmarkContainer container, OffsetWrite write) throws IOException {
+        var random = ThreadLocalRandom.current();
+        var offset = random.nextInt(container.fileSizeBytes / write.bytes.length) * write.bytes.length;
+        return container.fs.writeToFileFromOffset(randomPath(container), write.bytes, offset);
+    }
+
+    @Benchmark
+    public int deleteFile(BenchmarkContainer container, FileToDelete file) throws IOException {
+        return container.fs.deleteFile(FileToDelete.PATH);
+    }
+
+    // one of the directories, with fileCount / NUM_DIRS files in it
+    @Benchmark
+    public List<String> listFilesUnderPrefix(BenchmarkContainer container) throws IOException {
+        var dirNum = ThreadLocalRandom.current().nextInt(BenchmarkContainer.NUM_DIRS);
+        return container.fs.listFilesUnderPrefix("dir" + dirNum + "/");
+    }
+
+    private static String randomPath(BenchmarkContainer container) {
+        return container.paths[ThreadLocalRandom.current().nextInt(container.paths.length)];
+    }
+}
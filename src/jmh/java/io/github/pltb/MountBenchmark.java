@@ -0,0 +1,66 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Mounting a filled container and unmounting it again: the superblock, the journal, the FAT and the root directory
+// are read on every mount, so the time grows with the container size and the number of files.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MountBenchmark {
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    @Param({"4096", "65536"})
+    public int fileSizeBytes;
+
+    @Param({"0", "100"})
+    public int fragmentationPercent;
+
+    @Param({"256", "2048"})
+    public int containerSizeMb;
+
+    File tempDir;
+    File containerFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("fs-benchmark").toFile();
+        containerFile = new File(tempDir, "container.fs");
+        try (var fs = FileSystemImpl.createNew(containerFile, containerSizeMb * 1024L * 1024)) {
+            BenchmarkContainer.fill(fs, fileCount, fileSizeBytes, fragmentationPercent);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkContainer.deleteRecursively(tempDir);
+    }
+
+    @Benchmark
+    public long loadFromContainer() throws IOException {
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            return fs.getFreeSpaceBytes();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.github.pltb;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+// Asynchronous facade over a FileSystemImpl: every operation runs on an executor and completes a CompletableFuture,
+// with the IOException of the operation as the failure. The file system runs operations of several threads
+// in parallel, so the executor decides how many of them run at once.
+//
+// By default, the executor starts a virtual thread per operation where the runtime has them (Java 21+),
+// and grows a pool of daemon threads as needed otherwise. readFile reads the pieces of a file at the same time
+// on the same executor.
+public class AsyncFileSystem implements Closeable {
+
+    private final FileSystemImpl fileSystem;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+
+    public AsyncFileSystem(FileSystemImpl fileSystem) {
+        this(fileSystem, newDefaultExecutor(), true);
+    }
+
+    // the executor is not shut down on close()
+    public AsyncFileSystem(FileSystemImpl fileSystem, ExecutorService executor) {
+        this(fileSystem, executor, false);
+    }
+
+    private AsyncFileSystem(FileSystemImpl fileSystem, ExecutorService executor, boolean ownsExecutor) {
+        this.fileSystem = fileSystem;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public CompletableFuture<Integer> createFile(String filePath) {
+        return submit(() -> fileSystem.createFile(filePath));
+    }
+
+    public CompletableFuture<Integer> createCompressedFile(String filePath) {
+        return submit(() -> fileSystem.createCompressedFile(filePath));
+    }
+
+    public CompletableFuture<Integer> appendToFile(String fileName, byte[] bytes) {
+        return submit(() -> fileSystem.appendToFile(fileName, bytes));
+    }
+
+    public CompletableFuture<Integer> writeToFileFromOffset(String filePath, byte[] bytes, int offset) {
+        return submit(() -> fileSystem.writeToFileFromOffset(filePath, bytes, offset));
+    }
+
+    public CompletableFuture<Optional<byte[]>> readFile(String fileName) {
+        return submit(() -> fileSystem.readFileConcurrently(fileName, executor));
+    }
+
+    public CompletableFuture<Optional<byte[]>> readFileRange(String fileName, long offset, int length) {
+        return submit(() -> fileSystem.readFileRange(fileName, offset, length));
+    }
+
+    public CompletableFuture<Integer> deleteFile(String fileName) {
+        return submit(() -> fileSystem.deleteFile(fileName));
+    }
+
+    public CompletableFuture<Integer> moveFile(String oldFilePath, String newFilePath) {
+        return submit(() -> fileSystem.moveFile(oldFilePath, newFilePath));
+    }
+
+    public CompletableFuture<Integer> cloneFile(String srcPath, String dstPath) {
+        return submit(() -> fileSystem.cloneFile(srcPath, dstPath));
+    }
+
+    public CompletableFuture<Integer> snapshot(String snapshotPath) {
+        return submit(() -> fileSystem.snapshot(snapshotPath));
+    }
+
+    public CompletableFuture<List<String>> listFiles() {
+        return submit(fileSystem::listFiles);
+    }
+
+    public CompletableFuture<List<String>> listFilesUnderPrefix(String prefix) {
+        return submit(() -> fileSystem.listFilesUnderPrefix(prefix));
+    }
+
+    public CompletableFuture<Long> getFreeSpaceBytes() {
+        return submit(fileSystem::getFreeSpaceBytes);
+    }
+
+    public CompletableFuture<Integer> compact() {
+        return submit(fileSystem::compact);
+    }
+
+    public FileSystemImpl getFileSystem() {
+        return fileSystem;
+    }
+
+    // operations submitted before are still run, the file system is left open
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(CallableIOOperation<T> operation) {
+        var future = new CompletableFuture<T>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(operation.run());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    static ExecutorService newDefaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "async-file-system");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -2,10 +2,53 @@ package io.github.pltb;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 public interface BlockDevice extends Closeable {
     void storeBlock(int blockOffset, byte[] block) throws IOException;
     byte[] readBlock(int blockOffset, int blockSize) throws IOException;
+
+    // positional variants over caller-supplied buffers: they transfer the buffer's remaining bytes,
+    // do not allocate and can be called from several threads at once
+    void storeBlock(long blockOffset, ByteBuffer src) throws IOException;
+
+    void readBlock(long blockOffset, ByteBuffer dst) throws IOException;
+
+    // Writes count bytes of the device from the offset to the channel. Devices over a file channel hand the copy
+    // to the kernel, the default goes through a buffer.
+    default void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        var buffer = ByteBuffer.allocateDirect((int) Math.min(count, 64 * 1024));
+        var position = offset;
+        while (position < offset + count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), offset + count - position));
+            readBlock(position, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer);
+            }
+        }
+    }
+
+    // Stores up to count bytes read from the channel at the offset, returns the number of bytes stored,
+    // fewer than count only if the channel has ended.
+    default long transferFrom(ReadableByteChannel src, long offset, long count) throws IOException {
+        var buffer = ByteBuffer.allocateDirect((int) Math.min(count, 64 * 1024));
+        var position = offset;
+        while (position < offset + count) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), offset + count - position));
+            if (src.read(buffer) < 0) {
+                break;
+            }
+            buffer.flip();
+            var length = buffer.remaining();
+            storeBlock(position, buffer);
+            position += length;
+        }
+        return position - offset;
+    }
+
     long getSizeInBytes() throws IOException;
 
     void truncate(long newLength) throws IOException;
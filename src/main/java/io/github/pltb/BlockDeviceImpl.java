@@ -5,11 +5,16 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockDeviceImpl implements BlockDevice {
 
     private final FileChannel fileChannel;
+    // a second fileChannel.lock() in this JVM throws OverlappingFileLockException instead of waiting
+    private final ReentrantLock processLock = new ReentrantLock();
 
     private long maxAddressableSpaceBytes;
 
@@ -35,18 +40,69 @@ public class BlockDeviceImpl implements BlockDevice {
 
     @Override
     public void storeBlock(int blockOffset, byte[] block) throws IOException {
-        fileChannel.position(blockOffset);
-        fileChannel.write(ByteBuffer.wrap(block));
+        storeBlock(blockOffset, ByteBuffer.wrap(block));
     }
 
     @Override
     public byte[] readBlock(int blockOffset, int blockSize) throws IOException {
-        fileChannel.position(blockOffset);
         ByteBuffer dest = ByteBuffer.allocate(blockSize);
-        fileChannel.read(dest);
+        readBlock(blockOffset, dest);
         return dest.array();
     }
 
+    @Override
+    public void storeBlock(long blockOffset, ByteBuffer src) throws IOException {
+        var position = blockOffset;
+        while (src.hasRemaining()) {
+            position += fileChannel.write(src, position);
+        }
+    }
+
+    @Override
+    public void readBlock(long blockOffset, ByteBuffer dst) throws IOException {
+        var position = blockOffset;
+        while (dst.hasRemaining()) {
+            var bytesRead = fileChannel.read(dst, position);
+            if (bytesRead < 0) {
+                // past the end of the container, same as reading a fresh buffer
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+                break;
+            }
+            position += bytesRead;
+        }
+    }
+
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        var position = offset;
+        while (position < offset + count) {
+            var transferred = fileChannel.transferTo(position, offset + count - position, target);
+            if (transferred == 0 && position >= fileChannel.size()) {
+                throw new IOException("transfer past the end of the container");
+            }
+            position += transferred;
+        }
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long offset, long count) throws IOException {
+        var position = offset;
+        while (position < offset + count) {
+            // a file channel cannot transfer to a position past its end, the gap is filled first
+            if (position > fileChannel.size()) {
+                fileChannel.write(ByteBuffer.allocate(1), position - 1);
+            }
+            var transferred = fileChannel.transferFrom(src, position, offset + count - position);
+            if (transferred == 0) {
+                break;
+            }
+            position += transferred;
+        }
+        return position - offset;
+    }
+
     @Override
     public long getSizeInBytes() throws IOException {
         return this.fileChannel.size();
@@ -59,23 +115,33 @@ public class BlockDeviceImpl implements BlockDevice {
 
     @Override
     public void execWithLock(RunnableIOOperation func) throws IOException {
-        FileLock lock = this.fileChannel.lock();
-
+        processLock.lock();
         try {
-            func.run();
+            FileLock lock = this.fileChannel.lock();
+
+            try {
+                func.run();
+            } finally {
+                lock.release();
+            }
         } finally {
-            lock.release();
+            processLock.unlock();
         }
     }
 
     @Override
     public <T> T execWithLock(CallableIOOperation<? extends T> func) throws IOException {
-        FileLock lock = this.fileChannel.lock();
-
+        processLock.lock();
         try {
-            return func.run();
+            FileLock lock = this.fileChannel.lock();
+
+            try {
+                return func.run();
+            } finally {
+                lock.release();
+            }
         } finally {
-            lock.release();
+            processLock.unlock();
         }
     }
 
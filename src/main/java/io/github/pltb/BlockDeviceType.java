@@ -0,0 +1,23 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+
+public enum BlockDeviceType {
+    FILE_CHANNEL,
+    MEMORY_MAPPED;
+
+    public BlockDevice createNew(File containerFile, long maxAddressableSpaceBytes) throws IOException {
+        return switch (this) {
+            case FILE_CHANNEL -> BlockDeviceImpl.createNew(containerFile, maxAddressableSpaceBytes);
+            case MEMORY_MAPPED -> MappedBlockDevice.createNew(containerFile, maxAddressableSpaceBytes);
+        };
+    }
+
+    public BlockDevice attachToFile(File containerFile) throws IOException {
+        return switch (this) {
+            case FILE_CHANNEL -> BlockDeviceImpl.attachToFile(containerFile);
+            case MEMORY_MAPPED -> MappedBlockDevice.attachToFile(containerFile);
+        };
+    }
+}
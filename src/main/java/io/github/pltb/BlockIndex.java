@@ -0,0 +1,58 @@
+package io.github.pltb;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+// The block numbers of every interval-th block of a file's chain, so that the n-th block is found by walking
+// less than interval links from the closest sample instead of all n from the start. Samples are taken lazily,
+// as far as the blocks asked for, so a chain that only grows at its end never makes the index stale.
+// Readers of the same file may use it at the same time, hence the synchronization.
+public class BlockIndex {
+
+    private final int interval;
+    // samples[i] is the block number of the block i * interval of the chain
+    private int[] samples = new int[8];
+    private int numSamples = 1;
+
+    public BlockIndex(int startingBlock, int interval) {
+        this.interval = interval;
+        this.samples[0] = startingBlock;
+    }
+
+    public synchronized int findNthBlock(FileAllocationTable fileAllocationTable, int n) {
+        var sample = n / interval;
+        while (numSamples <= sample) {
+            var block = walk(fileAllocationTable, samples[numSamples - 1], interval);
+            if (numSamples == samples.length) {
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            }
+            samples[numSamples++] = block;
+        }
+        return walk(fileAllocationTable, samples[sample], n % interval);
+    }
+
+    public synchronized int getStartingBlock() {
+        return samples[0];
+    }
+
+    // for blocks that have been moved elsewhere
+    public synchronized void remap(IntUnaryOperator newBlockNumbers) {
+        for (int i = 0; i < numSamples; i++) {
+            samples[i] = newBlockNumbers.applyAsInt(samples[i]);
+        }
+    }
+
+    public synchronized int getNumSamples() {
+        return numSamples;
+    }
+
+    private static int walk(FileAllocationTable fileAllocationTable, int block, int numLinks) {
+        for (int i = 0; i < numLinks; i++) {
+            if (fileAllocationTable.get(block) <= 0) {
+                throw new RuntimeException("unexpected end of file");
+            }
+            block = fileAllocationTable.get(block);
+        }
+        return block;
+    }
+}
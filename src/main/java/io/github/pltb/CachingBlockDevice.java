@@ -0,0 +1,402 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A block device decorator that keeps a fixed number of pages of the underlying device in memory.
+// Pages are keyed by their offset in the device, so the superblock, the FAT and the data region are all cached.
+// A page missed by a read is loaded from the device without holding the cache's monitor, so that reads of other pages
+// go on meanwhile; anything else touching that page waits until it is loaded.
+public class CachingBlockDevice implements BlockDevice {
+
+    public enum EvictionPolicy {
+        CLOCK,
+        LRU
+    }
+
+    public enum WritePolicy {
+        // writes go to the device immediately, cached copies are updated but pages are not loaded on write
+        WRITE_THROUGH,
+        // writes only go to the cache and reach the device on eviction, flush() or close()
+        WRITE_BACK
+    }
+
+    private final BlockDevice blockDevice;
+    private final int pageSizeBytes;
+    private final int numPages;
+    private final EvictionPolicy evictionPolicy;
+    private final WritePolicy writePolicy;
+
+    private final ByteBuffer pageMemory;
+    private final long[] pageNumberByFrame;
+    private final boolean[] dirty;
+    private final boolean[] referenced;
+    // frames being filled from the device by a read, outside the monitor
+    private final boolean[] loading;
+    private int numFramesLoading;
+    // for LRU, iteration order of the map is the eviction order
+    private final Map<Long, Integer> frameByPageNumber;
+    private int numFramesInUse;
+    private int clockHand;
+
+    private long sizeInBytes;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long writeBackCount;
+
+    public CachingBlockDevice(BlockDevice blockDevice,
+                              int pageSizeBytes,
+                              int numPages,
+                              EvictionPolicy evictionPolicy,
+                              WritePolicy writePolicy,
+                              boolean offHeap) throws IOException {
+        if (numPages <= 0 || pageSizeBytes <= 0 || (long) numPages * pageSizeBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid cache size: " + numPages + " pages of " + pageSizeBytes + " bytes");
+        }
+        this.blockDevice = blockDevice;
+        this.pageSizeBytes = pageSizeBytes;
+        this.numPages = numPages;
+        this.evictionPolicy = evictionPolicy;
+        this.writePolicy = writePolicy;
+        this.pageMemory = offHeap ? ByteBuffer.allocateDirect(numPages * pageSizeBytes) : ByteBuffer.allocate(numPages * pageSizeBytes);
+        this.pageNumberByFrame = new long[numPages];
+        Arrays.fill(this.pageNumberByFrame, -1);
+        this.dirty = new boolean[numPages];
+        this.referenced = new boolean[numPages];
+        this.loading = new boolean[numPages];
+        this.frameByPageNumber = evictionPolicy == EvictionPolicy.LRU ? new LinkedHashMap<>(numPages, 0.75f, true) : new HashMap<>();
+        this.sizeInBytes = blockDevice.getSizeInBytes();
+    }
+
+    @Override
+    public void storeBlock(int blockOffset, byte[] block) throws IOException {
+        storeBlock(blockOffset, ByteBuffer.wrap(block));
+    }
+
+    @Override
+    public byte[] readBlock(int blockOffset, int blockSize) throws IOException {
+        var block = ByteBuffer.allocate(blockSize);
+        readBlock(blockOffset, block);
+        return block.array();
+    }
+
+    @Override
+    public synchronized void storeBlock(long blockOffset, ByteBuffer src) throws IOException {
+        var length = src.remaining();
+        // a read loading one of the pages could see the write half done on the device
+        while (isLoadingAnyPage(blockOffset, length)) {
+            awaitLoading();
+        }
+        if (writePolicy == WritePolicy.WRITE_THROUGH) {
+            blockDevice.storeBlock(blockOffset, src.duplicate());
+        }
+
+        var position = blockOffset;
+        var end = blockOffset + length;
+        // grow first, pages evicted below are written back up to the device size
+        sizeInBytes = Math.max(sizeInBytes, end);
+        while (position < end) {
+            var pageNumber = position / pageSizeBytes;
+            var positionInPage = (int) (position % pageSizeBytes);
+            var chunkLength = (int) Math.min(end - position, pageSizeBytes - positionInPage);
+
+            int frame;
+            if (writePolicy == WritePolicy.WRITE_THROUGH) {
+                frame = findLoadedFrame(pageNumber);
+            } else {
+                // a page that is overwritten as a whole does not need to be read first
+                frame = getFrame(pageNumber, chunkLength < pageSizeBytes);
+                dirty[frame] = true;
+            }
+            if (frame >= 0) {
+                pageMemory.put(frame * pageSizeBytes + positionInPage, src, src.position(), chunkLength);
+                referenced[frame] = true;
+            }
+
+            src.position(src.position() + chunkLength);
+            position += chunkLength;
+        }
+    }
+
+    @Override
+    public void readBlock(long blockOffset, ByteBuffer dst) throws IOException {
+        var position = blockOffset;
+        var end = blockOffset + dst.remaining();
+        while (position < end) {
+            var pageNumber = position / pageSizeBytes;
+            var positionInPage = (int) (position % pageSizeBytes);
+            var chunkLength = (int) Math.min(end - position, pageSizeBytes - positionInPage);
+
+            readFromPage(pageNumber, positionInPage, dst, chunkLength);
+            dst.position(dst.position() + chunkLength);
+            position += chunkLength;
+        }
+    }
+
+    private void readFromPage(long pageNumber, int positionInPage, ByteBuffer dst, int length) throws IOException {
+        int frame;
+        synchronized (this) {
+            frame = findLoadedFrame(pageNumber);
+            if (frame >= 0) {
+                hitCount++;
+                referenced[frame] = true;
+                dst.put(dst.position(), pageMemory, frame * pageSizeBytes + positionInPage, length);
+                return;
+            }
+            missCount++;
+            frame = takeFrame(pageNumber);
+            loading[frame] = true;
+            numFramesLoading++;
+        }
+
+        try {
+            blockDevice.readBlock(pageNumber * pageSizeBytes, pageMemory.slice(frame * pageSizeBytes, pageSizeBytes));
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                frameByPageNumber.remove(pageNumber);
+                pageNumberByFrame[frame] = -1;
+                referenced[frame] = false;
+                finishLoading(frame);
+                // frames are only moved while nothing is loading, the frame may have been taken by then
+                while (numFramesLoading > 0) {
+                    awaitLoading();
+                }
+                if (pageNumberByFrame[frame] == -1) {
+                    dropFrame(frame);
+                }
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            finishLoading(frame);
+            dst.put(dst.position(), pageMemory, frame * pageSizeBytes + positionInPage, length);
+        }
+    }
+
+    @Override
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @Override
+    public synchronized void truncate(long newLength) throws IOException {
+        if (newLength >= sizeInBytes) {
+            return;
+        }
+        // frames are only moved while nothing is loading
+        while (numFramesLoading > 0) {
+            awaitLoading();
+        }
+
+        for (Long pageNumber : new ArrayList<>(frameByPageNumber.keySet())) {
+            var pageStart = pageNumber * pageSizeBytes;
+            if (pageStart >= newLength) {
+                dropFrame(frameByPageNumber.get(pageNumber));
+            } else if (pageStart + pageSizeBytes > newLength) {
+                // the cut off part of the page has to read as zeros if the device grows again
+                var frame = frameByPageNumber.get(pageNumber);
+                var keptLength = (int) (newLength - pageStart);
+                for (int i = keptLength; i < pageSizeBytes; i++) {
+                    pageMemory.put(frame * pageSizeBytes + i, (byte) 0);
+                }
+            }
+        }
+        sizeInBytes = newLength;
+        blockDevice.truncate(newLength);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        writeBackDirtyPages();
+        blockDevice.flush();
+    }
+
+    @Override
+    public void execWithLock(RunnableIOOperation func) throws IOException {
+        blockDevice.execWithLock(func);
+    }
+
+    @Override
+    public <T> T execWithLock(CallableIOOperation<? extends T> func) throws IOException {
+        return blockDevice.execWithLock(func);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writeBackDirtyPages();
+        blockDevice.close();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized long getWriteBackCount() {
+        return writeBackCount;
+    }
+
+    public int getPageSizeBytes() {
+        return pageSizeBytes;
+    }
+
+    // a write miss of a partial page still loads it under the monitor, only reads are meant to run in parallel
+    private int getFrame(long pageNumber, boolean loadFromDevice) throws IOException {
+        var frame = findLoadedFrame(pageNumber);
+        if (frame >= 0) {
+            hitCount++;
+            referenced[frame] = true;
+            return frame;
+        }
+
+        missCount++;
+        var newFrame = takeFrame(pageNumber);
+        if (loadFromDevice) {
+            blockDevice.readBlock(pageNumber * pageSizeBytes, pageMemory.slice(newFrame * pageSizeBytes, pageSizeBytes));
+        }
+        return newFrame;
+    }
+
+    // The frame of the page once it is loaded, or -1 if the page is not cached and a frame can be taken for it.
+    // While every frame is loading, it waits, as the page may be one of them.
+    private int findLoadedFrame(long pageNumber) throws IOException {
+        while (true) {
+            var frame = frameByPageNumber.get(pageNumber);
+            if (frame == null && (numFramesInUse < numPages || numFramesLoading < numPages)) {
+                return -1;
+            }
+            if (frame != null && !loading[frame]) {
+                return frame;
+            }
+            awaitLoading();
+        }
+    }
+
+    // a frame for a page that is not cached, mapped to it already
+    private int takeFrame(long pageNumber) throws IOException {
+        var newFrame = numFramesInUse < numPages ? numFramesInUse++ : evictFrame();
+        pageNumberByFrame[newFrame] = pageNumber;
+        referenced[newFrame] = true;
+        frameByPageNumber.put(pageNumber, newFrame);
+        return newFrame;
+    }
+
+    private boolean isLoadingAnyPage(long offset, int length) {
+        if (numFramesLoading == 0) {
+            return false;
+        }
+        for (long pageNumber = offset / pageSizeBytes; pageNumber * pageSizeBytes < offset + length; pageNumber++) {
+            var frame = frameByPageNumber.get(pageNumber);
+            if (frame != null && loading[frame]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finishLoading(int frame) {
+        loading[frame] = false;
+        numFramesLoading--;
+        notifyAll();
+    }
+
+    private void awaitLoading() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a page to load");
+        }
+    }
+
+    private int evictFrame() throws IOException {
+        int victim;
+        if (evictionPolicy == EvictionPolicy.LRU) {
+            var frames = frameByPageNumber.values().iterator();
+            victim = frames.next();
+            while (loading[victim]) {
+                victim = frames.next();
+            }
+        } else {
+            while (referenced[clockHand] || loading[clockHand]) {
+                referenced[clockHand] = false;
+                clockHand = (clockHand + 1) % numPages;
+            }
+            victim = clockHand;
+            clockHand = (clockHand + 1) % numPages;
+        }
+
+        if (dirty[victim]) {
+            writeBackFrame(victim);
+        }
+        frameByPageNumber.remove(pageNumberByFrame[victim]);
+        pageNumberByFrame[victim] = -1;
+        evictionCount++;
+        return victim;
+    }
+
+    private void dropFrame(int frame) {
+        frameByPageNumber.remove(pageNumberByFrame[frame]);
+        pageNumberByFrame[frame] = -1;
+        dirty[frame] = false;
+        referenced[frame] = false;
+        // keep the frames in use contiguous, so that free frames are always at the end
+        var lastFrame = --numFramesInUse;
+        if (frame != lastFrame) {
+            var movedPageNumber = pageNumberByFrame[lastFrame];
+            pageMemory.put(frame * pageSizeBytes, pageMemory, lastFrame * pageSizeBytes, pageSizeBytes);
+            pageNumberByFrame[frame] = movedPageNumber;
+            dirty[frame] = dirty[lastFrame];
+            referenced[frame] = referenced[lastFrame];
+            frameByPageNumber.put(movedPageNumber, frame);
+            pageNumberByFrame[lastFrame] = -1;
+            dirty[lastFrame] = false;
+            referenced[lastFrame] = false;
+        }
+        if (clockHand >= Math.max(numFramesInUse, 1)) {
+            clockHand = 0;
+        }
+    }
+
+    private void writeBackDirtyPages() throws IOException {
+        List<Integer> dirtyFrames = new ArrayList<>();
+        for (int frame = 0; frame < numFramesInUse; frame++) {
+            if (dirty[frame]) {
+                dirtyFrames.add(frame);
+            }
+        }
+        // write back in device order
+        dirtyFrames.sort((a, b) -> Long.compare(pageNumberByFrame[a], pageNumberByFrame[b]));
+        for (int frame : dirtyFrames) {
+            writeBackFrame(frame);
+        }
+    }
+
+    private void writeBackFrame(int frame) throws IOException {
+        var pageStart = pageNumberByFrame[frame] * pageSizeBytes;
+        // never write past the end of the device, the page may only be partially used
+        var length = (int) Math.min(pageSizeBytes, sizeInBytes - pageStart);
+        if (length > 0) {
+            blockDevice.storeBlock(pageStart, pageMemory.slice(frame * pageSizeBytes, length));
+        }
+        dirty[frame] = false;
+        writeBackCount++;
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// The first block of every chunk of a compressed file, as its position in the file's chain, so that the chunk
+// holding an offset is found without reading the headers of all chunks before it. Like a block index, it is
+// filled lazily, as far as the chunks asked for. Positions in the chain do not change when compaction moves blocks,
+// only rewriting chunks does, and the writer updates the index. Readers of the same file may use it at the same time.
+public class ChunkIndex {
+
+    interface ChunkSizes {
+        // the number of blocks of the chunk starting at the given position of the chain
+        int getNumBlocks(int firstBlock) throws IOException;
+    }
+
+    private int[] firstBlocks = new int[8];
+    private int numChunks = 1;
+
+    public synchronized int getFirstBlock(int chunk, ChunkSizes chunkSizes) throws IOException {
+        while (numChunks <= chunk) {
+            if (numChunks == firstBlocks.length) {
+                firstBlocks = Arrays.copyOf(firstBlocks, firstBlocks.length * 2);
+            }
+            firstBlocks[numChunks] = firstBlocks[numChunks - 1] + chunkSizes.getNumBlocks(firstBlocks[numChunks - 1]);
+            numChunks++;
+        }
+        return firstBlocks[chunk];
+    }
+
+    // the chunk has been written anew into numBlocks blocks, the chunks after it moved along
+    public synchronized void resize(int chunk, int numBlocks) {
+        if (chunk + 1 >= numChunks) {
+            return;
+        }
+        var delta = numBlocks - (firstBlocks[chunk + 1] - firstBlocks[chunk]);
+        for (int i = chunk + 1; i < numChunks; i++) {
+            firstBlocks[i] += delta;
+        }
+    }
+
+    // the chunks from this one on have been written anew
+    public synchronized void truncate(int chunk) {
+        numChunks = Math.max(1, Math.min(numChunks, chunk + 1));
+    }
+
+    public synchronized int getNumKnownChunks() {
+        return numChunks;
+    }
+}
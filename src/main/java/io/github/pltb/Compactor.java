@@ -0,0 +1,101 @@
+package io.github.pltb;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+// Compacts a FileSystemImpl on a background thread, a step at a time, so that other operations run between the steps.
+// The I/O it causes is kept under a rate limit: every block moved is read and written once, and after each step
+// the compactor sleeps for as long as that I/O takes at the given rate. While write channels are open, it waits
+// for them to be closed. It stops once there is nothing left to move, or on close().
+public class Compactor implements Closeable {
+
+    final private static long WRITE_CHANNELS_POLL_NANOS = 100_000_000;
+    // a step moves at most a tenth of a second's worth of blocks, so that the sleeps stay short
+    final private static int STEPS_PER_SECOND = 10;
+
+    private final FileSystemImpl fileSystem;
+    private final long maxBytesPerSecond;
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+    private final Thread thread;
+    private volatile boolean stopped;
+    private int numMovedBlocks;
+
+    private Compactor(FileSystemImpl fileSystem, long maxBytesPerSecond) {
+        this.fileSystem = fileSystem;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.thread = new Thread(this::run, "compactor");
+        this.thread.setDaemon(true);
+    }
+
+    public static Compactor start(FileSystemImpl fileSystem) {
+        return start(fileSystem, Long.MAX_VALUE);
+    }
+
+    public static Compactor start(FileSystemImpl fileSystem, long maxBytesPerSecond) {
+        if (maxBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("the rate limit must be positive");
+        }
+        var compactor = new Compactor(fileSystem, maxBytesPerSecond);
+        compactor.thread.start();
+        return compactor;
+    }
+
+    // completes with the number of blocks moved, once there is nothing left to move or the compactor is closed
+    public CompletableFuture<Integer> getCompletion() {
+        return completion;
+    }
+
+    // Stops after the current step and waits for it. The thread is never interrupted, as that would close
+    // the container's channel under a step.
+    @Override
+    public void close() {
+        stopped = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        var interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            var bytesPerBlock = 2L * fileSystem.getBlockSizeBytes();
+            var stepBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytesPerSecond / bytesPerBlock / STEPS_PER_SECOND));
+            while (!stopped) {
+                var startNanos = System.nanoTime();
+                var moved = fileSystem.compactStep(stepBlocks);
+                if (moved == 0) {
+                    break;
+                }
+                if (moved < 0) {
+                    sleepNanos(WRITE_CHANNELS_POLL_NANOS);
+                    continue;
+                }
+                numMovedBlocks += moved;
+                var ioNanos = (long) (moved * bytesPerBlock * 1e9 / maxBytesPerSecond);
+                sleepNanos(ioNanos - (System.nanoTime() - startNanos));
+            }
+            completion.complete(numMovedBlocks);
+        } catch (Throwable e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void sleepNanos(long nanos) throws InterruptedException {
+        var deadline = System.nanoTime() + nanos;
+        var left = nanos;
+        while (!stopped && left > 0) {
+            wait(left / 1_000_000, (int) (left % 1_000_000));
+            left = deadline - System.nanoTime();
+        }
+    }
+}
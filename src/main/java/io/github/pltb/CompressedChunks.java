@@ -0,0 +1,85 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// The data of a compressed file is split into chunks of CHUNK_SIZE_BYTES (the last one may be shorter), each
+// compressed on its own and stored in a whole number of blocks of the file's chain, one chunk after the other:
+// <method (1 byte)> <stored size (4 bytes)> <stored bytes> <padding up to the end of the last block>
+// A chunk that does not get smaller is stored as it is. A chunk is decoded without the ones before it,
+// so a ranged read or an offset write only decodes the chunks it touches.
+final class CompressedChunks {
+
+    final static int CHUNK_SIZE_BYTES = 64 * 1024;
+    final static int HEADER_SIZE_BYTES = 1 + 4;
+    final private static byte STORED = 0;
+    final private static byte DEFLATED = 1;
+
+    private CompressedChunks() {
+    }
+
+    // the chunk, padded to a whole number of blocks
+    static byte[] encode(byte[] data, int offset, int length, int blockSizeBytes) {
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            var compressed = new byte[length];
+            var compressedSize = 0;
+            while (!deflater.finished() && compressedSize < compressed.length) {
+                compressedSize += deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+            }
+
+            var method = deflater.finished() ? DEFLATED : STORED;
+            var storedSize = method == DEFLATED ? compressedSize : length;
+            var chunk = ByteBuffer.allocate(getNumBlocks(storedSize, blockSizeBytes) * blockSizeBytes)
+                    .put(method)
+                    .putInt(storedSize);
+            if (method == DEFLATED) {
+                chunk.put(compressed, 0, compressedSize);
+            } else {
+                chunk.put(data, offset, length);
+            }
+            return chunk.array();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] decode(byte method, byte[] stored, int chunkSize) {
+        if (method == STORED) {
+            return stored.length == chunkSize ? stored : Arrays.copyOf(stored, chunkSize);
+        }
+        if (method != DEFLATED) {
+            throw new RuntimeException("unknown chunk compression method: " + method);
+        }
+        var inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            var chunk = new byte[chunkSize];
+            var size = 0;
+            while (size < chunkSize && !inflater.finished()) {
+                var inflated = inflater.inflate(chunk, size, chunkSize - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != chunkSize) {
+                throw new RuntimeException("compressed chunk holds " + size + " bytes instead of " + chunkSize);
+            }
+            return chunk;
+        } catch (DataFormatException e) {
+            throw new RuntimeException("corrupted compressed chunk", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static int getNumBlocks(int storedSize, int blockSizeBytes) {
+        return (HEADER_SIZE_BYTES + storedSize + blockSizeBytes - 1) / blockSizeBytes;
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Blocks of deduplicated chains by the hash of their contents, and the number of chains passing through shared blocks.
+// A FAT entry links a block to a single next one, so chains can only share their ends: a chain being written is
+// linked to an indexed block when that block and the ones after it hold the same data as the rest of the chain.
+// Blocks are therefore found by their contents together with the block they link to, and an indexed block must not
+// change as long as it is indexed. The first block of a chain is never indexed, so the number of chains passing
+// through a block is the number of FAT entries linking to it, which is counted on mount instead of being stored.
+// Only the blocks linked to more than once are counted. A reference is taken in the same step as the lookup, so that
+// an erase running at the same time stops at the block.
+public class DeduplicationIndex {
+
+    final private static long PRIME_1 = 0x9E3779B97F4A7C15L;
+    final private static long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private final int maxIndexedBlocks;
+    private final Map<Long, Integer> blocksByKey = new HashMap<>();
+    // the least recently used block is dropped beyond maxIndexedBlocks
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            if (size() <= maxIndexedBlocks) {
+                return false;
+            }
+            blocksByKey.remove(eldest.getValue().key, eldest.getKey());
+            return true;
+        }
+    };
+    // blocks linked to from more than one FAT entry -> the number of such entries
+    private final Map<Integer, Integer> referenceCounts = new HashMap<>();
+
+    // maxIndexedBlocks == 0 only counts references, for containers mounted without deduplication
+    public DeduplicationIndex(int maxIndexedBlocks) {
+        this.maxIndexedBlocks = maxIndexedBlocks;
+    }
+
+    public static long hash(byte[] bytes, int offset, int length) {
+        var buffer = ByteBuffer.wrap(bytes, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        var hash = (long) length;
+        while (buffer.remaining() >= Long.BYTES) {
+            hash = Long.rotateLeft(hash ^ buffer.getLong() * PRIME_2, 31) * PRIME_1;
+        }
+        while (buffer.hasRemaining()) {
+            hash = Long.rotateLeft(hash ^ buffer.get() * PRIME_2, 31) * PRIME_1;
+        }
+        return finish(hash);
+    }
+
+    // The block with these contents that links to nextBlock, with a reference added to it so that it stays when
+    // the chains it belongs to are erased; -1 if there is none.
+    public synchronized int findAndReference(long contentHash, int nextBlock) {
+        var block = blocksByKey.get(key(contentHash, nextBlock));
+        if (block == null) {
+            return -1;
+        }
+        entries.get(block);
+        addReference(block);
+        return block;
+    }
+
+    public synchronized void index(int block, long contentHash, int nextBlock) {
+        if (maxIndexedBlocks == 0) {
+            return;
+        }
+        unindex(block);
+        var key = key(contentHash, nextBlock);
+        entries.put(block, new Entry(contentHash, key));
+        blocksByKey.put(key, block);
+    }
+
+    // the content hash of a block that was indexed, null otherwise
+    public synchronized Long unindex(int block) {
+        var entry = entries.remove(block);
+        if (entry == null) {
+            return null;
+        }
+        blocksByKey.remove(entry.key, block);
+        return entry.contentHash;
+    }
+
+    public synchronized boolean isIndexed(int block) {
+        return entries.containsKey(block);
+    }
+
+    public synchronized boolean isShared(int block) {
+        return referenceCounts.containsKey(block);
+    }
+
+    public synchronized void addReference(int block) {
+        referenceCounts.merge(block, 2, (count, two) -> count + 1);
+    }
+
+    // Drops a reference to the block. If other chains still link to it, it stays and true is returned,
+    // otherwise it is taken out of the index, so that no writer links to it anymore, and it may be freed.
+    public synchronized boolean release(int block) {
+        var count = referenceCounts.get(block);
+        if (count != null) {
+            if (count == 2) {
+                referenceCounts.remove(block);
+            } else {
+                referenceCounts.put(block, count - 1);
+            }
+            return true;
+        }
+        unindex(block);
+        return false;
+    }
+
+    // for a block moved elsewhere by compaction, which indexes it again as the block it links to may have moved too
+    public synchronized void moveReferences(int oldBlock, int newBlock) {
+        var count = referenceCounts.remove(oldBlock);
+        if (count != null) {
+            referenceCounts.put(newBlock, count);
+        }
+    }
+
+    public synchronized void countReferences(FileAllocationTable fileAllocationTable) {
+        referenceCounts.clear();
+        var linked = new BitSet(fileAllocationTable.size());
+        for (int i = 0; i < fileAllocationTable.size(); i++) {
+            var next = fileAllocationTable.get(i);
+            if (next <= 0) {
+                continue;
+            }
+            if (linked.get(next)) {
+                addReference(next);
+            } else {
+                linked.set(next);
+            }
+        }
+    }
+
+    // least recently used first
+    public synchronized Map<Integer, Long> getContentHashes() {
+        var hashes = new LinkedHashMap<Integer, Long>();
+        for (var entry : entries.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().contentHash);
+        }
+        return hashes;
+    }
+
+    public synchronized int getNumIndexedBlocks() {
+        return entries.size();
+    }
+
+    public synchronized int getNumSharedBlocks() {
+        return referenceCounts.size();
+    }
+
+    private static long key(long contentHash, int nextBlock) {
+        return finish(contentHash ^ nextBlock * PRIME_1);
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        return hash;
+    }
+
+    private static class Entry {
+        final long contentHash;
+        final long key;
+
+        Entry(long contentHash, long key) {
+            this.contentHash = contentHash;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pool of equally sized direct buffers for block I/O. Direct buffers are expensive to allocate and are
+// only released by the GC, so they are reused instead of allocating one per read or write.
+public class DirectBufferPool {
+
+    private final int bufferSizeBytes;
+    private final int maxPooledBuffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numPooledBuffers = new AtomicInteger();
+
+    public DirectBufferPool(int bufferSizeBytes, int maxPooledBuffers) {
+        this.bufferSizeBytes = bufferSizeBytes;
+        this.maxPooledBuffers = maxPooledBuffers;
+    }
+
+    public ByteBuffer acquire() {
+        var buffer = pooledBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSizeBytes);
+        }
+        numPooledBuffers.decrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSizeBytes || !buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer does not belong to the pool");
+        }
+        if (numPooledBuffers.incrementAndGet() <= maxPooledBuffers) {
+            pooledBuffers.offer(buffer);
+        } else {
+            numPooledBuffers.decrementAndGet();
+        }
+    }
+
+    public int getBufferSizeBytes() {
+        return bufferSizeBytes;
+    }
+}
@@ -1,47 +1,109 @@
 package io.github.pltb;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+// On disk, a directory is a header, a snapshot of all entries and a log of entry changes made since the snapshot:
+// <magic> <version> <snapshot size> <log size> <snapshot> <log>
+// A change only appends a record to the log and rewrites the header, the snapshot is rewritten (checkpoint)
+// once the log outgrows it, so the cost of a change does not depend on the number of entries.
+//
+// Version 2 uses the binary DirectorySnapshot, which is not decoded on mount: lookups go to the entries changed
+// since mount first and to the snapshot's hash index after that. Listing the directory decodes it completely.
+// Version 4 entries may keep the data of small files inline, version 5 ones may be compressed files, version 6 ones
+// may have shared chains, version 7 ones packed tails. Versions 3 to 6 are the same without those and are read as they are.
+// Version 2 (flat binary), version 1 (text snapshot) and the legacy text format without a header are still read
+// and need a checkpoint. In those, names may contain '/', as there were no subdirectories.
+//
+// Entries are kept sorted by name once decoded, so the entries starting with a prefix are found without a scan.
+//
+// Changes are made by one thread at a time, but lookups may run concurrently with each other; as they decode
+// the snapshot lazily, the lookup paths are synchronized.
 public class Directory {
 
+    final public static int HEADER_SIZE_BYTES = 16;
+
+    final private static int MAGIC = 0x4449524C;
+    final private static int VERSION = 7;
+    final private static int OLDEST_CHECKPOINTED_VERSION = 3;
+    final private static int FLAT_VERSION = 2;
+    final private static int TEXT_SNAPSHOT_VERSION = 1;
+    final private static int MIN_CHECKPOINT_LOG_SIZE_BYTES = 4096;
+    final private static byte LOG_PUT = 1;
+    final private static byte LOG_REMOVE = 2;
+
     private final int startingBlockNumber;
 
-    private final Map<String, FileMetadata> fileNameToMetadata;
+    // with a snapshot, only the entries changed since mount, a removed entry maps to null
+    private TreeMap<String, FileMetadata> fileNameToMetadata;
+    private DirectorySnapshot snapshot;
     private static final Charset SERDE_CHARSET = StandardCharsets.UTF_8;
 
+    // on-disk state, a directory that has never been checkpointed (new or in an older format) has none
+    private boolean checkpointed;
+    private int snapshotSizeBytes;
+    private int logSizeBytes;
+    private final ByteArrayOutputStream pendingLog = new ByteArrayOutputStream();
+
     public Directory(int startingBlockNumber) {
         this.startingBlockNumber = startingBlockNumber;
-        this.fileNameToMetadata = new HashMap<>();
+        this.fileNameToMetadata = new TreeMap<>();
     }
 
     public Directory(int startingBlockNumber, Map<String, FileMetadata> fileNameToMetadata) {
         this.startingBlockNumber = startingBlockNumber;
-        this.fileNameToMetadata = fileNameToMetadata;
+        this.fileNameToMetadata = new TreeMap<>(fileNameToMetadata);
     }
 
+    // the full image: header, snapshot and an empty log
     public byte[] toBytes() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(this.fileNameToMetadata.size());
-        sb.append("\n");
-        for (Map.Entry<String, FileMetadata> entry : this.fileNameToMetadata.entrySet()) {
-            sb.append(entry.getKey());
-            sb.append("\n");
-            sb.append(entry.getValue().getType());
-            sb.append("\n");
-            sb.append(entry.getValue().getStartingBlockNumber());
-            sb.append("\n");
-            sb.append(entry.getValue().getFileSize());
-            sb.append("\n");
+        var snapshotBytes = DirectorySnapshot.encode(getAllEntries());
+        return ByteBuffer.allocate(HEADER_SIZE_BYTES + snapshotBytes.length)
+                .put(headerToBytes(snapshotBytes.length, 0))
+                .put(snapshotBytes)
+                .array();
+    }
+
+    public static Directory fromBytes(byte[] bytes) {
+        return fromBytes(0, bytes);
+    }
+
+    public static Directory fromBytes(int startingBlockNumber, byte[] bytes) {
+        var buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE_BYTES || buffer.getInt() != MAGIC) {
+            // written before the entry log was introduced
+            return new Directory(startingBlockNumber, snapshotFromText(bytes, 0, bytes.length));
         }
 
-        return sb.toString().getBytes(SERDE_CHARSET);
+        var version = buffer.getInt();
+        var snapshotSize = buffer.getInt();
+        var logSize = buffer.getInt();
+
+        Directory dir;
+        if ((version >= OLDEST_CHECKPOINTED_VERSION && version <= VERSION) || version == FLAT_VERSION) {
+            dir = new Directory(startingBlockNumber);
+            dir.snapshot = DirectorySnapshot.wrap(ByteBuffer.wrap(bytes, HEADER_SIZE_BYTES, snapshotSize));
+            dir.checkpointed = version != FLAT_VERSION;
+        } else if (version == TEXT_SNAPSHOT_VERSION) {
+            dir = new Directory(startingBlockNumber, snapshotFromText(bytes, HEADER_SIZE_BYTES, snapshotSize));
+        } else {
+            throw new RuntimeException("unsupported directory format version: " + version);
+        }
+        dir.replayLog(buffer.position(HEADER_SIZE_BYTES + snapshotSize).slice().limit(logSize));
+        dir.snapshotSizeBytes = snapshotSize;
+        dir.logSizeBytes = logSize;
+        return dir;
     }
 
-    public static Directory fromBytes(byte[] bytes) {
+    private static Map<String, FileMetadata> snapshotFromText(byte[] bytes, int offset, int length) {
         var fileNameToMetadata = new HashMap<String, FileMetadata>();
-        String dirStructure = new String(bytes, SERDE_CHARSET);
+        String dirStructure = new String(bytes, offset, length, SERDE_CHARSET);
         Scanner scanner = new Scanner(dirStructure);
         int numOfEntries = Integer.parseInt(scanner.nextLine());
         for (int i = 0; i < numOfEntries; i++) {
@@ -52,30 +114,161 @@ public class Directory {
             fileNameToMetadata.put(fileName, new FileMetadata(fileType, startingBlockNumber, fileSize));
         }
         scanner.close();
-        return new Directory(0, fileNameToMetadata);
+        return fileNameToMetadata;
+    }
+
+    private void replayLog(ByteBuffer log) {
+        while (log.hasRemaining()) {
+            var op = log.get();
+            var nameBytes = new byte[log.getShort() & 0xFFFF];
+            log.get(nameBytes);
+            var fileName = new String(nameBytes, SERDE_CHARSET);
+            if (op == LOG_PUT) {
+                var type = log.get();
+                var startingBlockNumber = log.getInt();
+                var fileSize = log.getInt();
+                if ((type & DirectorySnapshot.INLINE_FLAG) != 0) {
+                    var inlineData = new byte[fileSize];
+                    log.get(inlineData);
+                    fileNameToMetadata.put(fileName, new FileMetadata(inlineData));
+                } else if ((type & DirectorySnapshot.PACKED_FLAG) != 0) {
+                    var tailBlock = log.getInt();
+                    var tailOffset = log.getInt();
+                    fileNameToMetadata.put(fileName, DirectorySnapshot.decodeMetadata(type, startingBlockNumber, fileSize).withTail(tailBlock, tailOffset));
+                } else {
+                    fileNameToMetadata.put(fileName, DirectorySnapshot.decodeMetadata(type, startingBlockNumber, fileSize));
+                }
+            } else if (op == LOG_REMOVE) {
+                putRemoved(fileName);
+            } else {
+                throw new RuntimeException("corrupted directory log");
+            }
+        }
+    }
+
+    // the full image has been written to disk
+    public byte[] checkpoint() {
+        var bytes = toBytes();
+        checkpointed = true;
+        snapshotSizeBytes = bytes.length - HEADER_SIZE_BYTES;
+        logSizeBytes = 0;
+        pendingLog.reset();
+        return bytes;
+    }
+
+    // true for directories that are new or in an older format, and for directories with a long log
+    // (amortized, a checkpoint costs a constant amount of work per logged change)
+    public boolean needsCheckpoint() {
+        return !checkpointed || logSizeBytes + pendingLog.size() > Math.max(MIN_CHECKPOINT_LOG_SIZE_BYTES, snapshotSizeBytes);
+    }
+
+    public boolean hasPendingChanges() {
+        return pendingLog.size() > 0;
+    }
+
+    // offset in the directory's chain at which the pending log records go
+    public int getLogEndOffset() {
+        return HEADER_SIZE_BYTES + snapshotSizeBytes + logSizeBytes;
+    }
+
+    // the pending records have to be written at getLogEndOffset(), followed by the header
+    public byte[] takePendingLog() {
+        var records = pendingLog.toByteArray();
+        pendingLog.reset();
+        logSizeBytes += records.length;
+        return records;
+    }
+
+    public byte[] getHeaderBytes() {
+        return headerToBytes(snapshotSizeBytes, logSizeBytes);
+    }
+
+    private static byte[] headerToBytes(int snapshotSize, int logSize) {
+        return ByteBuffer.allocate(HEADER_SIZE_BYTES)
+                .putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(snapshotSize)
+                .putInt(logSize)
+                .array();
+    }
+
+    private void logPut(String fileName, FileMetadata fileMetadata) {
+        try {
+            var out = new DataOutputStream(pendingLog);
+            out.writeByte(LOG_PUT);
+            writeName(out, fileName);
+            out.writeByte(DirectorySnapshot.encodeType(fileMetadata));
+            out.writeInt(fileMetadata.getStartingBlockNumber());
+            out.writeInt(fileMetadata.getFileSize());
+            if (fileMetadata.isInline()) {
+                out.write(fileMetadata.getInlineData());
+            }
+            if (fileMetadata.hasPackedTail()) {
+                out.writeInt(fileMetadata.getTailBlock());
+                out.writeInt(fileMetadata.getTailOffset());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void logRemove(String fileName) {
+        try {
+            var out = new DataOutputStream(pendingLog);
+            out.writeByte(LOG_REMOVE);
+            writeName(out, fileName);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String fileName) throws IOException {
+        var nameBytes = fileName.getBytes(SERDE_CHARSET);
+        if (nameBytes.length > 0xFFFF) {
+            throw new RuntimeException("file name is too long: " + fileName);
+        }
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
     }
 
     public long getDirSizeBytes() {
-        var totalBytes = 0;
-        for (FileMetadata fileMetadata: fileNameToMetadata.values()) {
+        var totalBytes = 0L;
+        for (FileMetadata fileMetadata: getAllEntries().values()) {
             totalBytes += fileMetadata.getFileSize();
         }
         return totalBytes;
     }
 
     public void  addFile(String fileName, int startingBlock, int fileSize) {
-        this.fileNameToMetadata.put(fileName, new FileMetadata(FileType.FILE, startingBlock, fileSize));
+        putEntry(fileName, new FileMetadata(FileType.FILE, startingBlock, fileSize));
+    }
+
+    public void addDirectory(String dirName, int startingBlock) {
+        putEntry(dirName, new FileMetadata(FileType.DIR, startingBlock, 0));
     }
 
-    public void move(String oldFilePath, String newFilePath) {
-        var fileMeta = this.fileNameToMetadata.get(oldFilePath);
+    public void putEntry(String name, FileMetadata metadata) {
+        this.fileNameToMetadata.put(name, metadata);
+        logPut(name, metadata);
+    }
+
+    public boolean move(String oldFilePath, String newFilePath) {
+        var fileMeta = lookup(oldFilePath);
+        if (fileMeta == null) {
+            return false;
+        }
+        putRemoved(oldFilePath);
         this.fileNameToMetadata.put(newFilePath, fileMeta);
-        this.fileNameToMetadata.remove(oldFilePath);
-        // todo: process absent files
+        logRemove(oldFilePath);
+        logPut(newFilePath, fileMeta);
+        return true;
     }
 
     public void removeFile(String fileName) {
-        this.fileNameToMetadata.remove(fileName);
+        if (lookup(fileName) != null) {
+            putRemoved(fileName);
+            logRemove(fileName);
+        }
     }
 
     public int getStartingBlockNumber() {
@@ -83,22 +276,70 @@ public class Directory {
     }
 
     public int getFileStartingBlock(String filePath) {
-        return fileNameToMetadata.get(filePath).getStartingBlockNumber();
+        return lookup(filePath).getStartingBlockNumber();
     }
 
     public boolean isFileExists(String filePath) {
-        return this.fileNameToMetadata.containsKey(filePath);
+        return lookup(filePath) != null;
     }
 
     public int getFileSize(String fileName) {
-        return fileNameToMetadata.get(fileName).getFileSize();
+        return lookup(fileName).getFileSize();
     }
 
     public List<String> getFileNames() {
-        return this.fileNameToMetadata.keySet().stream().toList();
+        return getAllEntries().keySet().stream().toList();
+    }
+
+    // entries whose names start with the prefix, in name order
+    public List<Map.Entry<String, FileMetadata>> getEntriesWithPrefix(String namePrefix) {
+        var entries = new ArrayList<Map.Entry<String, FileMetadata>>();
+        for (Map.Entry<String, FileMetadata> entry : getAllEntries().tailMap(namePrefix).entrySet()) {
+            if (!entry.getKey().startsWith(namePrefix)) {
+                break;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public boolean isEmpty() {
+        return getAllEntries().isEmpty();
     }
 
     public Optional<FileMetadata> getFileMetadata(String filePath) {
-        return Optional.ofNullable(this.fileNameToMetadata.get(filePath));
+        return Optional.ofNullable(lookup(filePath));
+    }
+
+    private synchronized FileMetadata lookup(String fileName) {
+        if (snapshot == null || fileNameToMetadata.containsKey(fileName)) {
+            return fileNameToMetadata.get(fileName);
+        }
+        return snapshot.lookup(fileName);
+    }
+
+    private void putRemoved(String fileName) {
+        if (snapshot == null) {
+            fileNameToMetadata.remove(fileName);
+        } else {
+            fileNameToMetadata.put(fileName, null);
+        }
+    }
+
+    // decodes the snapshot and merges the changes made since mount into it
+    private synchronized TreeMap<String, FileMetadata> getAllEntries() {
+        if (snapshot != null) {
+            var allEntries = new TreeMap<>(snapshot.readAll());
+            for (Map.Entry<String, FileMetadata> entry : fileNameToMetadata.entrySet()) {
+                if (entry.getValue() == null) {
+                    allEntries.remove(entry.getKey());
+                } else {
+                    allEntries.put(entry.getKey(), entry.getValue());
+                }
+            }
+            fileNameToMetadata = allEntries;
+            snapshot = null;
+        }
+        return fileNameToMetadata;
     }
 }
@@ -0,0 +1,191 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary snapshot of directory entries, read in place:
+// <number of entries> <number of buckets> <bucket offsets>* <entry>*
+// entry: <name length (2 bytes)> <UTF-8 name> <type (1 byte)> <starting block> <file size> [<data>]
+// The type of an inline file has INLINE_FLAG set and its data follows, file size bytes of it.
+// The type of a compressed file has COMPRESSED_FLAG set, and that of a file whose chain may be shared SHARED_FLAG.
+// The type of a file with a packed tail has PACKED_FLAG set and <tail block> <tail offset> follow.
+//
+// Entries are grouped by the hash bucket of their name and each bucket offset points at the first entry
+// of the bucket, so a single name is found without decoding the other entries. Small snapshots have no buckets
+// and are scanned.
+public class DirectorySnapshot {
+
+    final private static Charset SERDE_CHARSET = StandardCharsets.UTF_8;
+    final private static int MIN_ENTRIES_FOR_INDEX = 64;
+    final private static int ENTRIES_PER_BUCKET = 4;
+    final private static int ENTRY_METADATA_SIZE_BYTES = 1 + 4 + 4;
+    final static int INLINE_FLAG = 0x80;
+    final static int COMPRESSED_FLAG = 0x40;
+    final static int SHARED_FLAG = 0x20;
+    final static int PACKED_FLAG = 0x10;
+    final private static int TYPE_MASK = 0x0f;
+    final private static int PACKED_TAIL_SIZE_BYTES = 4 + 4;
+
+    private final ByteBuffer bytes;
+    private final int numEntries;
+    private final int numBuckets;
+    private final int entriesOffset;
+
+    private DirectorySnapshot(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.numEntries = bytes.getInt(0);
+        this.numBuckets = bytes.getInt(4);
+        this.entriesOffset = 8 + 4 * (numBuckets + 1);
+    }
+
+    public static DirectorySnapshot wrap(ByteBuffer bytes) {
+        return new DirectorySnapshot(bytes.slice());
+    }
+
+    public static byte[] encode(Map<String, FileMetadata> fileNameToMetadata) {
+        var numBuckets = fileNameToMetadata.size() < MIN_ENTRIES_FOR_INDEX
+                ? 0
+                : Integer.highestOneBit(fileNameToMetadata.size() / ENTRIES_PER_BUCKET) * 2;
+
+        List<List<byte[]>> namesByBucket = new ArrayList<>();
+        List<List<FileMetadata>> metadataByBucket = new ArrayList<>();
+        for (int i = 0; i < Math.max(numBuckets, 1); i++) {
+            namesByBucket.add(new ArrayList<>());
+            metadataByBucket.add(new ArrayList<>());
+        }
+        var entriesSize = 0;
+        for (Map.Entry<String, FileMetadata> entry : fileNameToMetadata.entrySet()) {
+            var bucket = numBuckets == 0 ? 0 : bucketOf(entry.getKey(), numBuckets);
+            var nameBytes = entry.getKey().getBytes(SERDE_CHARSET);
+            namesByBucket.get(bucket).add(nameBytes);
+            metadataByBucket.get(bucket).add(entry.getValue());
+            entriesSize += 2 + nameBytes.length + ENTRY_METADATA_SIZE_BYTES + getInlineSize(entry.getValue()) + getPackedTailSize(entry.getValue());
+        }
+
+        var entriesOffset = 8 + 4 * (numBuckets + 1);
+        var buffer = ByteBuffer.allocate(entriesOffset + entriesSize);
+        buffer.putInt(fileNameToMetadata.size()).putInt(numBuckets);
+        buffer.position(entriesOffset);
+        for (int bucket = 0; bucket < namesByBucket.size(); bucket++) {
+            if (numBuckets > 0) {
+                buffer.putInt(8 + 4 * bucket, buffer.position() - entriesOffset);
+            }
+            var names = namesByBucket.get(bucket);
+            for (int i = 0; i < names.size(); i++) {
+                var metadata = metadataByBucket.get(bucket).get(i);
+                buffer.putShort((short) names.get(i).length)
+                        .put(names.get(i))
+                        .put(encodeType(metadata))
+                        .putInt(metadata.getStartingBlockNumber())
+                        .putInt(metadata.getFileSize());
+                if (metadata.isInline()) {
+                    buffer.put(metadata.getInlineData());
+                }
+                if (metadata.hasPackedTail()) {
+                    buffer.putInt(metadata.getTailBlock()).putInt(metadata.getTailOffset());
+                }
+            }
+        }
+        // the end of the last bucket
+        buffer.putInt(8 + 4 * numBuckets, entriesSize);
+        return buffer.array();
+    }
+
+    // returns null if there is no such entry
+    public FileMetadata lookup(String fileName) {
+        var nameBytes = ByteBuffer.wrap(fileName.getBytes(SERDE_CHARSET));
+        int position;
+        int end;
+        if (numBuckets == 0) {
+            position = entriesOffset;
+            end = entriesOffset + bytes.getInt(8);
+        } else {
+            var bucket = bucketOf(fileName, numBuckets);
+            position = entriesOffset + bytes.getInt(8 + 4 * bucket);
+            end = entriesOffset + bytes.getInt(8 + 4 * (bucket + 1));
+        }
+
+        while (position < end) {
+            var nameLength = bytes.getShort(position) & 0xFFFF;
+            var nameStart = position + 2;
+            if (nameLength == nameBytes.remaining() && bytes.slice(nameStart, nameLength).equals(nameBytes)) {
+                return readMetadata(nameStart + nameLength);
+            }
+            position = nameStart + nameLength + getEntryMetadataSize(nameStart + nameLength);
+        }
+        return null;
+    }
+
+    public Map<String, FileMetadata> readAll() {
+        var fileNameToMetadata = new HashMap<String, FileMetadata>(numEntries * 2);
+        var position = entriesOffset;
+        for (int i = 0; i < numEntries; i++) {
+            var nameLength = bytes.getShort(position) & 0xFFFF;
+            var nameBytes = new byte[nameLength];
+            bytes.get(position + 2, nameBytes);
+            position += 2 + nameLength;
+            fileNameToMetadata.put(new String(nameBytes, SERDE_CHARSET), readMetadata(position));
+            position += getEntryMetadataSize(position);
+        }
+        return fileNameToMetadata;
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public int getNumBuckets() {
+        return numBuckets;
+    }
+
+    private FileMetadata readMetadata(int position) {
+        var type = bytes.get(position);
+        if ((type & INLINE_FLAG) != 0) {
+            var inlineData = new byte[bytes.getInt(position + 5)];
+            bytes.get(position + ENTRY_METADATA_SIZE_BYTES, inlineData);
+            return new FileMetadata(inlineData);
+        }
+        var metadata = decodeMetadata(type, bytes.getInt(position + 1), bytes.getInt(position + 5));
+        if ((type & PACKED_FLAG) != 0) {
+            return metadata.withTail(bytes.getInt(position + ENTRY_METADATA_SIZE_BYTES), bytes.getInt(position + ENTRY_METADATA_SIZE_BYTES + 4));
+        }
+        return metadata;
+    }
+
+    static FileMetadata decodeMetadata(byte type, int startingBlockNumber, int fileSize) {
+        return new FileMetadata(FileType.values()[type & TYPE_MASK], startingBlockNumber, fileSize,
+                (type & COMPRESSED_FLAG) != 0, (type & SHARED_FLAG) != 0);
+    }
+
+    private int getEntryMetadataSize(int position) {
+        var isInline = (bytes.get(position) & INLINE_FLAG) != 0;
+        var isPacked = (bytes.get(position) & PACKED_FLAG) != 0;
+        return ENTRY_METADATA_SIZE_BYTES + (isInline ? bytes.getInt(position + 5) : 0) + (isPacked ? PACKED_TAIL_SIZE_BYTES : 0);
+    }
+
+    static byte encodeType(FileMetadata metadata) {
+        return (byte) (metadata.getType().ordinal()
+                | (metadata.isInline() ? INLINE_FLAG : 0)
+                | (metadata.isCompressed() ? COMPRESSED_FLAG : 0)
+                | (metadata.isShared() ? SHARED_FLAG : 0)
+                | (metadata.hasPackedTail() ? PACKED_FLAG : 0));
+    }
+
+    private static int getInlineSize(FileMetadata metadata) {
+        return metadata.isInline() ? metadata.getInlineData().length : 0;
+    }
+
+    private static int getPackedTailSize(FileMetadata metadata) {
+        return metadata.hasPackedTail() ? PACKED_TAIL_SIZE_BYTES : 0;
+    }
+
+    private static int bucketOf(String fileName, int numBuckets) {
+        var hash = fileName.hashCode();
+        return (hash ^ (hash >>> 16)) & (numBuckets - 1);
+    }
+}
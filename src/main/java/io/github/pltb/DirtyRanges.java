@@ -0,0 +1,63 @@
+package io.github.pltb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Set of integer ranges (FAT entries changed by an operation), overlapping and adjacent ranges are merged
+// as they are added, so that the ranges can be written out with one write each.
+public class DirtyRanges {
+
+    // range start -> range end (exclusive)
+    private final TreeMap<Integer, Integer> ranges = new TreeMap<>();
+    private int numEntries;
+
+    public void add(int start, int length) {
+        var mergedStart = start;
+        var mergedEnd = start + length;
+
+        var left = ranges.floorEntry(start);
+        if (left != null && left.getValue() >= start) {
+            if (left.getValue() >= mergedEnd) {
+                return;
+            }
+            mergedStart = left.getKey();
+            remove(left.getKey(), left.getValue());
+        }
+        Map.Entry<Integer, Integer> right;
+        while ((right = ranges.ceilingEntry(mergedStart)) != null && right.getKey() <= mergedEnd) {
+            mergedEnd = Math.max(mergedEnd, right.getValue());
+            remove(right.getKey(), right.getValue());
+        }
+
+        ranges.put(mergedStart, mergedEnd);
+        numEntries += mergedEnd - mergedStart;
+    }
+
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    public int getNumEntries() {
+        return numEntries;
+    }
+
+    public int getNumRanges() {
+        return ranges.size();
+    }
+
+    // in ascending order
+    public List<FileAllocationTable.Extent> getRanges() {
+        var extents = new ArrayList<FileAllocationTable.Extent>();
+        for (Map.Entry<Integer, Integer> range : ranges.entrySet()) {
+            extents.add(new FileAllocationTable.Extent(range.getKey(), range.getValue() - range.getKey()));
+        }
+        return extents;
+    }
+
+    private void remove(int start, int end) {
+        ranges.remove(start);
+        numEntries -= end - start;
+    }
+}
@@ -0,0 +1,290 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Allocations and frees may come from several threads at once and are synchronized here, each of them is short.
+// Entries are read without synchronization: a chain is only walked by a thread that holds the lock of its file,
+// and only the thread holding that lock changes the chain.
+public class FileAllocationTable {
+
+    public static final int FREE = -1;
+    public static final int END_OF_FILE = 0;
+
+    private final int[] entries;
+    // on disk, entries narrower than an int keep their low bytes, FREE is all ones
+    private final int entryWidthBytes;
+    private final FreeSpaceIndex freeSpaceIndex;
+
+    // Blocks freed by a journal transaction must not be reused for file data before the transaction is
+    // applied in place, otherwise a late in-place write of the old metadata could clobber the new data.
+    // While deferring, freed blocks are only released to the free space index once the journal says so.
+    // Every thread has its own transaction, so the deferral is per thread.
+    private final ThreadLocal<List<Integer>> deferredFrees = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<List<Integer>> releasedFrees = new ConcurrentLinkedQueue<>();
+    // free in the table, but not in the index yet
+    private final AtomicInteger numDeferredFrees = new AtomicInteger();
+
+    private FileAllocationTable(int[] entries, int entryWidthBytes) {
+        this.entries = entries;
+        this.entryWidthBytes = entryWidthBytes;
+        this.freeSpaceIndex = FreeSpaceIndex.fromFat(entries);
+    }
+
+    public static FileAllocationTable createEmpty(int numEntries) {
+        return createEmpty(numEntries, Integer.BYTES);
+    }
+
+    public static FileAllocationTable createEmpty(int numEntries, int entryWidthBytes) {
+        if (numEntries > getMaxNumEntries(entryWidthBytes)) {
+            throw new IllegalArgumentException(numEntries + " blocks cannot be addressed with " + entryWidthBytes + " byte FAT entries");
+        }
+        var entries = new int[numEntries];
+        Arrays.fill(entries, FREE);
+        return new FileAllocationTable(entries, entryWidthBytes);
+    }
+
+    public static FileAllocationTable fromBytes(byte[] fat) {
+        return fromBytes(fat, Integer.BYTES);
+    }
+
+    public static FileAllocationTable fromBytes(byte[] fat, int entryWidthBytes) {
+        int[] array = new int[fat.length / entryWidthBytes];
+        if (entryWidthBytes == Integer.BYTES) {
+            IntBuffer intBuf =
+                    ByteBuffer.wrap(fat)
+                            .order(ByteOrder.BIG_ENDIAN)
+                            .asIntBuffer();
+            intBuf.get(array, 0, array.length);
+        } else {
+            var freeValue = getMaxNumEntries(entryWidthBytes);
+            for (int i = 0; i < array.length; i++) {
+                var value = 0;
+                for (int j = 0; j < entryWidthBytes; j++) {
+                    value = (value << 8) | (fat[i * entryWidthBytes + j] & 0xFF);
+                }
+                array[i] = value == freeValue ? FREE : value;
+            }
+        }
+
+        return new FileAllocationTable(array, entryWidthBytes);
+    }
+
+    // the all-ones value of a narrow entry is FREE, so it is not a block number
+    public static int getMaxNumEntries(int entryWidthBytes) {
+        return entryWidthBytes >= Integer.BYTES ? Integer.MAX_VALUE : (1 << (8 * entryWidthBytes)) - 1;
+    }
+
+    public int getEntryWidthBytes() {
+        return entryWidthBytes;
+    }
+
+    public synchronized byte[] toBytes() {
+        return toBytes(0, entries.length);
+    }
+
+    public synchronized byte[] toBytes(int fromBlock, int numBlocks) {
+        ByteBuffer bb = ByteBuffer.allocate(entryWidthBytes * numBlocks);
+        writeEntries(fromBlock, numBlocks, bb);
+        return bb.array();
+    }
+
+    // copies the entries into the buffer in their on-disk encoding
+    public synchronized void writeEntries(int fromBlock, int numBlocks, ByteBuffer dst) {
+        if (entryWidthBytes == Integer.BYTES) {
+            dst.asIntBuffer().put(entries, fromBlock, numBlocks);
+            dst.position(dst.position() + Integer.BYTES * numBlocks);
+            return;
+        }
+        for (int block = fromBlock; block < fromBlock + numBlocks; block++) {
+            var value = entries[block];
+            for (int shift = 8 * (entryWidthBytes - 1); shift >= 0; shift -= 8) {
+                dst.put((byte) (value >>> shift));
+            }
+        }
+    }
+
+    public int get(int blockNumber) {
+        return entries[blockNumber];
+    }
+
+    // every FAT mutation goes through here, so that the free space index never goes stale
+    public synchronized void set(int blockNumber, int value) {
+        var wasFree = entries[blockNumber] == FREE;
+        var isFree = value == FREE;
+        entries[blockNumber] = value;
+        if (wasFree && !isFree) {
+            freeSpaceIndex.markAllocated(blockNumber, 1);
+        } else if (!wasFree && isFree) {
+            var deferred = deferredFrees.get();
+            if (deferred != null) {
+                deferred.add(blockNumber);
+                numDeferredFrees.incrementAndGet();
+            } else {
+                freeSpaceIndex.markFree(blockNumber, 1);
+            }
+        }
+    }
+
+    public void beginDeferringFrees() {
+        deferredFrees.set(new ArrayList<>());
+    }
+
+    public List<Integer> endDeferringFrees() {
+        var blocks = deferredFrees.get();
+        deferredFrees.remove();
+        return blocks;
+    }
+
+    // can be called from any thread, the blocks become allocatable with the next allocation
+    public void releaseDeferredFrees(List<Integer> blocks) {
+        releasedFrees.add(blocks);
+    }
+
+    public boolean isFree(int blockNumber) {
+        return entries[blockNumber] == FREE;
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public synchronized int findFirstFreeBlockFromInclusive(int from) {
+        drainReleasedFrees();
+        var block = freeSpaceIndex.nextFreeFrom(from);
+        if (block < 0) {
+            throw new RuntimeException("no free space left");
+        }
+        return block;
+    }
+
+    // returns the first free block, or -1 if there is none
+    public synchronized int findFirstFreeBlock() {
+        drainReleasedFrees();
+        return freeSpaceIndex.nextFreeFrom(0);
+    }
+
+    public synchronized int getFreeRunLengthAt(int blockNumber) {
+        drainReleasedFrees();
+        return freeSpaceIndex.getFreeRunLengthAt(blockNumber);
+    }
+
+    public int findFirstFreeBlockFromExclusive(int from) {
+        return findFirstFreeBlockFromInclusive(from + 1);
+    }
+
+    // returns the start of a free run of the given length, or -1 if there is none
+    public synchronized int findFreeRun(int numBlocks) {
+        drainReleasedFrees();
+        return freeSpaceIndex.findFreeRun(numBlocks);
+    }
+
+    // Reserves numBlocks blocks as a small number of contiguous runs and links them into a single chain
+    // terminated with an end marker. The run starting at preferredStart is used first if that block is free
+    // (to keep a file contiguous with its existing tail), then the smallest run that fits the rest,
+    // then the largest runs available.
+    public synchronized List<Extent> allocateExtents(int numBlocks, int preferredStart) {
+        drainReleasedFrees();
+        if (numBlocks > freeSpaceIndex.getNumFreeBlocks()) {
+            throw new RuntimeException("no free space left");
+        }
+
+        var extents = new ArrayList<Extent>();
+        var blocksLeft = numBlocks;
+
+        // a block freed by a transaction that is not applied yet is FREE in the table but not in the index
+        var preferredRunLength = preferredStart >= 0 && preferredStart < entries.length ? freeSpaceIndex.getFreeRunLengthAt(preferredStart) : 0;
+        if (preferredRunLength > 0) {
+            var length = Math.min(blocksLeft, preferredRunLength);
+            freeSpaceIndex.markAllocated(preferredStart, length);
+            extents.add(new Extent(preferredStart, length));
+            blocksLeft -= length;
+        }
+
+        while (blocksLeft > 0) {
+            var start = freeSpaceIndex.findFreeRun(blocksLeft);
+            var length = blocksLeft;
+            if (start < 0) {
+                start = freeSpaceIndex.getLargestFreeRunStart();
+                length = freeSpaceIndex.getLargestFreeRunLength();
+            }
+            freeSpaceIndex.markAllocated(start, length);
+            extents.add(new Extent(start, length));
+            blocksLeft -= length;
+        }
+
+        for (int i = 0; i < extents.size(); i++) {
+            var extent = extents.get(i);
+            var lastBlock = extent.getEnd() - 1;
+            for (int block = extent.getStart(); block < lastBlock; block++) {
+                entries[block] = block + 1;
+            }
+            entries[lastBlock] = i + 1 < extents.size() ? extents.get(i + 1).getStart() : END_OF_FILE;
+        }
+
+        return extents;
+    }
+
+    // returns the first block of the free run at the end of the table, or -1
+    public synchronized int getLastFreeBlockNum() {
+        drainReleasedFrees();
+        return freeSpaceIndex.getTrailingFreeRunStart();
+    }
+
+    // the free blocks, including those that are not reusable yet
+    public synchronized int getNumFreeBlocks() {
+        drainReleasedFrees();
+        return freeSpaceIndex.getNumFreeBlocks() + numDeferredFrees.get();
+    }
+
+    // the free blocks an allocation can take now
+    public synchronized int getNumAllocatableBlocks() {
+        drainReleasedFrees();
+        return freeSpaceIndex.getNumFreeBlocks();
+    }
+
+    public synchronized FreeSpaceIndex getFreeSpaceIndex() {
+        drainReleasedFrees();
+        return freeSpaceIndex;
+    }
+
+    private void drainReleasedFrees() {
+        List<Integer> blocks;
+        while ((blocks = releasedFrees.poll()) != null) {
+            numDeferredFrees.addAndGet(-blocks.size());
+            for (int block : blocks) {
+                if (entries[block] == FREE) {
+                    freeSpaceIndex.markFree(block, 1);
+                }
+            }
+        }
+    }
+
+    public static class Extent {
+        private final int start;
+        private final int length;
+
+        public Extent(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getEnd() {
+            return start + length;
+        }
+    }
+}
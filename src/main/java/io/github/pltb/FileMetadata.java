@@ -4,6 +4,17 @@ public class FileMetadata {
     private FileType type;
     private int startingBlockNumber;
     private int fileSize;
+    // the contents of a small file kept in its directory entry instead of blocks, null for files in blocks
+    private byte[] inlineData;
+    // the chain holds the data in compressed chunks, see CompressedChunks
+    private boolean compressed;
+    // the chain may pass through blocks that other chains link to or that are in the deduplication index,
+    // which are copied before the file changes them
+    private boolean shared;
+    // the bytes past the last full block of the chain are packed into a tail block at this offset, see TailBlocks;
+    // -1 for files whose chain holds all of their data
+    private int tailBlock = -1;
+    private int tailOffset;
 
     public FileMetadata(FileType type, int startingBlockNumber, int fileSize) {
         this.type = type;
@@ -11,6 +22,28 @@ public class FileMetadata {
         this.fileSize = fileSize;
     }
 
+    public FileMetadata(FileType type, int startingBlockNumber, int fileSize, boolean compressed) {
+        this(type, startingBlockNumber, fileSize);
+        this.compressed = compressed;
+    }
+
+    public FileMetadata(FileType type, int startingBlockNumber, int fileSize, boolean compressed, boolean shared) {
+        this(type, startingBlockNumber, fileSize, compressed);
+        this.shared = shared;
+    }
+
+    public FileMetadata(FileType type, int startingBlockNumber, int fileSize, boolean compressed, boolean shared, int tailBlock, int tailOffset) {
+        this(type, startingBlockNumber, fileSize, compressed, shared);
+        this.tailBlock = tailBlock;
+        this.tailOffset = tailOffset;
+    }
+
+    // an inline file has no blocks
+    public FileMetadata(byte[] inlineData) {
+        this(FileType.FILE, -1, inlineData.length);
+        this.inlineData = inlineData;
+    }
+
     public int getStartingBlockNumber() {
         return startingBlockNumber;
     }
@@ -22,4 +55,52 @@ public class FileMetadata {
     public int getFileSize() {
         return fileSize;
     }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    // the same file with its chain starting elsewhere
+    public FileMetadata withStartingBlockNumber(int startingBlockNumber) {
+        return withChain(startingBlockNumber, fileSize);
+    }
+
+    // the packed tail stays, so the size only changes together with it
+    public FileMetadata withChain(int startingBlockNumber, int fileSize) {
+        return new FileMetadata(type, startingBlockNumber, fileSize, compressed, shared, tailBlock, tailOffset);
+    }
+
+    public FileMetadata withShared(boolean shared) {
+        return new FileMetadata(type, startingBlockNumber, fileSize, compressed, shared, tailBlock, tailOffset);
+    }
+
+    // tailBlock -1 for no packed tail
+    public FileMetadata withTail(int tailBlock, int tailOffset) {
+        return new FileMetadata(type, startingBlockNumber, fileSize, compressed, shared, tailBlock, tailBlock < 0 ? 0 : tailOffset);
+    }
+
+    public boolean hasPackedTail() {
+        return tailBlock >= 0;
+    }
+
+    public int getTailBlock() {
+        return tailBlock;
+    }
+
+    public int getTailOffset() {
+        return tailOffset;
+    }
+
+    public boolean isInline() {
+        return inlineData != null;
+    }
+
+    // not copied, the bytes of an entry are never changed in place
+    public byte[] getInlineData() {
+        return inlineData;
+    }
 }
@@ -0,0 +1,83 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+// Read-only channel over a file of a FileSystemImpl. Nothing is buffered: every read goes to the file system
+// and walks the file's chain lazily, so files larger than the heap can be read. The size is the current size
+// of the file, so appends made after opening are visible. Reading fails once the file is deleted, moved or replaced.
+public class FileReadChannel implements SeekableByteChannel {
+
+    private final FileSystemImpl fileSystem;
+    private final String filePath;
+    private final FileSystemImpl.ChainCursor cursor;
+    private long position;
+    private boolean open = true;
+
+    FileReadChannel(FileSystemImpl fileSystem, String filePath, FileSystemImpl.ChainCursor cursor) {
+        this.fileSystem = fileSystem;
+        this.filePath = filePath;
+        this.cursor = cursor;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        var bytesRead = fileSystem.readFromFile(filePath, cursor, position, dst);
+        if (bytesRead > 0) {
+            position += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public synchronized long size() throws IOException {
+        ensureOpen();
+        return fileSystem.getFileSize(filePath, cursor);
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package io.github.pltb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 
 public interface FileSystem extends Closeable {
 
-    void compact() throws IOException;
+    // 1 once there is nothing left to move, -1 if write channels are open, as compaction stops early then
+    int compact() throws IOException;
 
     int appendToFile(String fileName, byte[] bytes) throws IOException;
 
 
     int createFile(String filePath) throws IOException;
 
+    // like createFile, but the data of the file is compressed, in chunks that are read and written on their own;
+    // such a file cannot be written through a channel
+    int createCompressedFile(String filePath) throws IOException;
+
     int writeToFileFromOffset(String filePath, byte[] bytes, int offset) throws IOException;
 
     List<String> listFilesUnderPrefix(String prefix) throws IOException;
@@ -22,7 +32,42 @@ public interface FileSystem extends Closeable {
 
     int moveFile(String oldFilePath, String newFilePath) throws IOException;
 
+    // creates dstPath, or replaces it, with the contents of srcPath without copying them: both files share their blocks
+    // until one of them changes them; -1 if there is no file at srcPath
+    int cloneFile(String srcPath, String dstPath) throws IOException;
+
+    // clones all files at once into a new directory at snapshotPath, returns their number or -1 if the path is taken
+    int snapshot(String snapshotPath) throws IOException;
+
     Optional<byte[]> readFile(String fileName) throws IOException;
 
+    // up to length bytes of the file from the offset, fewer at its end, empty for a missing file
+    Optional<byte[]> readFileRange(String fileName, long offset, int length) throws IOException;
+
+    // reads up to dst.remaining() bytes of the file from the offset into dst, returns the number of bytes read,
+    // -1 if the offset is at or past the end of the file; throws NoSuchFileException for a missing file
+    int readFileRange(String fileName, long offset, ByteBuffer dst) throws IOException;
+
+    // a read-only channel that reads the file block by block, throws NoSuchFileException for a missing file
+    SeekableByteChannel openForRead(String filePath) throws IOException;
+
+    default InputStream openInputStream(String filePath) throws IOException {
+        return Channels.newInputStream(openForRead(filePath));
+    }
+
+    // a buffered channel, the written bytes become part of the file on flush() and close()
+    FileWriteChannel openForWrite(String filePath, WriteMode mode) throws IOException;
+
+    default OutputStream openOutputStream(String filePath, WriteMode mode) throws IOException {
+        return openForWrite(filePath, mode).asOutputStream();
+    }
+
+    // writes the whole file to the channel and returns its size, throws NoSuchFileException for a missing file
+    long exportFile(String filePath, WritableByteChannel target) throws IOException;
+
+    // creates the file with size bytes read from the channel, replacing an existing one, returns -1 like createFile;
+    // throws EOFException if the channel ends before that, and leaves an existing file as it was
+    int importFile(String filePath, ReadableByteChannel src, long size) throws IOException;
+
     long getFreeSpaceBytes() throws IOException;
 }
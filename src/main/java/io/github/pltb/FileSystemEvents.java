@@ -0,0 +1,76 @@
+package io.github.pltb;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Flight recorder events of the file system, to be correlated with GC, I/O and the threads of the application
+// in a recording. They are enabled like the events of the JDK, e.g. with a .jfc file or Recording.enable(name);
+// an event that is not enabled costs little more than its allocation.
+public final class FileSystemEvents {
+
+    final static String CATEGORY = "File System Emulation";
+
+    private FileSystemEvents() {
+    }
+
+    @Name("io.github.pltb.Operation")
+    @Label("File System Operation")
+    @Description("A call of the FileSystem API, from the call to its return")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Operation extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+    }
+
+    @Name("io.github.pltb.LockWait")
+    @Label("File System Lock Wait")
+    @Description("A thread waiting for a file or directory lock held by another thread")
+    @Category(CATEGORY)
+    @Threshold("1 ms")
+    static class LockWait extends Event {
+        @Label("Lock")
+        String lock;
+    }
+
+    @Name("io.github.pltb.DirectoryFlush")
+    @Label("Directory Flush")
+    @Description("Changed directory entries written to the container")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class DirectoryFlush extends Event {
+        @Label("Starting Block")
+        int startingBlock;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Checkpoint")
+        @Description("The whole directory was rewritten, instead of appending to its log")
+        boolean checkpoint;
+    }
+
+    @Name("io.github.pltb.CompactionStep")
+    @Label("Compaction Step")
+    @Description("A step of compaction, with all file locks held")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CompactionStep extends Event {
+        @Label("Moved Blocks")
+        int movedBlocks;
+
+        @Label("Skipped For Write Channels")
+        @Description("Nothing was moved, as write channels are open")
+        boolean skippedForWriteChannels;
+    }
+}
@@ -2,420 +2,2734 @@ package io.github.pltb;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
 
 public class FileSystemImpl implements FileSystem {
 
     // config constants
-    final private static int BLOCK_SIZE_BYTES = 1024;
-    final private static int FAT_ADDR_SIZE_BYTES = 4;
+    // blocks larger than this are read and written one at a time
+    final private static int IO_BUFFER_SIZE_BYTES = 64 * 1024;
+    final private static int MAX_POOLED_IO_BUFFERS = 16;
+    final private static int MIN_JOURNAL_SIZE_BYTES = 64 * 1024;
+    final private static int MAX_JOURNAL_SIZE_BYTES = 4 * 1024 * 1024;
+    final private static int WRITE_PREALLOCATION_BYTES = 64 * 1024;
+    final private static int NUM_FILE_LOCK_STRIPES = 64;
+    final private static int CONCURRENT_READ_PIECE_BYTES = 256 * 1024;
+    final private static int MAX_CONCURRENT_PIECE_READS = 8;
+    // an operation that changes at least this share of the FAT writes the whole table at once
+    final private static double WHOLE_FAT_WRITE_THRESHOLD = 0.5;
+    final private static int MIN_FAT_SEQUENCE_ENTRIES = 8;
+    // a compaction step holds all locks, so it moves a bounded number of blocks, and stops early once its time is up
+    final private static int COMPACTION_STEP_BLOCKS = 256;
+    final private static long COMPACTION_STEP_NANOS = 20_000_000;
+    // offset reads and writes walk at most this many links from a sample of the file's block index
+    final private static int BLOCK_INDEX_INTERVAL = 64;
+    final private static int MAX_BLOCK_INDEXES = 1024;
+    // files up to this size keep their data in their directory entry and take no blocks
+    final private static int MAX_INLINE_FILE_BYTES = 256;
+    // the bytes past the last full block of a larger file are packed with those of other files, if they are at most
+    // this share of a block, see TailBlocks
+    final private static double MAX_PACKED_TAIL_RATIO = 0.5;
+    final private static int DEDUPLICATION_INDEX_MAGIC = 0x44445550;
+
+    // the layout is read from the superblock, so that every container is used the way it was formatted
+    final private int blockSizeBytes;
+    final private int fatEntryWidthBytes;
 
     // filesystem components
-    final private BlockDevice blockDevice;
-    final private int[] fileAllocationTable;
-    final private Superblock superblock;
+    // counts the I/O of the file system for its metrics
+    final private MeteredBlockDevice blockDevice;
+    final private FileAllocationTable fileAllocationTable;
+    // changes only when the deduplication index is saved or loaded, which holds all locks
+    private Superblock superblock;
     final private Directory rootDir;
-
-    final private byte[] END_MARKER_BYTES = {0, 0, 0, 0};
-    final private byte[] FREE_MARKER_BYTES = ByteBuffer.allocate(4).putInt(-1).array();
-
-    // todo: combine the constructors?
-    private FileSystemImpl(BlockDevice blockDevice,
-                           Superblock superblock,
-                           int[] fileAllocationTable) throws IOException {
-        this.blockDevice = blockDevice;
-        this.superblock = superblock;
-        this.fileAllocationTable = fileAllocationTable;
-        this.rootDir = restoreDirFromDisk();
-    }
-
-    private FileSystemImpl(BlockDevice blockDevice,
+    // directories are read lazily, by their starting block, also by readers running at the same time
+    final private Map<Integer, Directory> loadedDirectories = new ConcurrentHashMap<>();
+    final private Set<Directory> dirtyDirectories = new LinkedHashSet<>();
+    // the blocks shared by several chains are counted whether deduplication is enabled or not
+    final private DeduplicationIndex deduplicationIndex;
+    final private boolean deduplication;
+    final private TailBlocks packedTailBlocks;
+    final private int maxPackedTailBytes;
+    // Block indexes of the files used last, by starting block. An index is used under the lock of its file,
+    // dropped when its chain is erased, and remapped when compaction moves blocks.
+    final private Map<Integer, BlockIndex> blockIndexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, BlockIndex> eldest) {
+            return size() > MAX_BLOCK_INDEXES;
+        }
+    });
+    // chunk indexes of the compressed files used last, by starting block, kept like the block indexes
+    final private Map<Integer, ChunkIndex> chunkIndexes = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ChunkIndex> eldest) {
+            return size() > MAX_BLOCK_INDEXES;
+        }
+    });
+    // null for containers created before the journal was introduced
+    final private Journal journal;
+    // every thread runs its own operation, so every thread has its own transaction
+    final private ThreadLocal<JournalTransaction> currentTransaction = new ThreadLocal<>();
+    // FAT entries changed by the current operation, written out at its end
+    final private ThreadLocal<DirtyRanges> dirtyFatEntries = new ThreadLocal<>();
+    // blocks written with deduplication by the current operation -> their content hashes, see writeDeduplicatedChain()
+    final private ThreadLocal<Map<Integer, Long>> blocksToIndex = ThreadLocal.withInitial(HashMap::new);
+    // while nothing else runs, no entry of the FAT in memory belongs to an operation that is not committed
+    final private AtomicInteger numRunningMutations = new AtomicInteger();
+    final private AtomicInteger numOpenWriteSessions = new AtomicInteger();
+    // files with open write channels -> their number, as they write in place, such files are not cloned
+    final private Map<String, Integer> openWriteSessionPaths = new ConcurrentHashMap<>();
+    // bumped whenever blocks are freed, block positions remembered by readers are not trusted across it
+    private volatile long freeGeneration;
+
+    // In-process locking: the directories are guarded by a read-write lock, the data and the chain of a file by
+    // the striped lock of its path, and the FAT allocator synchronizes on its own. File locks are taken before
+    // the directory lock, several file locks in stripe order. The container's file lock is only taken on top
+    // of that when other processes may use the container.
+    final private ReentrantReadWriteLock directoryLock = new ReentrantReadWriteLock();
+    final private StripedLock fileLocks = new StripedLock(NUM_FILE_LOCK_STRIPES);
+    final private boolean crossProcessLocking;
+    // a whole number of blocks, at least one
+    final private int ioBufferSizeBytes;
+    final private DirectBufferPool ioBufferPool;
+    final private FileSystemMetrics metrics;
+
+    // the root directory is read from the container if it is not given
+    private FileSystemImpl(MeteredBlockDevice blockDevice,
                            Superblock superblock,
-                           int[] fileAllocationTable,
-                           Directory rootDir) {
+                           FileAllocationTable fileAllocationTable,
+                           Journal journal,
+                           boolean crossProcessLocking,
+                           int deduplicationIndexSize,
+                           Directory rootDir) throws IOException {
         this.blockDevice = blockDevice;
         this.superblock = superblock;
+        this.blockSizeBytes = superblock.getBlockSizeBytes();
+        this.fatEntryWidthBytes = superblock.getFatEntryWidthBytes();
         this.fileAllocationTable = fileAllocationTable;
-        this.rootDir = rootDir;
+        this.journal = journal;
+        this.crossProcessLocking = crossProcessLocking;
+        this.ioBufferSizeBytes = Math.max(IO_BUFFER_SIZE_BYTES, blockSizeBytes);
+        this.ioBufferPool = new DirectBufferPool(ioBufferSizeBytes, MAX_POOLED_IO_BUFFERS);
+        this.metrics = new FileSystemMetrics(blockDevice, fileAllocationTable, blockSizeBytes);
+        this.deduplicationIndex = new DeduplicationIndex(deduplicationIndexSize);
+        this.deduplication = deduplicationIndexSize > 0;
+        deduplicationIndex.countReferences(fileAllocationTable);
+        this.packedTailBlocks = new TailBlocks(blockSizeBytes);
+        this.maxPackedTailBytes = Math.min((int) (blockSizeBytes * MAX_PACKED_TAIL_RATIO), packedTailBlocks.getMaxTailBytes());
+        if (rootDir != null) {
+            this.loadedDirectories.put(rootDir.getStartingBlockNumber(), rootDir);
+            this.rootDir = rootDir;
+        } else {
+            this.rootDir = loadDirectory(0);
+        }
     }
 
     // factory methods
     public static FileSystemImpl createNew(File containerFile, long maxCapacity) throws IOException {
-        var blockDevice = BlockDeviceImpl.createNew(containerFile, maxCapacity);
+        return createNew(containerFile, maxCapacity, BlockDeviceType.FILE_CHANNEL);
+    }
+
+    public static FileSystemImpl createNew(File containerFile, long maxCapacity, BlockDeviceType blockDeviceType) throws IOException {
+        return createNew(containerFile, maxCapacity, MountOptions.defaults().withBlockDeviceType(blockDeviceType));
+    }
+
+    public static FileSystemImpl createNew(File containerFile, long maxCapacity, MountOptions mountOptions) throws IOException {
+        return createNew(containerFile, maxCapacity, FormatOptions.defaults(), mountOptions);
+    }
+
+    public static FileSystemImpl createNew(File containerFile, long maxCapacity, FormatOptions formatOptions) throws IOException {
+        return createNew(containerFile, maxCapacity, formatOptions, MountOptions.defaults());
+    }
+
+    public static FileSystemImpl createNew(File containerFile, long maxCapacity, FormatOptions formatOptions, MountOptions mountOptions) throws IOException {
+        var blockSize = formatOptions.getBlockSizeBytes();
+        var fatEntryWidth = formatOptions.getFatEntryWidthBytes();
+        var fatEntriesNum = calculateNumFatEntries(maxCapacity, formatOptions.getDataRegionRatio(), blockSize);
+        var journalSize = formatOptions.getJournalSizeBytes() < 0
+                ? calculateJournalSize(maxCapacity, blockSize)
+                : formatOptions.getJournalSizeBytes() / blockSize * blockSize;
+        if (journalSize > 0 && journalSize < MIN_JOURNAL_SIZE_BYTES) {
+            throw new IllegalArgumentException("journal must be at least " + MIN_JOURNAL_SIZE_BYTES + " bytes");
+        }
+        var fileAllocationTable = FileAllocationTable.createEmpty(fatEntriesNum, fatEntryWidth);
 
         var fileAllocationTableOffset = Superblock.SUPERBLOCK_SIZE_BYTES;
-        var fatEntriesNum = calculateNumFatEntries(maxCapacity);
-        var dataRegionOffset = fileAllocationTableOffset + fatEntriesNum * FAT_ADDR_SIZE_BYTES;
+        var journalOffset = fileAllocationTableOffset + fatEntriesNum * fatEntryWidth;
+        // blocks are aligned to their size in the container, and so to the pages of the OS for large blocks
+        var dataRegionOffset = (journalOffset + journalSize + blockSize - 1) / blockSize * blockSize;
 
-        var superblock = new Superblock(fileAllocationTableOffset, fatEntriesNum, dataRegionOffset, maxCapacity);
-        var fileAllocationTable = new int[fatEntriesNum];
-        Arrays.fill(fileAllocationTable, -1);
+        var superblock = new Superblock(fileAllocationTableOffset, fatEntriesNum, dataRegionOffset, maxCapacity,
+                journalSize > 0 ? journalOffset : 0, journalSize, blockSize, fatEntryWidth);
         var rootDir = new Directory(0);
 
+        var blockDevice = new MeteredBlockDevice(mountOptions.createBlockDevice(containerFile, maxCapacity, blockSize));
         blockDevice.storeBlock(0, superblock.toBytes());
-        blockDevice.storeBlock(Superblock.SUPERBLOCK_SIZE_BYTES, fatToByteArray(fileAllocationTable));
+        blockDevice.storeBlock(Superblock.SUPERBLOCK_SIZE_BYTES, fileAllocationTable.toBytes());
+        var journal = journalSize > 0 ? Journal.format(blockDevice, journalOffset, journalSize) : null;
 
-        var fs = new FileSystemImpl(blockDevice, superblock, fileAllocationTable, rootDir);
-        fs.flushRootDir();
+        var fs = new FileSystemImpl(blockDevice, superblock, fileAllocationTable, journal, mountOptions.isCrossProcessLocking(),
+                mountOptions.getDeduplicationIndexSize(), rootDir);
+        fs.dirtyDirectories.add(rootDir);
+        fs.flushDirectories();
 
         return fs;
     }
 
     public static FileSystemImpl loadFromContainer(File containerFile) throws IOException {
-        var blockDevice = BlockDeviceImpl.attachToFile(containerFile);
+        return loadFromContainer(containerFile, BlockDeviceType.FILE_CHANNEL);
+    }
+
+    public static FileSystemImpl loadFromContainer(File containerFile, BlockDeviceType blockDeviceType) throws IOException {
+        return loadFromContainer(containerFile, MountOptions.defaults().withBlockDeviceType(blockDeviceType));
+    }
+
+    public static FileSystemImpl loadFromContainer(File containerFile, MountOptions mountOptions) throws IOException {
+        var rawBlockDevice = mountOptions.attachBlockDevice(containerFile);
         // todo: move superblock to block device?
-        var superblock = Superblock.fromBytes(blockDevice.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES));
-        int[] fileAllocationTable = fatFromByteArray(blockDevice.readBlock(superblock.getFileAllocationTableOffset(), superblock.getFileAllocationTableNumEntries() * FAT_ADDR_SIZE_BYTES));
-        return new FileSystemImpl(blockDevice, superblock, fileAllocationTable);
+        var superblock = Superblock.fromBytes(rawBlockDevice.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES));
+        // the block cache needs the block size the container was formatted with
+        var blockDevice = new MeteredBlockDevice(mountOptions.withBlockCacheIfEnabled(rawBlockDevice, superblock.getBlockSizeBytes()));
+        // the journal is replayed before anything else is read, so that the FAT and directory are consistent
+        Journal journal = null;
+        if (superblock.hasJournal()) {
+            journal = Journal.open(blockDevice, superblock.getJournalOffset(), superblock.getJournalSizeBytes());
+            // the journal may hold a newer superblock, from saving or loading the deduplication index
+            superblock = Superblock.fromBytes(blockDevice.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES));
+        }
+        var fatEntryWidth = superblock.getFatEntryWidthBytes();
+        var fileAllocationTable = FileAllocationTable.fromBytes(
+                blockDevice.readBlock(superblock.getFileAllocationTableOffset(), superblock.getFileAllocationTableNumEntries() * fatEntryWidth),
+                fatEntryWidth);
+        var fs = new FileSystemImpl(blockDevice, superblock, fileAllocationTable, journal, mountOptions.isCrossProcessLocking(),
+                mountOptions.getDeduplicationIndexSize(), null);
+        // the saved index is only valid right after the close that saved it, so it is dropped on every mount
+        if (superblock.getDeduplicationIndexBlock() >= 0) {
+            fs.execMutation(fs.fileLocks.allWriteLocks(), true, fs::loadDeduplicationIndex);
+        }
+        // a directory in an older format is converted once, so that the next mounts are fast
+        if (fs.rootDir.needsCheckpoint()) {
+            fs.execMutation(fs.fileLocks.allWriteLocks(), true, fs::migrateRootDir);
+        }
+        return fs;
     }
 
+    // Runs compaction steps until there is nothing left to move, other operations run between the steps.
+    // Stops early and returns -1 while write channels are open, see compactStep(); Compactor waits for them instead.
     @Override
-    public void compact() throws IOException {
-        this.blockDevice.execWithLock(() -> {
-            var lastFreeBlockNum = getLastFreeBlockNum();
-            var files = unsafeListFiles();
-            for (String file : files) {
-                Optional<byte[]> fileBytesOpt = unsafeReadFile(file);
-                if (fileBytesOpt.isPresent()) {
-                    unsafeDeleteFile(file);
-                    unsafeCreateFile(file);
-                    unsafeAppendToFile(file, fileBytesOpt.get());
+    public int compact() throws IOException {
+        return timed("compact", null, () -> {
+            int moved;
+            do {
+                // each step releases the locks
+                moved = compactStep(COMPACTION_STEP_BLOCKS);
+            } while (moved > 0);
+            return moved < 0 ? -1 : 1;
+        });
+    }
+
+    // Moves up to maxBlocks blocks from the end of the data region into the first free blocks, then truncates
+    // the container behind the last block in use. Returns the number of blocks moved, 0 if there is nothing left
+    // to move, or -1 if write channels are open: the blocks they reserved are linked in memory like any others,
+    // but belong to no file yet, so they cannot be moved.
+    int compactStep(int maxBlocks) throws IOException {
+        return execMutation(fileLocks.allWriteLocks(), true, () -> {
+            var event = new FileSystemEvents.CompactionStep();
+            event.begin();
+            if (numOpenWriteSessions.get() > 0) {
+                if (event.shouldCommit()) {
+                    event.skippedForWriteChannels = true;
+                    event.commit();
                 }
+                return -1;
+            }
+            // blocks are copied as they are on the device, so the changes of earlier operations must be applied,
+            // and the blocks freed by them reusable
+            commitTransactionInLock();
+            if (journal != null) {
+                journal.checkpointIfHolding();
             }
+            var numMovedBlocks = moveTailBlocks(Math.min(maxBlocks, COMPACTION_STEP_BLOCKS), System.nanoTime() + COMPACTION_STEP_NANOS);
+            flushDirectories();
+            // the moved blocks become free once the transaction is applied, or with the next step's checkpoint
+            commitTransactionInLock();
 
-            lastFreeBlockNum = getLastFreeBlockNum();
+            var lastFreeBlockNum = getLastFreeBlockNum();
             if (lastFreeBlockNum > 0) {
-                var newFileSize = superblock.getDataRegionOffset() + BLOCK_SIZE_BYTES * lastFreeBlockNum;
-                blockDevice.truncate(newFileSize);
+                var newFileSize = getDataBlockOffset(lastFreeBlockNum);
+                if (newFileSize < blockDevice.getSizeInBytes()) {
+                    blockDevice.truncate(newFileSize);
+                }
             }
+            if (event.shouldCommit()) {
+                event.movedBlocks = numMovedBlocks;
+                event.commit();
+            }
+            return numMovedBlocks;
         });
     }
 
+    public int getBlockSizeBytes() {
+        return blockSizeBytes;
+    }
+
     @Override
     public int appendToFile(String fileName, byte[] bytes) throws IOException {
-        return this.blockDevice.execWithLock(() -> this.unsafeAppendToFile(fileName, bytes));
+        return timed("appendToFile", fileName, () -> execMutation(fileLocks.writeLocks(fileName), false, () -> this.unsafeAppendToFile(fileName, bytes)));
     }
 
+    // The data goes out under the file's lock only, the directory lock is taken for the new size at the end.
     public int unsafeAppendToFile(String fileName, byte[] bytes) throws IOException {
-        var fileOpt = rootDir.getFileMetadata(fileName);
-        if (fileOpt.isEmpty()) {
+        var file = readDirectories(() -> findFileMetadata(fileName));
+        if (file == null) {
             return -1;
         }
-
-        var file = fileOpt.get();
-        var registeredStartingBlockNumber = file.getStartingBlockNumber();
-
-        var firstFreeBlockNumber = findFirstFreeBlockFromInclusive(0);
-        if (registeredStartingBlockNumber >= 0) {
-            fileAllocationTable[registeredStartingBlockNumber] = firstFreeBlockNumber;
+        if (bytes.length == 0) {
+            return 1;
+        }
+        if (file.isCompressed()) {
+            return unsafeAppendToCompressedFile(fileName, file, bytes);
         }
 
-        writeBytesToDevice(firstFreeBlockNumber, bytes, false, file.getFileSize() % BLOCK_SIZE_BYTES);
+        var fileSize = file.getFileSize();
+        var startingBlockNumber = file.getStartingBlockNumber();
+        if ((fileSize == 0 || file.isInline()) && (long) fileSize + bytes.length <= MAX_INLINE_FILE_BYTES) {
+            lockDirectoriesForWrite();
+            putFileEntry(fileName, new FileMetadata(concat(file.getInlineData(), bytes)));
+            return 1;
+        }
+        // the data past the end of the chain: an inline file has outgrown its entry, and a packed tail
+        // is written anew together with the new bytes
+        byte[] data;
+        int chainSize;
+        if (file.isInline()) {
+            data = concat(file.getInlineData(), bytes);
+            chainSize = 0;
+        } else if (file.hasPackedTail()) {
+            var tail = new byte[getPackedTailSize(file)];
+            readTail(file, 0, ByteBuffer.wrap(tail));
+            data = concat(tail, bytes);
+            chainSize = getChainSize(file);
+        } else {
+            data = bytes;
+            chainSize = fileSize;
+        }
+        var newFileSize = fileSize + bytes.length;
+        // only the bytes after the last full block are packed, the chain does not change in place for it
+        var packedTailSize = isTailPacked(newFileSize) && newFileSize % blockSizeBytes <= data.length ? newFileSize % blockSizeBytes : 0;
+        var chainData = packedTailSize > 0 ? Arrays.copyOf(data, data.length - packedTailSize) : data;
+
+        var shared = file.isShared();
+        if (chainData.length > 0 && chainSize == 0) {
+            shared = isDeduplicated(chainData.length);
+            startingBlockNumber = writeBytesToNewChain(chainData, -1);
+        } else if (chainData.length > 0) {
+            var lastBlockOrdinalNumber = (chainSize - 1) / blockSizeBytes;
+            var lastBlockFill = chainSize - lastBlockOrdinalNumber * blockSizeBytes;
+            ensureExclusive(file, lastBlockOrdinalNumber, lastBlockOrdinalNumber);
+            var lastBlockNumber = findNthBlockOfFile(startingBlockNumber, lastBlockOrdinalNumber);
+            appendBytesToChain(lastBlockNumber, lastBlockFill, chainData);
+            shared |= deduplication && chainData.length > blockSizeBytes - lastBlockFill;
+        }
 
-        rootDir.addFile(fileName, firstFreeBlockNumber, file.getFileSize() + bytes.length);
-        flushRootDir();
+        lockDirectoriesForWrite();
+        var metadata = file.withChain(startingBlockNumber, newFileSize).withShared(shared).withTail(-1, 0);
+        if (file.hasPackedTail()) {
+            freeTail(file);
+        }
+        if (packedTailSize > 0) {
+            var slot = packTail(data, data.length - packedTailSize, packedTailSize);
+            metadata = metadata.withTail(slot[0], slot[1]);
+        }
+        // the parent cannot have gone away, a directory with files in it is neither deleted nor moved without the file's lock
+        var parent = findParentDirectory(fileName, false);
+        parent.putEntry(getName(fileName), metadata);
+        dirtyDirectories.add(parent);
+        flushDirectories();
         return 1;
     }
 
-    @Override
-    public int createFile(String filePath) throws IOException {
-        return this.blockDevice.execWithLock(() -> this.unsafeCreateFile(filePath));
+    private static byte[] concat(byte[] inlineData, byte[] bytes) {
+        if (inlineData == null) {
+            return bytes.clone();
+        }
+        var result = Arrays.copyOf(inlineData, inlineData.length + bytes.length);
+        System.arraycopy(bytes, 0, result, inlineData.length, bytes.length);
+        return result;
     }
 
-    private int unsafeCreateFile(String filePath) throws IOException {
-            this.rootDir.addFile(filePath, -1, 0);
-            flushRootDir();
+    @Override
+    public int cloneFile(String srcPath, String dstPath) throws IOException {
+        return timed("cloneFile", srcPath, () -> execMutation(fileLocks.writeLocks(srcPath, dstPath), true, () -> {
+            var file = findFileMetadata(srcPath);
+            if (openWriteSessionPaths.containsKey(srcPath)) {
+                throw new IOException("file " + srcPath + " is open for writing and cannot be cloned");
+            }
+            if (file == null || srcPath.equals(dstPath) || unsafeCreateFile(dstPath, file.isCompressed()) < 0) {
+                return -1;
+            }
+            putFileEntry(dstPath, cloneChain(srcPath, file));
             return 1;
+        }));
     }
 
+    // Clones every file into the directory at snapshotPath, under the same paths, all at the same point in time.
+    // Returns the number of files cloned, -1 if there is something at the path already. Empty directories are left out.
     @Override
-    public int writeToFileFromOffset(String filePath, byte[] bytes, int offset) throws IOException {
-        return this.blockDevice.execWithLock(() -> {
-            var fileOpt = rootDir.getFileMetadata(filePath);
-            if (fileOpt.isEmpty()) {
+    public int snapshot(String snapshotPath) throws IOException {
+        return timed("snapshot", snapshotPath, () -> execMutation(fileLocks.allWriteLocks(), true, () -> {
+            if (!openWriteSessionPaths.isEmpty()) {
+                throw new IOException("cannot take a snapshot while files are open for writing");
+            }
+            var parent = findParentDirectory(snapshotPath, false);
+            if (snapshotPath.isEmpty() || (parent != null && parent.getFileMetadata(getName(snapshotPath)).isPresent())) {
                 return -1;
             }
-
-            var file = fileOpt.get();
-
-            if (offset + bytes.length >= file.getFileSize()) {
+            var paths = new ArrayList<String>();
+            collectFiles(rootDir, "", "", paths);
+            if (findParentDirectory(snapshotPath + "/", true) == null) {
+                flushDirectories();
                 return -1;
             }
+            for (String path : paths) {
+                var clonePath = snapshotPath + "/" + path;
+                var cloneParent = findParentDirectory(clonePath, true);
+                cloneParent.putEntry(getName(clonePath), cloneChain(path, findFileMetadata(path)));
+                dirtyDirectories.add(cloneParent);
+            }
+            flushDirectories();
+            return paths.size();
+        }));
+    }
 
-            var inBlockOffset = offset % BLOCK_SIZE_BYTES;
-            var blockOrdinalNumber = offset / BLOCK_SIZE_BYTES;
-            var blockNumber = findNthBlockInFile(file.getStartingBlockNumber(), blockOrdinalNumber);
-
-            writeBytesToDevice(blockNumber, bytes, true, inBlockOffset);
-
-            rootDir.addFile(filePath, file.getStartingBlockNumber(), file.getFileSize() + bytes.length);
-            flushRootDir();
-            return 1;
-        });
+    // The entry of a clone of the file, whose chain is a copy of the file's first block linked to the second one:
+    // the chains share all other blocks until one of the files changes them, see ensureExclusive(). The first block
+    // is copied because no chain may start in a shared block, and a packed tail is packed again for the clone.
+    // With the file's lock and the directory lock held, the directories are flushed by the caller.
+    private FileMetadata cloneChain(String filePath, FileMetadata file) throws IOException {
+        var startingBlockNumber = file.getStartingBlockNumber();
+        if (file.isInline() || (startingBlockNumber < 0 && !file.hasPackedTail())) {
+            return file;
+        }
+        var clone = file;
+        if (file.hasPackedTail()) {
+            var tail = new byte[getPackedTailSize(file)];
+            readTail(file, 0, ByteBuffer.wrap(tail));
+            var slot = packTail(tail, 0, tail.length);
+            clone = file.withTail(slot[0], slot[1]);
+            if (startingBlockNumber < 0) {
+                return clone;
+            }
+        }
+        var firstBlock = fileAllocationTable.allocateExtents(1, startingBlockNumber + 1).get(0).getStart();
+        copyBlocks(startingBlockNumber, firstBlock, 1);
+        var secondBlock = fileAllocationTable.get(startingBlockNumber);
+        if (secondBlock == FileAllocationTable.END_OF_FILE) {
+            storeFatEntries(firstBlock, 1);
+            return clone.withChain(firstBlock, file.getFileSize());
+        }
+        fileAllocationTable.set(firstBlock, secondBlock);
+        storeFatEntries(firstBlock, 1);
+        deduplicationIndex.addReference(secondBlock);
+        if (!file.isShared()) {
+            var parent = findParentDirectory(filePath, false);
+            parent.putEntry(getName(filePath), file.withShared(true));
+            dirtyDirectories.add(parent);
+        }
+        return clone.withChain(firstBlock, file.getFileSize()).withShared(true);
     }
 
-    @Override
-    public List<String> listFilesUnderPrefix(String prefix) throws IOException {
-        return this.blockDevice.execWithLock(() -> {
-            return this.rootDir.getFileNames().stream().filter(fileName -> fileName.startsWith(prefix)).toList();
-        });
+    // replaces the entry of an existing file, with the directory lock held for writing
+    private void putFileEntry(String filePath, FileMetadata metadata) throws IOException {
+        var parent = findParentDirectory(filePath, false);
+        parent.putEntry(getName(filePath), metadata);
+        dirtyDirectories.add(parent);
+        flushDirectories();
     }
 
-    @Override
-    public int deleteFile(String fileName) throws IOException {
-        return this.blockDevice.execWithLock(() -> this.unsafeDeleteFile(fileName));
+    // the last chunk, unless it is full, is written anew together with the new ones
+    private int unsafeAppendToCompressedFile(String fileName, FileMetadata file, byte[] bytes) throws IOException {
+        var fileSize = file.getFileSize();
+        var numChunks = getNumChunks(fileSize);
+        var firstChunk = fileSize / CompressedChunks.CHUNK_SIZE_BYTES;
+        var data = firstChunk < numChunks ? concat(readChunk(file, firstChunk), bytes) : bytes;
+        replaceChunks(fileName, file, firstChunk, numChunks, data, fileSize + bytes.length);
+        return 1;
     }
 
-    private int unsafeDeleteFile(String fileName) throws IOException {
-        if (!rootDir.isFileExists(fileName)) {
-            return -1;
+    // the chunks covering the range are decoded, changed and written anew
+    private void writeToCompressedFile(String filePath, FileMetadata file, byte[] bytes, int offset) throws IOException {
+        var chunkSize = CompressedChunks.CHUNK_SIZE_BYTES;
+        var firstChunk = offset / chunkSize;
+        var endChunk = (offset + bytes.length - 1) / chunkSize + 1;
+        var data = new byte[(int) (Math.min((long) endChunk * chunkSize, file.getFileSize()) - (long) firstChunk * chunkSize)];
+        for (int chunk = firstChunk; chunk < endChunk; chunk++) {
+            var chunkData = readChunk(file, chunk);
+            System.arraycopy(chunkData, 0, data, (chunk - firstChunk) * chunkSize, chunkData.length);
         }
+        System.arraycopy(bytes, 0, data, offset - firstChunk * chunkSize, bytes.length);
+        replaceChunks(filePath, file, firstChunk, endChunk, data, file.getFileSize());
+    }
 
-        var startingBlock = this.rootDir.getFileStartingBlock(fileName);
-        this.rootDir.removeFile(fileName);
-        flushRootDir();
+    // Writes data as the chunks from fromChunk on into new blocks, which take the place of the chunks from fromChunk
+    // to toChunk (exclusive) in the chain. The new blocks are linked in before the old ones are freed, in the same
+    // transaction, so the file holds either all old or all new chunks. The data goes out under the file's lock only.
+    private void replaceChunks(String filePath, FileMetadata file, int fromChunk, int toChunk, byte[] data, int newFileSize) throws IOException {
+        var startingBlockNumber = file.getStartingBlockNumber();
+        var numOldChunks = getNumChunks(file.getFileSize());
+        if (file.isShared()) {
+            // the links of the block before the replaced chunks and of their last block change
+            ensureExclusive(file, fromChunk == 0 ? 0 : getChunkPosition(file, fromChunk) - 1,
+                    getChunkPosition(file, Math.min(toChunk, numOldChunks)) - 1);
+        }
+        // the blocks around the replaced chunks, -1 where there are none
+        var previousBlock = fromChunk == 0 ? -1 : findNthBlockOfFile(startingBlockNumber, getChunkPosition(file, fromChunk) - 1);
+        var lastOldBlock = -1;
+        var nextBlock = -1;
+        if (toChunk < numOldChunks) {
+            var nextPosition = getChunkPosition(file, toChunk);
+            lastOldBlock = findNthBlockOfFile(startingBlockNumber, nextPosition - 1);
+            nextBlock = findNextConnectedBlock(lastOldBlock);
+        }
 
-        eraseBlocksToEndMarker(startingBlock);
+        var encoded = new ByteArrayOutputStream();
+        var numBlocks = new int[getNumChunks(data.length)];
+        for (int i = 0; i < numBlocks.length; i++) {
+            var chunkOffset = i * CompressedChunks.CHUNK_SIZE_BYTES;
+            var chunk = CompressedChunks.encode(data, chunkOffset, Math.min(CompressedChunks.CHUNK_SIZE_BYTES, data.length - chunkOffset), blockSizeBytes);
+            encoded.writeBytes(chunk);
+            numBlocks[i] = chunk.length / blockSizeBytes;
+        }
+        var bytes = encoded.toByteArray();
+        var extents = fileAllocationTable.allocateExtents(bytes.length / blockSizeBytes, previousBlock >= 0 ? previousBlock + 1 : -1);
+        writeBytesToExtents(extents, bytes, 0, false);
+        var firstNewBlock = extents.get(0).getStart();
+        var lastNewBlock = extents.get(extents.size() - 1).getEnd() - 1;
+
+        lockDirectoriesForWrite();
+        var firstOldBlock = fromChunk == numOldChunks ? -1 : previousBlock >= 0 ? fileAllocationTable.get(previousBlock) : startingBlockNumber;
+        if (nextBlock >= 0) {
+            fileAllocationTable.set(lastNewBlock, nextBlock);
+            storeFatEntries(lastNewBlock, 1);
+            // the old chunks are cut off the rest of the chain, so that erasing them stops there
+            fileAllocationTable.set(lastOldBlock, FileAllocationTable.END_OF_FILE);
+        }
+        var newStartingBlockNumber = startingBlockNumber;
+        if (previousBlock >= 0) {
+            fileAllocationTable.set(previousBlock, firstNewBlock);
+            storeFatEntries(previousBlock, 1);
+        } else {
+            newStartingBlockNumber = firstNewBlock;
+        }
 
-        return 1;
+        var index = startingBlockNumber >= 0 ? chunkIndexes.get(startingBlockNumber) : null;
+        if (firstOldBlock >= 0) {
+            eraseBlocksToEndMarker(firstOldBlock);
+        }
+        // the samples of the block index past the replaced chunks are stale
+        blockIndexes.remove(startingBlockNumber);
+        if (index != null) {
+            chunkIndexes.remove(startingBlockNumber);
+            if (toChunk - fromChunk == numBlocks.length) {
+                for (int i = 0; i < numBlocks.length; i++) {
+                    index.resize(fromChunk + i, numBlocks[i]);
+                }
+            } else {
+                index.truncate(fromChunk);
+            }
+            chunkIndexes.put(newStartingBlockNumber, index);
+        }
+        putFileEntry(filePath, file.withChain(newStartingBlockNumber, newFileSize));
     }
 
-    @Override
-    public List<String> listFiles() throws IOException {
-        return this.blockDevice.execWithLock(this::unsafeListFiles);
+    // decodes the chunks covering the range
+    private void readRangeOfCompressedFile(FileMetadata file, long offset, ByteBuffer dst) throws IOException {
+        var chunk = (int) (offset / CompressedChunks.CHUNK_SIZE_BYTES);
+        var offsetInChunk = (int) (offset % CompressedChunks.CHUNK_SIZE_BYTES);
+        while (dst.hasRemaining()) {
+            var data = readChunk(file, chunk++);
+            var length = Math.min(dst.remaining(), data.length - offsetInChunk);
+            dst.put(data, offsetInChunk, length);
+            offsetInChunk = 0;
+        }
     }
 
-    private List<String> unsafeListFiles() {
-        return this.rootDir.getFileNames();
+    private byte[] readChunk(FileMetadata file, int chunk) throws IOException {
+        var firstBlock = findNthBlockOfFile(file.getStartingBlockNumber(), getChunkPosition(file, chunk));
+        var header = readChunkHeader(firstBlock);
+        var stored = new byte[header.getInt(1)];
+        readBytesFromChain(firstBlock, CompressedChunks.HEADER_SIZE_BYTES, ByteBuffer.wrap(stored));
+        var chunkSize = (int) Math.min(CompressedChunks.CHUNK_SIZE_BYTES, file.getFileSize() - (long) chunk * CompressedChunks.CHUNK_SIZE_BYTES);
+        return CompressedChunks.decode(header.get(0), stored, chunkSize);
     }
 
-    @Override
-    public int moveFile(String oldFilePath, String newFilePath) throws IOException {
-        return this.blockDevice.execWithLock(() -> {
-            rootDir.move(oldFilePath, newFilePath);
-            flushRootDir();
-            return 1;
+    // the position of the chunk's first block in the file's chain, from the chunk headers before it
+    private int getChunkPosition(FileMetadata file, int chunk) throws IOException {
+        var startingBlock = file.getStartingBlockNumber();
+        var index = chunkIndexes.computeIfAbsent(startingBlock, block -> new ChunkIndex());
+        return index.getFirstBlock(chunk, position -> {
+            var header = readChunkHeader(findNthBlockOfFile(startingBlock, position));
+            return CompressedChunks.getNumBlocks(header.getInt(1), blockSizeBytes);
         });
     }
 
+    private ByteBuffer readChunkHeader(int firstBlock) throws IOException {
+        var header = ByteBuffer.allocate(CompressedChunks.HEADER_SIZE_BYTES);
+        readBytesFromChain(firstBlock, 0, header);
+        return header;
+    }
+
+    private static int getNumChunks(int fileSize) {
+        return (int) ((fileSize + (long) CompressedChunks.CHUNK_SIZE_BYTES - 1) / CompressedChunks.CHUNK_SIZE_BYTES);
+    }
+
     @Override
-    public void close() throws IOException {
-        blockDevice.close();
+    public int createFile(String filePath) throws IOException {
+        return timed("createFile", filePath, () -> execMutation(fileLocks.writeLocks(filePath), true, () -> this.unsafeCreateFile(filePath)));
     }
 
     @Override
-    public Optional<byte[]> readFile(String fileName) throws IOException {
-        return this.blockDevice.execWithLock(() -> this.unsafeReadFile(fileName));
+    public int createCompressedFile(String filePath) throws IOException {
+        return timed("createCompressedFile", filePath, () -> execMutation(fileLocks.writeLocks(filePath), true, () -> this.unsafeCreateFile(filePath, true)));
     }
 
-    public Optional<byte[]> unsafeReadFile(String fileName) throws IOException {
-            if (!rootDir.isFileExists(fileName)) {
-                return Optional.empty();
-            }
+    private int unsafeCreateFile(String filePath) throws IOException {
+        return unsafeCreateFile(filePath, false);
+    }
+
+    // directories on the path are created as needed
+    private int unsafeCreateFile(String filePath, boolean compressed) throws IOException {
+        var name = getName(filePath);
+        var parent = findParentDirectory(filePath, true);
+        if (parent == null || name.isEmpty()) {
+            flushDirectories();
+            return -1;
+        }
+        var existing = parent.getFileMetadata(name);
+        if (existing.isPresent() && existing.get().getType() == FileType.DIR) {
+            flushDirectories();
+            return -1;
+        }
+
+        parent.putEntry(name, new FileMetadata(FileType.FILE, -1, 0, compressed));
+        dirtyDirectories.add(parent);
+        flushDirectories();
+        // an existing file is emptied
+        if (existing.isPresent()) {
+            eraseFile(existing.get());
+        }
+        return 1;
+    }
 
-            var nextBlockNumber = rootDir.getFileStartingBlock(fileName);
-            var fileSize = rootDir.getFileSize(fileName);
-            if (fileSize == 0) {
-                return Optional.of(new byte[0]);
+    @Override
+    public int writeToFileFromOffset(String filePath, byte[] bytes, int offset) throws IOException {
+        return timed("writeToFileFromOffset", filePath, () -> execMutation(fileLocks.writeLocks(filePath), false, () -> {
+            var file = readDirectories(() -> findFileMetadata(filePath));
+            if (file == null) {
+                return -1;
             }
 
-            ByteBuffer bb = ByteBuffer.allocate(fileSize);
-            int bytesSeen = 0;
+            if (offset < 0 || offset + bytes.length > file.getFileSize()) {
+                return -1;
+            }
+            if (bytes.length == 0) {
+                return 1;
+            }
+            if (file.isInline()) {
+                var inlineData = file.getInlineData().clone();
+                System.arraycopy(bytes, 0, inlineData, offset, bytes.length);
+                lockDirectoriesForWrite();
+                putFileEntry(filePath, new FileMetadata(inlineData));
+                return 1;
+            }
+            if (file.isCompressed()) {
+                writeToCompressedFile(filePath, file, bytes, offset);
+                return 1;
+            }
 
-            while (bytesSeen < fileSize) {
-                var block = blockDevice.readBlock(superblock.getDataRegionOffset() + BLOCK_SIZE_BYTES * nextBlockNumber, BLOCK_SIZE_BYTES);
-                if (bytesSeen + BLOCK_SIZE_BYTES <= bb.limit()) {
-                    bb.put(block);
-                } else {
-                    // if end of file, need to truncate
-                    int newLength = bb.limit() - bytesSeen;
-                    byte[] truncated = new byte[newLength];
-                    System.arraycopy(block, 0, truncated, 0, newLength);
-                    bb.put(truncated);
+            var chainSize = getChainSize(file);
+            if (offset + bytes.length > chainSize) {
+                // the bytes past the chain replace those of the packed tail, in place like the others
+                var tailStart = Math.max(offset, chainSize);
+                storeBytes(getTailDeviceOffset(file) + tailStart - chainSize, bytes, tailStart - offset, offset + bytes.length - tailStart);
+                if (offset >= chainSize) {
+                    return 1;
                 }
-
-                nextBlockNumber = findNextConnectedBlock(nextBlockNumber);
-                bytesSeen += BLOCK_SIZE_BYTES;
             }
+            var chainBytes = offset + bytes.length > chainSize ? Arrays.copyOf(bytes, chainSize - offset) : bytes;
+
+            var inBlockOffset = offset % blockSizeBytes;
+            var blockOrdinalNumber = offset / blockSizeBytes;
+            ensureExclusive(file, blockOrdinalNumber, (offset + chainBytes.length - 1) / blockSizeBytes);
+            var blockNumber = findNthBlockOfFile(file.getStartingBlockNumber(), blockOrdinalNumber);
 
-            return Optional.of(bb.array());
+            overwriteBytesInChain(blockNumber, inBlockOffset, chainBytes, false);
+            return 1;
+        }));
     }
 
+    // Only the directories along the prefix and below the matching entries are visited. Within a directory,
+    // the entries starting with the last component of the prefix are looked up in its sorted index.
     @Override
-    public long getFreeSpaceBytes() throws IOException {
-        return this.blockDevice.execWithLock(() -> {
-            return this.superblock.getMaxAddressableSpaceBytes() - this.rootDir.getDirSizeBytes();
-        });
+    public List<String> listFilesUnderPrefix(String prefix) throws IOException {
+        return timed("listFilesUnderPrefix", prefix, () -> execWithFileLocks(List.of(), () -> readDirectories(() -> {
+            var files = new ArrayList<String>();
+            var parent = findParentDirectory(prefix, false);
+            if (parent != null) {
+                var parentPath = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+                collectFiles(parent, parentPath, getName(prefix), files);
+            }
+            return files;
+        })));
     }
 
-    private int writeBytesToDevice(int firstBlock, byte[] bytes, boolean overwrite, int offsetInBlock) throws IOException {
-        var currentBlockNumber = firstBlock;
-        var bytesLeft = bytes.length;
-        var sourceDataOffset = 0;
-        var inBlockOffset = offsetInBlock;
+    @Override
+    public int deleteFile(String fileName) throws IOException {
+        return timed("deleteFile", fileName, () -> execMutation(fileLocks.writeLocks(fileName), true, () -> this.unsafeDeleteFile(fileName)));
+    }
 
-        if (offsetInBlock >= BLOCK_SIZE_BYTES) {
-            throw new RuntimeException("offset cannot be bigger than the block size");
+    // deletes a file or an empty directory
+    private int unsafeDeleteFile(String fileName) throws IOException {
+        var parent = findParentDirectory(fileName, false);
+        if (parent == null) {
+            return -1;
+        }
+        var name = getName(fileName);
+        var entryOpt = parent.getFileMetadata(name);
+        if (entryOpt.isEmpty()) {
+            return -1;
         }
 
-        while (bytesLeft > 0) {
-            var nextFreeBlock = -1;
-            if (bytesLeft > BLOCK_SIZE_BYTES) {
-                if (overwrite) {
-                    nextFreeBlock = findNextBlockSameFileOrAllocateNew(currentBlockNumber);
-                } else {
-                    nextFreeBlock = findFirstFreeBlockFromExclusive(currentBlockNumber);
-                }
-                fileAllocationTable[currentBlockNumber] = nextFreeBlock;
-                var fatPointerBytes = ByteBuffer.allocate(4).putInt(nextFreeBlock).array();
-                blockDevice.storeBlock(superblock.getFileAllocationTableOffset() + FAT_ADDR_SIZE_BYTES * currentBlockNumber, fatPointerBytes);
-            } else {
-                fileAllocationTable[currentBlockNumber] = 0; // denote end of file
-                blockDevice.storeBlock(superblock.getFileAllocationTableOffset() + FAT_ADDR_SIZE_BYTES * currentBlockNumber, END_MARKER_BYTES);
+        var entry = entryOpt.get();
+        if (entry.getType() == FileType.DIR) {
+            var dir = loadDirectory(entry.getStartingBlockNumber());
+            if (!dir.isEmpty()) {
+                return -1;
             }
+            loadedDirectories.remove(dir.getStartingBlockNumber());
+            dirtyDirectories.remove(dir);
+        }
 
-            var dataBlockOffset = superblock.getDataRegionOffset() + BLOCK_SIZE_BYTES * currentBlockNumber;
-            var bytesToWrite = BLOCK_SIZE_BYTES - inBlockOffset;
-            blockDevice.storeBlock(dataBlockOffset + inBlockOffset, Arrays.copyOfRange(bytes, sourceDataOffset, Math.min(sourceDataOffset + BLOCK_SIZE_BYTES, bytes.length) - inBlockOffset));
-            inBlockOffset = 0; // always zero after the first usage
-
-            bytesLeft -= bytesToWrite;
-            sourceDataOffset += bytesToWrite;
+        parent.removeFile(name);
+        dirtyDirectories.add(parent);
+        flushDirectories();
 
-            if (nextFreeBlock >= 0) {
-                currentBlockNumber = nextFreeBlock;
-            }
-        }
+        eraseFile(entry);
 
         return 1;
     }
 
-    private int eraseBlocksToEndMarker(int startingBlock) throws IOException {
-        var currBlock = startingBlock;
-        while (currBlock >= 0 && fileAllocationTable[currBlock] >= 0) {
-            var nextBlock = findNextConnectedBlock(currBlock);
-            fileAllocationTable[currBlock] = -1;
-            blockDevice.storeBlock(superblock.getFileAllocationTableOffset() + FAT_ADDR_SIZE_BYTES * currBlock, FREE_MARKER_BYTES);
-            currBlock = nextBlock;
-        }
-        return currBlock;
+    @Override
+    public List<String> listFiles() throws IOException {
+        return timed("listFiles", null, () -> execWithFileLocks(List.of(), () -> readDirectories(this::unsafeListFiles)));
     }
 
-    private int dropRootDir() throws IOException {
-        return eraseBlocksToEndMarker(this.rootDir.getStartingBlockNumber());
+    private List<String> unsafeListFiles() throws IOException {
+        var files = new ArrayList<String>();
+        collectFiles(rootDir, "", "", files);
+        return files;
     }
 
-    private int flushRootDir() throws IOException {
-        dropRootDir();
-        var currentFreeBlockNumber = rootDir.getStartingBlockNumber();
-        var serializedDirBytes = rootDir.toBytes();
-        writeBytesToDevice(currentFreeBlockNumber, serializedDirBytes, false, 0);
-        return 1;
+    // Moves a file or a whole directory, which only changes the entries in the old and the new parent.
+    // An existing file at the new path is replaced. Moving a directory changes the paths of all files under it,
+    // so it takes all file locks; if the entry turns out to be of the other type once locked, the move is retried.
+    @Override
+    public int moveFile(String oldFilePath, String newFilePath) throws IOException {
+        return timed("moveFile", oldFilePath, () -> {
+            while (true) {
+                var movesDirectory = execWithFileLocks(List.of(), () -> readDirectories(() -> isDirectory(oldFilePath)));
+                var locks = movesDirectory ? fileLocks.allWriteLocks() : fileLocks.writeLocks(oldFilePath, newFilePath);
+                var result = execMutation(locks, true, () -> isDirectory(oldFilePath) == movesDirectory
+                        ? unsafeMoveFile(oldFilePath, newFilePath)
+                        : null);
+                if (result != null) {
+                    return result;
+                }
+            }
+        });
     }
 
-    private int findFirstFreeBlockFromExclusive(int from) {
-        // fixme: starting point inclusive/exclusive?
-        for (int i = from + 1; i < fileAllocationTable.length; i++) {
-            if (fileAllocationTable[i] == -1) {
-                return i;
-            }
+    private Integer unsafeMoveFile(String oldFilePath, String newFilePath) throws IOException {
+        var oldParent = findParentDirectory(oldFilePath, false);
+        var oldName = getName(oldFilePath);
+        var entryOpt = oldParent == null ? Optional.<FileMetadata>empty() : oldParent.getFileMetadata(oldName);
+        if (entryOpt.isEmpty() || getName(newFilePath).isEmpty()) {
+            return -1;
+        }
+        var entry = entryOpt.get();
+        if (entry.getType() == FileType.DIR && newFilePath.startsWith(oldFilePath + "/")) {
+            return -1;
         }
 
-        throw new RuntimeException("no free space left");
-    }
+        var newParent = findParentDirectory(newFilePath, true);
+        var newName = getName(newFilePath);
+        if (newParent == null) {
+            flushDirectories();
+            return -1;
+        }
+        var replaced = newParent.getFileMetadata(newName);
+        if (replaced.isPresent() && (replaced.get().getType() == FileType.DIR || entry.getType() == FileType.DIR)) {
+            flushDirectories();
+            return -1;
+        }
 
-    private int findFirstFreeBlockFromInclusive(int from) {
-        // fixme: starting point inclusive/exclusive?
-        for (int i = from; i < fileAllocationTable.length; i++) {
-            if (fileAllocationTable[i] == -1) {
-                return i;
-            }
+        oldParent.removeFile(oldName);
+        newParent.putEntry(newName, entry);
+        dirtyDirectories.add(oldParent);
+        dirtyDirectories.add(newParent);
+        flushDirectories();
+        if (replaced.isPresent() && (replaced.get().getStartingBlockNumber() != entry.getStartingBlockNumber()
+                || replaced.get().getTailBlock() != entry.getTailBlock() || replaced.get().getTailOffset() != entry.getTailOffset())) {
+            eraseFile(replaced.get());
         }
+        return 1;
+    }
 
-        throw new RuntimeException("no free space left");
+    // The index goes into a chain of its own on close, which the superblock points at, so that the next mount finds
+    // duplicates of the data written before. Both are written in one transaction. Without a journal, the FAT entries
+    // of the chain are written before the superblock. Without enough free blocks the index is lost.
+    private int saveDeduplicationIndex() throws IOException {
+        var hashes = deduplicationIndex.getContentHashes();
+        var bytes = ByteBuffer.allocate(2 * Integer.BYTES + hashes.size() * (Integer.BYTES + Long.BYTES));
+        bytes.putInt(DEDUPLICATION_INDEX_MAGIC).putInt(hashes.size());
+        hashes.forEach((block, hash) -> bytes.putInt(block).putLong(hash));
+        var numBlocks = (bytes.capacity() + blockSizeBytes - 1) / blockSizeBytes;
+        if (fileAllocationTable.getNumAllocatableBlocks() < numBlocks) {
+            return 0;
+        }
+        var extents = fileAllocationTable.allocateExtents(numBlocks, -1);
+        writeBytesToExtents(extents, bytes.array(), 0, false);
+        flushFatEntries();
+        superblock = superblock.withDeduplicationIndexBlock(extents.get(0).getStart());
+        storeMetadata(0, superblock.toBytes(), 0, Superblock.SUPERBLOCK_SIZE_BYTES);
+        return 1;
     }
 
-    private int findNthBlockInFile(int startingBlock, int n) {
-        var currBlock = startingBlock;
-        for (int i = 0; i < n; i++) {
-            if (fileAllocationTable[currBlock] < 0) {
-                throw new RuntimeException("unexpected end of file");
+    // The saved index describes the container as it was closed, so it is dropped from the container on every mount,
+    // whether it is used or not. Its entries are still only hints: every block found through it is compared first.
+    private int loadDeduplicationIndex() throws IOException {
+        var indexBlock = superblock.getDeduplicationIndexBlock();
+        if (deduplication) {
+            var bytes = ByteBuffer.wrap(readChain(indexBlock));
+            if (bytes.getInt() == DEDUPLICATION_INDEX_MAGIC) {
+                var numEntries = bytes.getInt();
+                for (int i = 0; i < numEntries; i++) {
+                    var block = bytes.getInt();
+                    var hash = bytes.getLong();
+                    if (block > 0 && block < fileAllocationTable.size() && !fileAllocationTable.isFree(block)) {
+                        deduplicationIndex.index(block, hash, fileAllocationTable.get(block));
+                    }
+                }
             }
-            currBlock = fileAllocationTable[currBlock];
         }
+        eraseBlocksToEndMarker(indexBlock);
+        superblock = superblock.withDeduplicationIndexBlock(-1);
+        storeMetadata(0, superblock.toBytes(), 0, Superblock.SUPERBLOCK_SIZE_BYTES);
+        return 1;
+    }
 
-        return currBlock;
+    private boolean isDirectory(String path) throws IOException {
+        var parent = findParentDirectory(path, false);
+        var entry = parent == null ? Optional.<FileMetadata>empty() : parent.getFileMetadata(getName(path));
+        return entry.isPresent() && entry.get().getType() == FileType.DIR;
     }
 
-    private int findNextBlockSameFileOrAllocateNew(int from) {
-        if (fileAllocationTable[from] > 0) {
-            return fileAllocationTable[from];
+    @Override
+    public void close() throws IOException {
+        try {
+            if (deduplication && deduplicationIndex.getNumIndexedBlocks() > 0) {
+                execMutation(fileLocks.allWriteLocks(), true, this::saveDeduplicationIndex);
+            }
+            if (journal != null) {
+                journal.close();
+            }
+        } finally {
+            // a journal that failed a commit fails to close too, the device is released anyway
+            blockDevice.close();
         }
+    }
 
-        if (fileAllocationTable[from] == 0) {
-            var nextFreeBlock = findFirstFreeBlockFromExclusive(from);
-            fileAllocationTable[from] = nextFreeBlock;
-            return nextFreeBlock;
-        }
+    public Journal getJournal() {
+        return journal;
+    }
 
-        return findFirstFreeBlockFromExclusive(from);
+    // the device as mounted, without the metering on top
+    public BlockDevice getBlockDevice() {
+        return blockDevice.getBlockDevice();
     }
 
-    private int findNextConnectedBlock(int from) {
-        if (fileAllocationTable[from] > 0) {
-            return fileAllocationTable[from];
-        }
+    public FileSystemMetrics getMetrics() {
+        return metrics;
+    }
 
-        return -1;
+    @Override
+    public Optional<byte[]> readFile(String fileName) throws IOException {
+        return timed("readFile", fileName, () -> execWithFileLocks(fileLocks.readLocks(fileName), () -> this.unsafeReadFile(fileName)));
     }
 
-    private static int calculateNumFatEntries(long deviceSize) {
-        var dataRegionSize = (deviceSize * 0.8);
-        return (int) Math.ceil(dataRegionSize / BLOCK_SIZE_BYTES);
+    public Optional<byte[]> unsafeReadFile(String fileName) throws IOException {
+            var file = readDirectories(() -> findFileMetadata(fileName));
+            if (file == null) {
+                return Optional.empty();
+            }
+            if (file.isInline()) {
+                return Optional.of(file.getInlineData().clone());
+            }
+
+            var startingBlockNumber = file.getStartingBlockNumber();
+            var fileSize = file.getFileSize();
+            var bytes = new byte[fileSize];
+            if (file.isCompressed() || file.hasPackedTail()) {
+                readRangeOfFile(file, 0, ByteBuffer.wrap(bytes));
+            } else if (fileSize > 0) {
+                readBytesFromChain(startingBlockNumber, 0, ByteBuffer.wrap(bytes));
+            }
+
+            return Optional.of(bytes);
     }
 
-    private static byte[] fatToByteArray(int[] fat) {
-        ByteBuffer bb = ByteBuffer.allocate(FAT_ADDR_SIZE_BYTES * fat.length);
-        bb.asIntBuffer().put(fat);
-        return bb.array();
+    // Only the blocks covering the range are read, the first one found through the file's block index.
+    @Override
+    public Optional<byte[]> readFileRange(String fileName, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length cannot be negative");
+        }
+        return timed("readFileRange", fileName, () -> execWithFileLocks(fileLocks.readLocks(fileName), () -> {
+            var file = readDirectories(() -> findFileMetadata(fileName));
+            if (file == null) {
+                return Optional.empty();
+            }
+            var bytes = new byte[(int) Math.max(0, Math.min(length, file.getFileSize() - offset))];
+            readRangeOfFile(file, offset, ByteBuffer.wrap(bytes));
+            return Optional.of(bytes);
+        }));
     }
 
-    private static int[] fatFromByteArray(byte[] fat) {
-        IntBuffer intBuf =
-                ByteBuffer.wrap(fat)
-                        .order(ByteOrder.BIG_ENDIAN)
-                        .asIntBuffer();
+    @Override
+    public int readFileRange(String fileName, long offset, ByteBuffer dst) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset cannot be negative");
+        }
+        return timed("readFileRange", fileName, () -> execWithFileLocks(fileLocks.readLocks(fileName), () -> {
+            var file = readDirectories(() -> findFileMetadata(fileName));
+            if (file == null) {
+                throw new NoSuchFileException(fileName);
+            }
+            if (offset >= file.getFileSize()) {
+                return -1;
+            }
+            var bytesToRead = (int) Math.min(dst.remaining(), file.getFileSize() - offset);
+            readRangeOfFile(file, offset, dst.slice(dst.position(), bytesToRead));
+            dst.position(dst.position() + bytesToRead);
+            return bytesToRead;
+        }));
+    }
 
+    // fills dst with the bytes of the file from the offset
+    private void readRangeOfFile(FileMetadata file, long offset, ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return;
+        }
+        if (file.isInline()) {
+            dst.put(file.getInlineData(), (int) offset, dst.remaining());
+            return;
+        }
+        if (file.isCompressed()) {
+            readRangeOfCompressedFile(file, offset, dst);
+            return;
+        }
+        var chainSize = getChainSize(file);
+        var position = offset;
+        if (position < chainSize) {
+            var length = (int) Math.min(dst.remaining(), chainSize - position);
+            var blockNumber = findNthBlockOfFile(file.getStartingBlockNumber(), (int) (position / blockSizeBytes));
+            readBytesFromChain(blockNumber, (int) (position % blockSizeBytes), dst.slice(dst.position(), length));
+            dst.position(dst.position() + length);
+            position += length;
+        }
+        if (dst.hasRemaining()) {
+            readTail(file, (int) (position - chainSize), dst);
+        }
+    }
 
-        int[] array = new int[intBuf.limit()];
-        intBuf.get(array, 0, intBuf.limit());
+    // Every run of contiguous blocks goes to the channel with a single transfer of the device, which for a container
+    // file hands the copy to the kernel. A fragmented chain falls back to a transfer per run, down to single blocks.
+    @Override
+    public long exportFile(String filePath, WritableByteChannel target) throws IOException {
+        return timed("exportFile", filePath, () -> execWithFileLocks(fileLocks.readLocks(filePath), () -> {
+            var file = readDirectories(() -> findFileMetadata(filePath));
+            if (file == null) {
+                throw new NoSuchFileException(filePath);
+            }
+            if (file.isInline()) {
+                var buffer = ByteBuffer.wrap(file.getInlineData());
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                return (long) file.getFileSize();
+            }
+            if (file.isCompressed()) {
+                // a chunk at a time
+                for (int chunk = 0; chunk < getNumChunks(file.getFileSize()); chunk++) {
+                    var buffer = ByteBuffer.wrap(readChunk(file, chunk));
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                }
+                return (long) file.getFileSize();
+            }
 
-        return array;
+            var bytesLeft = (long) getChainSize(file);
+            var currentBlockNumber = file.getStartingBlockNumber();
+            while (bytesLeft > 0) {
+                var runStart = currentBlockNumber;
+                var runBytes = (long) blockSizeBytes;
+                while (runBytes < bytesLeft && fileAllocationTable.get(currentBlockNumber) == currentBlockNumber + 1) {
+                    currentBlockNumber++;
+                    runBytes += blockSizeBytes;
+                }
+                var bytesToTransfer = Math.min(runBytes, bytesLeft);
+                blockDevice.transferTo(getDataBlockOffset(runStart), bytesToTransfer, target);
+                bytesLeft -= bytesToTransfer;
+
+                if (bytesLeft > 0) {
+                    currentBlockNumber = findNextConnectedBlock(currentBlockNumber);
+                    if (currentBlockNumber < 0) {
+                        throw new RuntimeException("unexpected end of file");
+                    }
+                }
+            }
+            if (file.hasPackedTail()) {
+                var buffer = ByteBuffer.allocate(getPackedTailSize(file));
+                readTail(file, 0, buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            return (long) file.getFileSize();
+        }));
     }
 
-    private Directory restoreDirFromDisk() throws IOException {
-        ByteArrayOutputStream bas = new ByteArrayOutputStream();
-        var nextBlockNum = 0;
-        while (nextBlockNum >= 0) {
-            bas.write(blockDevice.readBlock(superblock.getDataRegionOffset() + BLOCK_SIZE_BYTES * nextBlockNum, BLOCK_SIZE_BYTES));
-            nextBlockNum = findNextConnectedBlock(nextBlockNum);
+    // The blocks for the whole size are allocated up front, as few runs as possible, and each run is filled with
+    // a single transfer of the device. Like an append, the data goes in under the file's lock only, and the directory
+    // lock is taken for the new entry at the end. A file small enough to be inline is read into its entry instead.
+    @Override
+    public int importFile(String filePath, ReadableByteChannel src, long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("file size must be from 0 to " + Integer.MAX_VALUE);
         }
-        bas.flush();
-        return Directory.fromBytes(bas.toByteArray());
+        return timed("importFile", filePath, () -> execMutation(fileLocks.writeLocks(filePath), false, () -> {
+            if (size > 0 && size <= MAX_INLINE_FILE_BYTES) {
+                return unsafeImportInlineFile(filePath, src, (int) size);
+            }
+            var numBlocks = (int) ((size + blockSizeBytes - 1) / blockSizeBytes);
+            var extents = numBlocks > 0 ? fileAllocationTable.allocateExtents(numBlocks, -1) : List.<FileAllocationTable.Extent>of();
+            var bytesLeft = size;
+            try {
+                for (FileAllocationTable.Extent extent : extents) {
+                    var bytesToTransfer = Math.min((long) extent.getLength() * blockSizeBytes, bytesLeft);
+                    var transferred = blockDevice.transferFrom(src, getDataBlockOffset(extent.getStart()), bytesToTransfer);
+                    bytesLeft -= transferred;
+                    if (transferred < bytesToTransfer) {
+                        throw new EOFException("the channel ended after " + (size - bytesLeft) + " of " + size + " bytes");
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                freeExtents(extents);
+                throw e;
+            }
+
+            lockDirectoriesForWrite();
+            if (unsafeCreateFile(filePath) < 0) {
+                freeExtents(extents);
+                return -1;
+            }
+            for (FileAllocationTable.Extent extent : extents) {
+                storeFatEntries(extent.getStart(), extent.getLength());
+            }
+            var parent = findParentDirectory(filePath, false);
+            parent.addFile(getName(filePath), extents.isEmpty() ? -1 : extents.get(0).getStart(), (int) size);
+            dirtyDirectories.add(parent);
+            flushDirectories();
+            return 1;
+        }));
     }
 
-    private int getLastFreeBlockNum() {
-        var lastFreeBlockNum = -1;
-        for (int i = fileAllocationTable.length - 1; i >= 0; i--) {
-            if (fileAllocationTable[i] != -1) {
-                break;
+    private int unsafeImportInlineFile(String filePath, ReadableByteChannel src, int size) throws IOException {
+        var inlineData = new byte[size];
+        var buffer = ByteBuffer.wrap(inlineData);
+        while (buffer.hasRemaining()) {
+            if (src.read(buffer) < 0) {
+                throw new EOFException("the channel ended after " + buffer.position() + " of " + size + " bytes");
             }
+        }
 
-            lastFreeBlockNum = i;
+        lockDirectoriesForWrite();
+        if (unsafeCreateFile(filePath) < 0) {
+            return -1;
         }
+        putFileEntry(filePath, new FileMetadata(inlineData));
+        return 1;
+    }
 
-        return lastFreeBlockNum;
+    // blocks allocated in memory only
+    private void freeExtents(List<FileAllocationTable.Extent> extents) {
+        for (FileAllocationTable.Extent extent : extents) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                fileAllocationTable.set(block, FileAllocationTable.FREE);
+            }
+        }
+    }
+
+    // Like readFile, but the file is read in pieces of CONCURRENT_READ_PIECE_BYTES at the same time, by the calling
+    // thread and up to MAX_CONCURRENT_PIECE_READS - 1 tasks of the executor. The pieces are claimed one by one, so the
+    // calling thread never waits for a task that has not started, and it holds the file's lock until every claimed piece is read.
+    Optional<byte[]> readFileConcurrently(String fileName, Executor executor) throws IOException {
+        return timed("readFile", fileName, () -> execWithFileLocks(fileLocks.readLocks(fileName), () -> {
+            var file = readDirectories(() -> findFileMetadata(fileName));
+            if (file == null) {
+                return Optional.empty();
+            }
+            if (file.isInline()) {
+                return Optional.of(file.getInlineData().clone());
+            }
+            if (file.isCompressed()) {
+                var bytes = new byte[file.getFileSize()];
+                readRangeOfFile(file, 0, ByteBuffer.wrap(bytes));
+                return Optional.of(bytes);
+            }
+
+            var bytes = new byte[file.getFileSize()];
+            // the pieces cover the chain, the packed tail is read at the end
+            var chainSize = getChainSize(file);
+            var pieceBlocks = Math.max(1, CONCURRENT_READ_PIECE_BYTES / blockSizeBytes);
+            var pieceSize = pieceBlocks * blockSizeBytes;
+            var numPieces = (chainSize + pieceSize - 1) / pieceSize;
+            if (numPieces <= 1) {
+                readRangeOfFile(file, 0, ByteBuffer.wrap(bytes));
+                return Optional.of(bytes);
+            }
+
+            // the first block of every piece, with a single walk of the chain
+            var pieceStartBlocks = new int[numPieces];
+            pieceStartBlocks[0] = file.getStartingBlockNumber();
+            for (int i = 1; i < numPieces; i++) {
+                pieceStartBlocks[i] = findNthBlockInFile(pieceStartBlocks[i - 1], pieceBlocks);
+            }
+
+            var nextPiece = new AtomicInteger();
+            var piecesLeft = new CountDownLatch(numPieces);
+            var failure = new AtomicReference<Throwable>();
+            Runnable readPieces = () -> {
+                int piece;
+                while ((piece = nextPiece.getAndIncrement()) < numPieces) {
+                    try {
+                        if (failure.get() == null) {
+                            var offset = piece * pieceSize;
+                            var length = Math.min(pieceSize, chainSize - offset);
+                            readBytesFromChain(pieceStartBlocks[piece], 0, ByteBuffer.wrap(bytes, offset, length));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        piecesLeft.countDown();
+                    }
+                }
+            };
+            try {
+                for (int i = 1; i < Math.min(numPieces, MAX_CONCURRENT_PIECE_READS); i++) {
+                    executor.execute(readPieces);
+                }
+            } catch (RejectedExecutionException e) {
+                // the calling thread reads the rest
+            }
+            readPieces.run();
+
+            // the pieces still being read by the executor must be done before the lock is released, so the wait is not interruptible
+            var interrupted = false;
+            while (true) {
+                try {
+                    piecesLeft.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure.get() instanceof IOException e) {
+                throw e;
+            } else if (failure.get() != null) {
+                throw new IOException("reading " + fileName + " failed", failure.get());
+            }
+            if (file.hasPackedTail()) {
+                readTail(file, 0, ByteBuffer.wrap(bytes, chainSize, bytes.length - chainSize));
+            }
+            return Optional.of(bytes);
+        }));
+    }
+
+    @Override
+    public SeekableByteChannel openForRead(String filePath) throws IOException {
+        return execWithFileLocks(fileLocks.readLocks(filePath), () -> {
+            var file = readDirectories(() -> findFileMetadata(filePath));
+            if (file == null) {
+                throw new NoSuchFileException(filePath);
+            }
+            return new FileReadChannel(this, filePath, new ChainCursor(file.getStartingBlockNumber()));
+        });
+    }
+
+    // Reads up to dst.remaining() bytes of the file from the given position for FileReadChannel, returns -1 at the end.
+    // Each call takes the file's lock on its own, so a file being read does not block writers between reads.
+    // The cursor remembers the block reached by the previous read, so that sequential reads do not walk the chain from the start.
+    int readFromFile(String filePath, ChainCursor cursor, long position, ByteBuffer dst) throws IOException {
+        return execWithFileLocks(fileLocks.readLocks(filePath), () -> {
+            var file = readDirectories(() -> getOpenFile(filePath, cursor));
+            if (position >= file.getFileSize()) {
+                return -1;
+            }
+            var bytesToRead = (int) Math.min(dst.remaining(), file.getFileSize() - position);
+            if (bytesToRead == 0) {
+                return 0;
+            }
+            if (file.isInline()) {
+                dst.put(file.getInlineData(), (int) position, bytesToRead);
+                return bytesToRead;
+            }
+            if (file.isCompressed() || (file.hasPackedTail() && position + bytesToRead > getChainSize(file))) {
+                // the packed tail is read from the file's entry, the cursor is for the chain only
+                readRangeOfFile(file, position, dst.slice(dst.position(), bytesToRead));
+                dst.position(dst.position() + bytesToRead);
+                return bytesToRead;
+            }
+
+            var blockOrdinalNumber = (int) (position / blockSizeBytes);
+            int blockNumber;
+            if (cursor.blockNumber >= 0 && cursor.freeGeneration == freeGeneration
+                    && blockOrdinalNumber >= cursor.blockOrdinalNumber && blockOrdinalNumber - cursor.blockOrdinalNumber < BLOCK_INDEX_INTERVAL) {
+                blockNumber = findNthBlockInFile(cursor.blockNumber, blockOrdinalNumber - cursor.blockOrdinalNumber);
+            } else {
+                blockNumber = findNthBlockOfFile(cursor.startingBlockNumber, blockOrdinalNumber);
+            }
+
+            var lastBlockNumber = readBytesFromChain(blockNumber, (int) (position % blockSizeBytes), dst.slice(dst.position(), bytesToRead));
+            dst.position(dst.position() + bytesToRead);
+            cursor.blockOrdinalNumber = (int) ((position + bytesToRead - 1) / blockSizeBytes);
+            cursor.blockNumber = lastBlockNumber;
+            cursor.freeGeneration = freeGeneration;
+            return bytesToRead;
+        });
+    }
+
+    long getFileSize(String filePath, ChainCursor cursor) throws IOException {
+        return execWithFileLocks(fileLocks.readLocks(filePath), () -> readDirectories(() -> (long) getOpenFile(filePath, cursor).getFileSize()));
+    }
+
+    // the file an open channel reads from, which must still be the one it was opened for
+    private FileMetadata getOpenFile(String filePath, ChainCursor cursor) throws IOException {
+        var file = findFileMetadata(filePath);
+        if (file != null && cursor.startingBlockNumber < 0 && file.getStartingBlockNumber() >= 0) {
+            // the file was empty when it was opened and has been written to since
+            cursor.startingBlockNumber = file.getStartingBlockNumber();
+        }
+        if (file != null && file.isCompressed()) {
+            // writing the first chunk anew moves the start of the chain, only a deleted file is noticed
+            cursor.startingBlockNumber = file.getStartingBlockNumber();
+        }
+        if (file == null || file.getStartingBlockNumber() != cursor.startingBlockNumber) {
+            throw new IOException("file " + filePath + " has been deleted or replaced");
+        }
+        return file;
+    }
+
+    @Override
+    public FileWriteChannel openForWrite(String filePath, WriteMode mode) throws IOException {
+        // opening an existing file writes nothing
+        var session = mode == WriteMode.TRUNCATE
+                ? null
+                : execWithFileLocks(fileLocks.writeLocks(filePath), () -> readDirectories(() -> startWriteSession(filePath)));
+        if (session == null) {
+            session = execMutation(fileLocks.writeLocks(filePath), true, () -> {
+                var file = findFileMetadata(filePath);
+                if (file != null && file.isCompressed()) {
+                    throw new IOException("compressed file " + filePath + " cannot be written through a channel");
+                }
+                if (mode != WriteMode.TRUNCATE && file != null && file.hasPackedTail()) {
+                    // and so does a packed tail, to a block at the end of the chain
+                    file = unpackTail(filePath, file);
+                }
+                if (mode != WriteMode.TRUNCATE && file != null && file.isInline()) {
+                    // a channel writes to blocks, so the data of an inline file moves to a chain of its own first
+                    var startingBlockNumber = writeBytesToNewChain(file.getInlineData(), -1);
+                    putFileEntry(filePath, new FileMetadata(FileType.FILE, startingBlockNumber, file.getFileSize()));
+                } else if (mode != WriteMode.TRUNCATE && file != null && file.isShared()) {
+                    // a channel writes in place without looking at the blocks, so none of them may be shared
+                    ensureExclusive(file, 1, Math.max(0, file.getFileSize() - 1) / blockSizeBytes);
+                    putFileEntry(filePath, file.withShared(false));
+                } else if (mode == WriteMode.TRUNCATE || file == null) {
+                    if (unsafeCreateFile(filePath) < 0) {
+                        throw new IOException("cannot create file " + filePath);
+                    }
+                }
+                return startWriteSession(filePath);
+            });
+        }
+        return new FileWriteChannel(this, session, mode == WriteMode.APPEND ? session.size : 0);
+    }
+
+    // returns null if there is no file at the path, its data is inline, its tail packed or its chain may be shared
+    private WriteSession startWriteSession(String filePath) throws IOException {
+        var file = findFileMetadata(filePath);
+        if (file == null || file.isInline() || file.hasPackedTail() || file.isShared()) {
+            return null;
+        }
+        if (file.isCompressed()) {
+            throw new IOException("compressed file " + filePath + " cannot be written through a channel");
+        }
+        var lastBlockNumber = file.getFileSize() == 0
+                ? -1
+                : findNthBlockOfFile(file.getStartingBlockNumber(), (file.getFileSize() - 1) / blockSizeBytes);
+        // counted while the file's lock is held, so that no compaction step runs between this and the count
+        numOpenWriteSessions.incrementAndGet();
+        openWriteSessionPaths.merge(filePath, 1, Integer::sum);
+        return new WriteSession(filePath, file.getStartingBlockNumber(), file.getFileSize(), lastBlockNumber);
+    }
+
+    // Writes bytes of a FileWriteChannel at the given position. Bytes within the committed size of the file replace
+    // its contents right away, bytes past it go into blocks reserved by the session and become part of the file
+    // on commitWrites(). No metadata is written here, the reserved blocks are linked in memory only.
+    void writeToFile(WriteSession session, long position, byte[] bytes, int offset, int length) throws IOException {
+        execWithFileLocks(fileLocks.writeLocks(session.filePath), () -> {
+            readDirectories(() -> checkWriteSession(session));
+            var written = 0;
+            if (position < session.committedSize) {
+                written = (int) Math.min(length, session.committedSize - position);
+                var blockNumber = findNthBlockOfFile(session.committedStartingBlockNumber, (int) (position / blockSizeBytes));
+                overwriteBytesInChain(blockNumber, (int) (position % blockSizeBytes), Arrays.copyOfRange(bytes, offset, offset + written), false);
+            }
+            if (written == length) {
+                return null;
+            }
+            if (position + written != session.size) {
+                throw new IllegalStateException("writes past the end of the file must be sequential");
+            }
+            appendToWriteSession(session, bytes, offset + written, length - written);
+            return null;
+        });
+    }
+
+    // makes the bytes written through the session part of the file with a single metadata transaction
+    void commitWrites(WriteSession session) throws IOException {
+        execMutation(fileLocks.writeLocks(session.filePath), true, () -> {
+            checkWriteSession(session);
+            unsafeCommitWrites(session);
+            return null;
+        });
+    }
+
+    void closeWriteSession(WriteSession session) throws IOException {
+        execMutation(fileLocks.writeLocks(session.filePath), true, () -> {
+            var checked = false;
+            try {
+                checkWriteSession(session);
+                checked = true;
+                unsafeCommitWrites(session);
+            } finally {
+                if (!checked) {
+                    // the file was changed under the session, so the blocks written since its last commit
+                    // are linked to nothing on disk
+                    freeUncommittedBlocks(session);
+                }
+                // the reserved blocks have never been written to the FAT on disk
+                for (int block : session.reservedBlocks) {
+                    fileAllocationTable.set(block, FileAllocationTable.FREE);
+                }
+                session.reservedBlocks.clear();
+                numOpenWriteSessions.decrementAndGet();
+                openWriteSessionPaths.computeIfPresent(session.filePath, (path, count) -> count == 1 ? null : count - 1);
+            }
+            return null;
+        });
+    }
+
+    private void freeUncommittedBlocks(WriteSession session) {
+        var block = session.firstNewBlockNumber;
+        while (block >= 0) {
+            var next = fileAllocationTable.get(block);
+            fileAllocationTable.set(block, FileAllocationTable.FREE);
+            block = next > 0 ? next : -1;
+        }
+        session.firstNewBlockNumber = -1;
+    }
+
+    private void appendToWriteSession(WriteSession session, byte[] bytes, int offset, int length) throws IOException {
+        var written = 0;
+        if (session.lastBlockNumber >= 0) {
+            var lastBlockFill = (int) (session.size - (session.size - 1) / blockSizeBytes * blockSizeBytes);
+            written = Math.min(length, blockSizeBytes - lastBlockFill);
+            if (written > 0) {
+                storeBytes(getDataBlockOffset(session.lastBlockNumber) + lastBlockFill, bytes, offset, written);
+            }
+        }
+
+        if (written < length) {
+            var extents = takeReservedBlocks(session, (length - written + blockSizeBytes - 1) / blockSizeBytes);
+            for (FileAllocationTable.Extent extent : extents) {
+                var bytesToWrite = Math.min(extent.getLength() * blockSizeBytes, length - written);
+                storeBytes(getDataBlockOffset(extent.getStart()), bytes, offset + written, bytesToWrite);
+                written += bytesToWrite;
+            }
+
+            var firstBlockNumber = extents.get(0).getStart();
+            if (session.firstNewBlockNumber < 0) {
+                session.firstNewBlockNumber = firstBlockNumber;
+            } else {
+                fileAllocationTable.set(session.lastBlockNumber, firstBlockNumber);
+            }
+            session.lastBlockNumber = extents.get(extents.size() - 1).getEnd() - 1;
+        }
+        session.size += length;
+    }
+
+    // takes the given number of blocks from the session's reservation, growing it by runs of
+    // WRITE_PREALLOCATION_BYTES, and links them into a chain in memory
+    private List<FileAllocationTable.Extent> takeReservedBlocks(WriteSession session, int numBlocks) {
+        if (session.reservedBlocks.size() < numBlocks) {
+            var preferredStart = session.reservedBlocks.isEmpty() ? session.lastBlockNumber + 1 : session.reservedBlocks.peekLast() + 1;
+            var numBlocksToReserve = Math.max(Math.max(1, WRITE_PREALLOCATION_BYTES / blockSizeBytes), numBlocks - session.reservedBlocks.size());
+            for (FileAllocationTable.Extent extent : fileAllocationTable.allocateExtents(numBlocksToReserve, preferredStart)) {
+                for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                    session.reservedBlocks.add(block);
+                }
+            }
+        }
+
+        var extents = new ArrayList<FileAllocationTable.Extent>();
+        var runStart = session.reservedBlocks.poll();
+        var runLength = 1;
+        for (int i = 1; i < numBlocks; i++) {
+            int block = session.reservedBlocks.poll();
+            if (block == runStart + runLength) {
+                runLength++;
+            } else {
+                extents.add(new FileAllocationTable.Extent(runStart, runLength));
+                runStart = block;
+                runLength = 1;
+            }
+        }
+        extents.add(new FileAllocationTable.Extent(runStart, runLength));
+
+        for (int i = 0; i < extents.size(); i++) {
+            var extent = extents.get(i);
+            for (int block = extent.getStart(); block < extent.getEnd() - 1; block++) {
+                fileAllocationTable.set(block, block + 1);
+            }
+            var next = i + 1 < extents.size() ? extents.get(i + 1).getStart() : FileAllocationTable.END_OF_FILE;
+            fileAllocationTable.set(extent.getEnd() - 1, next);
+        }
+        return extents;
+    }
+
+    private void unsafeCommitWrites(WriteSession session) throws IOException {
+        if (session.size == session.committedSize) {
+            return;
+        }
+
+        var startingBlockNumber = session.committedStartingBlockNumber;
+        if (session.firstNewBlockNumber >= 0) {
+            // the new blocks first, then the link that makes them part of the file
+            var runStart = session.firstNewBlockNumber;
+            var block = runStart;
+            while (fileAllocationTable.get(block) > 0) {
+                var next = fileAllocationTable.get(block);
+                if (next != block + 1) {
+                    storeFatEntries(runStart, block - runStart + 1);
+                    runStart = next;
+                }
+                block = next;
+            }
+            storeFatEntries(runStart, block - runStart + 1);
+
+            if (session.committedLastBlockNumber < 0) {
+                startingBlockNumber = session.firstNewBlockNumber;
+            } else {
+                fileAllocationTable.set(session.committedLastBlockNumber, session.firstNewBlockNumber);
+                storeFatEntries(session.committedLastBlockNumber, 1);
+            }
+        }
+
+        var parent = findParentDirectory(session.filePath, false);
+        parent.addFile(getName(session.filePath), startingBlockNumber, (int) session.size);
+        dirtyDirectories.add(parent);
+        flushDirectories();
+
+        session.committedStartingBlockNumber = startingBlockNumber;
+        session.committedSize = session.size;
+        session.committedLastBlockNumber = session.lastBlockNumber;
+        session.firstNewBlockNumber = -1;
+    }
+
+    // the file must not have been changed by anyone else since the session's last commit
+    private FileMetadata checkWriteSession(WriteSession session) throws IOException {
+        var file = findFileMetadata(session.filePath);
+        if (file == null
+                || file.getStartingBlockNumber() != session.committedStartingBlockNumber
+                || file.getFileSize() != session.committedSize) {
+            throw new IOException("file " + session.filePath + " has been changed while open for writing");
+        }
+        return file;
+    }
+
+    // returns null if there is no file at the path
+    private FileMetadata findFileMetadata(String filePath) throws IOException {
+        var parent = findParentDirectory(filePath, false);
+        if (parent == null) {
+            return null;
+        }
+        var file = parent.getFileMetadata(getName(filePath));
+        if (file.isEmpty() || file.get().getType() != FileType.FILE) {
+            return null;
+        }
+        return file.get();
+    }
+
+    @Override
+    public long getFreeSpaceBytes() throws IOException {
+        return timed("getFreeSpaceBytes", null, () -> execWithFileLocks(List.of(), () -> {
+            // counted from the blocks, so shared, deduplicated and compressed data is only counted once, as stored
+            return (long) fileAllocationTable.getNumFreeBlocks() * blockSizeBytes + packedTailBlocks.getFreeBytes();
+        }));
+    }
+
+    // Runs an operation with the given file locks held. The operation takes the directory lock itself, for as
+    // short as it can, so that resolving a path does not hold up directory changes for the whole read or write.
+    private <T> T execWithFileLocks(List<Lock> locks, CallableIOOperation<T> operation) throws IOException {
+        return execWithContainerLock(() -> {
+            for (Lock lock : locks) {
+                lockAndRecordWait(lock, metrics.getFileLockWaits(), "file");
+            }
+            try {
+                return operation.run();
+            } finally {
+                locks.forEach(Lock::unlock);
+            }
+        });
+    }
+
+    // Runs a mutating operation with the given file locks held as a single journal transaction. The directory lock
+    // is held for writing from the start if changesDirectories is set, otherwise the operation takes it with
+    // lockDirectoriesForWrite() once it gets to its directory changes. The FAT entries the operation changed are
+    // written at its end, and the transaction is submitted before the locks are released, so that transactions
+    // changing the same metadata are submitted in the order of their changes. It is waited for afterwards,
+    // so that the commits of operations running at the same time can share a single force of the device.
+    private <T> T execMutation(List<Lock> locks, boolean changesDirectories, CallableIOOperation<T> operation) throws IOException {
+        long[] commitSeq = {0};
+        numRunningMutations.incrementAndGet();
+        T result;
+        try {
+            result = execWithFileLocks(locks, () -> {
+                if (changesDirectories) {
+                    lockDirectoriesForWrite();
+                }
+                try {
+                    if (journal == null) {
+                        dirtyFatEntries.set(new DirtyRanges());
+                        try {
+                            return operation.run();
+                        } finally {
+                            flushFatEntries();
+                            dirtyFatEntries.remove();
+                            indexWrittenBlocks();
+                        }
+                    }
+                    beginTransaction();
+                    try {
+                        return operation.run();
+                    } finally {
+                        commitSeq[0] = submitTransaction();
+                    }
+                } finally {
+                    if (directoryLock.isWriteLockedByCurrentThread()) {
+                        directoryLock.writeLock().unlock();
+                    }
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            // the changes made before the failure are committed too, and the blocks they freed released
+            if (journal != null && commitSeq[0] > 0) {
+                journal.awaitDurable(commitSeq[0]);
+            }
+            throw e;
+        } finally {
+            numRunningMutations.decrementAndGet();
+        }
+        if (journal != null) {
+            journal.awaitDurable(commitSeq[0]);
+        }
+        return result;
+    }
+
+    // the lock is held until the end of the current mutation
+    private void lockDirectoriesForWrite() {
+        if (!directoryLock.isWriteLockedByCurrentThread()) {
+            lockAndRecordWait(directoryLock.writeLock(), metrics.getDirectoryLockWaits(), "directory");
+        }
+    }
+
+    // a thread holding the directory lock for writing can take it for reading too
+    private <T> T readDirectories(CallableIOOperation<T> operation) throws IOException {
+        lockAndRecordWait(directoryLock.readLock(), metrics.getDirectoryLockWaits(), "directory");
+        try {
+            return operation.run();
+        } finally {
+            directoryLock.readLock().unlock();
+        }
+    }
+
+    // A lock that is free is taken without reading the clock, and counted as no wait.
+    private static void lockAndRecordWait(Lock lock, LatencyHistogram waits, String lockName) {
+        if (lock.tryLock()) {
+            waits.record(0);
+            return;
+        }
+        var event = new FileSystemEvents.LockWait();
+        event.begin();
+        var start = System.nanoTime();
+        lock.lock();
+        waits.record(System.nanoTime() - start);
+        if (event.shouldCommit()) {
+            event.lock = lockName;
+            event.commit();
+        }
+    }
+
+    // records the latency of a call of the FileSystem API, and emits its event when the recording asks for it
+    private <T> T timed(String operation, String path, CallableIOOperation<T> call) throws IOException {
+        var event = new FileSystemEvents.Operation();
+        event.begin();
+        var start = System.nanoTime();
+        try {
+            return call.run();
+        } finally {
+            metrics.recordOperation(operation, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.path = path;
+                event.commit();
+            }
+        }
+    }
+
+    private <T> T execWithContainerLock(CallableIOOperation<T> operation) throws IOException {
+        return crossProcessLocking ? this.blockDevice.execWithLock(operation) : operation.run();
+    }
+
+    private void beginTransaction() {
+        currentTransaction.set(new JournalTransaction());
+        dirtyFatEntries.set(new DirtyRanges());
+        fileAllocationTable.beginDeferringFrees();
+        packedTailBlocks.beginDeferringFrees();
+    }
+
+    private long submitTransaction() throws IOException {
+        flushFatEntries();
+        dirtyFatEntries.remove();
+        var transaction = currentTransaction.get();
+        var freedBlocks = fileAllocationTable.endDeferringFrees();
+        if (!freedBlocks.isEmpty()) {
+            transaction.addOnAppliedAction(() -> releaseFreedBlocks(freedBlocks));
+        }
+        var freedTails = packedTailBlocks.endDeferringFrees();
+        if (!freedTails.isEmpty()) {
+            transaction.addOnAppliedAction(() -> packedTailBlocks.releaseDeferredFrees(freedTails));
+        }
+        currentTransaction.remove();
+        var commitSeq = journal.submit(transaction);
+        indexWrittenBlocks();
+        return commitSeq;
+    }
+
+    // A freed block that the journal may still replay a metadata write to (a block of a directory, a tail block's
+    // header, the deduplication index) is only reused after the next checkpoint, or a crash would bring the old
+    // metadata back over whatever was written to the block since. Runs on the committing thread.
+    private void releaseFreedBlocks(List<Integer> blocks) {
+        var replayable = new ArrayList<Integer>();
+        var free = new ArrayList<Integer>();
+        for (int block : blocks) {
+            (journal.isReplayable(getDataBlockOffset(block), blockSizeBytes) ? replayable : free).add(block);
+        }
+        fileAllocationTable.releaseDeferredFrees(free);
+        if (!replayable.isEmpty()) {
+            journal.addOnCheckpointedAction(() -> fileAllocationTable.releaseDeferredFrees(replayable));
+        }
+    }
+
+    // makes everything done so far in the current operation durable and starts a new transaction
+    private void commitTransactionInLock() throws IOException {
+        if (currentTransaction.get() == null) {
+            // without a journal, the FAT entries written so far are at least not held back
+            flushFatEntries();
+            return;
+        }
+        journal.awaitDurable(submitTransaction());
+        beginTransaction();
+    }
+
+    // writes the bytes into freshly allocated runs of blocks and returns the first block of the new chain
+    private int writeBytesToNewChain(byte[] bytes, int preferredStartingBlock) throws IOException {
+        var numBlocks = (bytes.length + blockSizeBytes - 1) / blockSizeBytes;
+        if (isDeduplicated(bytes.length)) {
+            return writeDeduplicatedChain(bytes, 0, 1, preferredStartingBlock);
+        }
+        var extents = fileAllocationTable.allocateExtents(Math.max(numBlocks, 1), preferredStartingBlock);
+        writeBytesToExtents(extents, bytes, 0, false);
+        return extents.get(0).getStart();
+    }
+
+    // fills up the last block of a chain, then continues the chain with new runs of blocks
+    private void appendBytesToChain(int lastBlockNumber, int lastBlockFill, byte[] bytes) throws IOException {
+        var bytesInLastBlock = Math.min(bytes.length, blockSizeBytes - lastBlockFill);
+        if (bytesInLastBlock > 0) {
+            storeBytes(getDataBlockOffset(lastBlockNumber) + lastBlockFill, bytes, 0, bytesInLastBlock);
+        }
+        if (bytesInLastBlock == bytes.length) {
+            return;
+        }
+
+        var bytesLeft = bytes.length - bytesInLastBlock;
+        int firstNewBlock;
+        if (deduplication) {
+            firstNewBlock = writeDeduplicatedChain(bytes, bytesInLastBlock, 0, lastBlockNumber + 1);
+        } else {
+            var numBlocks = (bytesLeft + blockSizeBytes - 1) / blockSizeBytes;
+            var extents = fileAllocationTable.allocateExtents(numBlocks, lastBlockNumber + 1);
+            writeBytesToExtents(extents, bytes, bytesInLastBlock, false);
+            firstNewBlock = extents.get(0).getStart();
+        }
+
+        // link the new blocks only after they have been written
+        fileAllocationTable.set(lastBlockNumber, firstNewBlock);
+        storeFatEntries(lastBlockNumber, 1);
+    }
+
+    // whether a new chain of this size is written with deduplication, its first block is never shared
+    private boolean isDeduplicated(int numBytes) {
+        return deduplication && numBytes > blockSizeBytes;
+    }
+
+    // Writes the bytes from offset on into a chain whose blocks from minSharedPosition on may be existing blocks
+    // holding the same data, and returns its first block. A block can only be shared together with all blocks after it,
+    // so blocks are matched from the end of the chain backwards, and a match is read back and compared, as the index
+    // only has hashes. The last block is padded with zeros to be compared as a whole. The new blocks from
+    // minSharedPosition on are indexed once the operation's transaction is submitted: a chain linking to them is
+    // then committed after them.
+    private int writeDeduplicatedChain(byte[] bytes, int offset, int minSharedPosition, int preferredStartingBlock) throws IOException {
+        var numBlocks = (bytes.length - offset + blockSizeBytes - 1) / blockSizeBytes;
+        var padded = Arrays.copyOfRange(bytes, offset, offset + numBlocks * blockSizeBytes);
+        var hashes = new long[numBlocks];
+        for (int i = minSharedPosition; i < numBlocks; i++) {
+            hashes[i] = DeduplicationIndex.hash(padded, i * blockSizeBytes, blockSizeBytes);
+        }
+
+        // every match is referenced until the one before it matches too, which links to it already
+        var numNewBlocks = numBlocks;
+        var sharedBlock = FileAllocationTable.END_OF_FILE;
+        var existing = new byte[blockSizeBytes];
+        for (int i = numBlocks - 1; i >= minSharedPosition; i--) {
+            var candidate = deduplicationIndex.findAndReference(hashes[i], sharedBlock);
+            if (candidate < 0) {
+                break;
+            }
+            readBytesFromChain(candidate, 0, ByteBuffer.wrap(existing));
+            if (fileAllocationTable.get(candidate) != sharedBlock
+                    || !Arrays.equals(existing, 0, blockSizeBytes, padded, i * blockSizeBytes, (i + 1) * blockSizeBytes)) {
+                dropReference(candidate);
+                break;
+            }
+            if (sharedBlock != FileAllocationTable.END_OF_FILE) {
+                deduplicationIndex.release(sharedBlock);
+            }
+            sharedBlock = candidate;
+            numNewBlocks = i;
+        }
+        if (numNewBlocks == 0) {
+            metrics.addDeduplicatedBlocks(numBlocks);
+            return sharedBlock;
+        }
+
+        List<FileAllocationTable.Extent> extents;
+        try {
+            extents = fileAllocationTable.allocateExtents(numNewBlocks, preferredStartingBlock);
+            writeBytesToExtents(extents, padded, 0, false);
+        } catch (IOException | RuntimeException e) {
+            if (sharedBlock != FileAllocationTable.END_OF_FILE) {
+                dropReference(sharedBlock);
+            }
+            throw e;
+        }
+        var lastNewBlock = extents.get(extents.size() - 1).getEnd() - 1;
+        if (sharedBlock != FileAllocationTable.END_OF_FILE) {
+            fileAllocationTable.set(lastNewBlock, sharedBlock);
+            storeFatEntries(lastNewBlock, 1);
+        }
+        metrics.addDeduplicatedBlocks(numBlocks - numNewBlocks);
+        var position = 0;
+        for (FileAllocationTable.Extent extent : extents) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++, position++) {
+                if (position >= minSharedPosition) {
+                    blocksToIndex.get().put(block, hashes[position]);
+                }
+            }
+        }
+        return extents.get(0).getStart();
+    }
+
+    // Drops a reference taken for a link that is not made after all. The chains through the block may have been
+    // erased meanwhile, up to the block, as it was referenced: then the reference was the last one, and the block
+    // is erased now, with the blocks after it.
+    private void dropReference(int block) throws IOException {
+        if (!deduplicationIndex.release(block)) {
+            lockDirectoriesForWrite();
+            eraseBlocksToEndMarker(block);
+        }
+    }
+
+    // after the current operation's transaction has been submitted, or its FAT entries written without a journal
+    private void indexWrittenBlocks() {
+        var blocks = blocksToIndex.get();
+        for (var entry : blocks.entrySet()) {
+            deduplicationIndex.index(entry.getKey(), entry.getValue(), fileAllocationTable.get(entry.getKey()));
+        }
+        blocks.clear();
+    }
+
+    // each run of blocks goes out with a single write, followed by its FAT entries
+    private void writeBytesToExtents(List<FileAllocationTable.Extent> extents, byte[] bytes, int sourceDataOffset, boolean isMetadata) throws IOException {
+        for (FileAllocationTable.Extent extent : extents) {
+            var bytesToWrite = Math.min(extent.getLength() * blockSizeBytes, bytes.length - sourceDataOffset);
+            if (isMetadata) {
+                storeMetadata(getDataBlockOffset(extent.getStart()), bytes, sourceDataOffset, bytesToWrite);
+            } else {
+                storeBytes(getDataBlockOffset(extent.getStart()), bytes, sourceDataOffset, bytesToWrite);
+            }
+            storeFatEntries(extent.getStart(), extent.getLength());
+            sourceDataOffset += bytesToWrite;
+        }
+    }
+
+    // overwrites existing blocks of a chain, writing physically contiguous blocks at once
+    private void overwriteBytesInChain(int firstBlock, int offsetInBlock, byte[] bytes, boolean isMetadata) throws IOException {
+        if (offsetInBlock >= blockSizeBytes) {
+            throw new RuntimeException("offset cannot be bigger than the block size");
+        }
+
+        var currentBlockNumber = firstBlock;
+        var inBlockOffset = offsetInBlock;
+        var sourceDataOffset = 0;
+
+        while (sourceDataOffset < bytes.length) {
+            var runStart = currentBlockNumber;
+            var runCapacity = blockSizeBytes - inBlockOffset;
+            while (sourceDataOffset + runCapacity < bytes.length && fileAllocationTable.get(currentBlockNumber) == currentBlockNumber + 1) {
+                currentBlockNumber++;
+                runCapacity += blockSizeBytes;
+            }
+
+            var bytesToWrite = Math.min(runCapacity, bytes.length - sourceDataOffset);
+            if (isMetadata) {
+                storeMetadata(getDataBlockOffset(runStart) + inBlockOffset, bytes, sourceDataOffset, bytesToWrite);
+            } else {
+                storeBytes(getDataBlockOffset(runStart) + inBlockOffset, bytes, sourceDataOffset, bytesToWrite);
+            }
+            inBlockOffset = 0; // always zero after the first run
+            sourceDataOffset += bytesToWrite;
+
+            if (sourceDataOffset < bytes.length) {
+                currentBlockNumber = findNextConnectedBlock(currentBlockNumber);
+                if (currentBlockNumber < 0) {
+                    throw new RuntimeException("unexpected end of file");
+                }
+            }
+        }
+    }
+
+    // reads dst.remaining() bytes of a chain, reading physically contiguous blocks at once;
+    // returns the number of the last block read from
+    private int readBytesFromChain(int firstBlock, int offsetInBlock, ByteBuffer dst) throws IOException {
+        if (dst.isDirect()) {
+            return readBytesFromChainDirectly(firstBlock, offsetInBlock, dst);
+        }
+        var ioBuffer = ioBufferPool.acquire();
+        try {
+            var currentBlockNumber = firstBlock;
+            var inBlockOffset = offsetInBlock;
+
+            while (dst.hasRemaining()) {
+                var runStart = currentBlockNumber;
+                var runCapacity = blockSizeBytes - inBlockOffset;
+                while (runCapacity < dst.remaining()
+                        && runCapacity + blockSizeBytes <= ioBuffer.capacity()
+                        && fileAllocationTable.get(currentBlockNumber) == currentBlockNumber + 1) {
+                    currentBlockNumber++;
+                    runCapacity += blockSizeBytes;
+                }
+
+                ioBuffer.clear().limit(Math.min(runCapacity, dst.remaining()));
+                blockDevice.readBlock(getDataBlockOffset(runStart) + inBlockOffset, ioBuffer);
+                dst.put(ioBuffer.flip());
+                inBlockOffset = 0; // always zero after the first run
+
+                if (dst.hasRemaining()) {
+                    currentBlockNumber = findNextConnectedBlock(currentBlockNumber);
+                    if (currentBlockNumber < 0) {
+                        throw new RuntimeException("unexpected end of file");
+                    }
+                }
+            }
+            return currentBlockNumber;
+        } finally {
+            ioBufferPool.release(ioBuffer);
+        }
+    }
+
+    // a direct buffer is read into as it is, with a read per run of contiguous blocks of any length
+    private int readBytesFromChainDirectly(int firstBlock, int offsetInBlock, ByteBuffer dst) throws IOException {
+        var currentBlockNumber = firstBlock;
+        var inBlockOffset = offsetInBlock;
+
+        while (dst.hasRemaining()) {
+            var runStart = currentBlockNumber;
+            var runCapacity = blockSizeBytes - inBlockOffset;
+            while (runCapacity < dst.remaining() && fileAllocationTable.get(currentBlockNumber) == currentBlockNumber + 1) {
+                currentBlockNumber++;
+                runCapacity += blockSizeBytes;
+            }
+
+            var bytesToRead = Math.min(runCapacity, dst.remaining());
+            blockDevice.readBlock(getDataBlockOffset(runStart) + inBlockOffset, dst.slice(dst.position(), bytesToRead));
+            dst.position(dst.position() + bytesToRead);
+            inBlockOffset = 0; // always zero after the first run
+
+            if (dst.hasRemaining()) {
+                currentBlockNumber = findNextConnectedBlock(currentBlockNumber);
+                if (currentBlockNumber < 0) {
+                    throw new RuntimeException("unexpected end of file");
+                }
+            }
+        }
+        return currentBlockNumber;
+    }
+
+    // writes a slice of a heap array through a pooled direct buffer
+    private void storeBytes(long deviceOffset, byte[] bytes, int sourceOffset, int length) throws IOException {
+        var ioBuffer = ioBufferPool.acquire();
+        try {
+            var bytesWritten = 0;
+            while (bytesWritten < length) {
+                var chunkLength = Math.min(ioBuffer.capacity(), length - bytesWritten);
+                ioBuffer.clear();
+                ioBuffer.put(bytes, sourceOffset + bytesWritten, chunkLength).flip();
+                blockDevice.storeBlock(deviceOffset + bytesWritten, ioBuffer);
+                bytesWritten += chunkLength;
+            }
+        } finally {
+            ioBufferPool.release(ioBuffer);
+        }
+    }
+
+    // Rewrites a metadata chain (a directory) through the journal. Existing blocks are overwritten and the chain
+    // is extended or cut short as needed, so its first block never moves and freed blocks are not reused.
+    private void writeMetadataChain(int startingBlock, byte[] bytes) throws IOException {
+        if (fileAllocationTable.isFree(startingBlock)) {
+            fileAllocationTable.allocateExtents(1, startingBlock);
+            storeFatEntries(startingBlock, 1);
+        }
+
+        var numBlocks = Math.max(1, (bytes.length + blockSizeBytes - 1) / blockSizeBytes);
+        var currentBlockNumber = startingBlock;
+        for (int i = 0; i < numBlocks - 1; i++) {
+            storeMetadata(getDataBlockOffset(currentBlockNumber), bytes, i * blockSizeBytes, blockSizeBytes);
+            var nextBlockNumber = findNextConnectedBlock(currentBlockNumber);
+            if (nextBlockNumber < 0) {
+                var extents = fileAllocationTable.allocateExtents(numBlocks - i - 1, currentBlockNumber + 1);
+                writeBytesToExtents(extents, bytes, (i + 1) * blockSizeBytes, true);
+                fileAllocationTable.set(currentBlockNumber, extents.get(0).getStart());
+                storeFatEntries(currentBlockNumber, 1);
+                return;
+            }
+            currentBlockNumber = nextBlockNumber;
+        }
+
+        var lastChunkOffset = (numBlocks - 1) * blockSizeBytes;
+        storeMetadata(getDataBlockOffset(currentBlockNumber), bytes, lastChunkOffset, bytes.length - lastChunkOffset);
+        var surplusBlockNumber = findNextConnectedBlock(currentBlockNumber);
+        if (surplusBlockNumber >= 0) {
+            fileAllocationTable.set(currentBlockNumber, FileAllocationTable.END_OF_FILE);
+            storeFatEntries(currentBlockNumber, 1);
+            eraseBlocksToEndMarker(surplusBlockNumber);
+        }
+    }
+
+    // Writes metadata at an offset of an existing chain, growing the chain if the write goes past its end.
+    private void writeMetadataAt(int startingBlock, int offset, byte[] bytes) throws IOException {
+        var numBlocksNeeded = (offset + bytes.length + blockSizeBytes - 1) / blockSizeBytes;
+        var lastBlockNumber = startingBlock;
+        var numBlocks = 1;
+        while (findNextConnectedBlock(lastBlockNumber) >= 0) {
+            lastBlockNumber = findNextConnectedBlock(lastBlockNumber);
+            numBlocks++;
+        }
+        if (numBlocks < numBlocksNeeded) {
+            var extents = fileAllocationTable.allocateExtents(numBlocksNeeded - numBlocks, lastBlockNumber + 1);
+            for (FileAllocationTable.Extent extent : extents) {
+                storeFatEntries(extent.getStart(), extent.getLength());
+            }
+            fileAllocationTable.set(lastBlockNumber, extents.get(0).getStart());
+            storeFatEntries(lastBlockNumber, 1);
+        }
+
+        var blockNumber = findNthBlockInFile(startingBlock, offset / blockSizeBytes);
+        overwriteBytesInChain(blockNumber, offset % blockSizeBytes, bytes, true);
+    }
+
+    // metadata goes through the journal if there is a transaction open, file data never does
+    private void storeMetadata(long deviceOffset, byte[] bytes, int sourceOffset, int length) throws IOException {
+        var transaction = currentTransaction.get();
+        if (transaction != null) {
+            transaction.addWrite(deviceOffset, Arrays.copyOfRange(bytes, sourceOffset, sourceOffset + length));
+        } else {
+            storeBytes(deviceOffset, bytes, sourceOffset, length);
+        }
+    }
+
+    // within an operation, the entries are only marked, and written by flushFatEntries() at its end
+    private void storeFatEntries(int fromBlock, int numBlocks) throws IOException {
+        var dirty = dirtyFatEntries.get();
+        if (dirty != null) {
+            dirty.add(fromBlock, numBlocks);
+        } else {
+            writeFatEntries(fromBlock, numBlocks);
+        }
+    }
+
+    // Writes the FAT entries changed by the current operation, a run of adjacent entries with a single write.
+    // An operation that changed a large part of the table while nothing else runs writes the whole table at once.
+    // Runs are not joined across entries the operation did not change, as those may belong to an operation
+    // of another thread that has not been committed yet.
+    private void flushFatEntries() throws IOException {
+        var dirty = dirtyFatEntries.get();
+        if (dirty == null || dirty.isEmpty()) {
+            return;
+        }
+        dirtyFatEntries.set(new DirtyRanges());
+
+        if (dirty.getNumRanges() > 1 && dirty.getNumEntries() >= WHOLE_FAT_WRITE_THRESHOLD * fileAllocationTable.size()) {
+            byte[] wholeTable = null;
+            // allocations synchronize on the table, so none can start between the check and the copy
+            synchronized (fileAllocationTable) {
+                if (numRunningMutations.get() == 1 && numOpenWriteSessions.get() == 0) {
+                    wholeTable = fileAllocationTable.toBytes();
+                }
+            }
+            if (wholeTable != null) {
+                metrics.addFatEntriesWritten(fileAllocationTable.size());
+                var transaction = currentTransaction.get();
+                if (transaction != null) {
+                    addFatEntriesWrite(transaction, 0, wholeTable);
+                } else {
+                    storeBytes(superblock.getFileAllocationTableOffset(), wholeTable, 0, wholeTable.length);
+                }
+                return;
+            }
+        }
+
+        for (FileAllocationTable.Extent range : dirty.getRanges()) {
+            writeFatEntries(range.getStart(), range.getLength());
+        }
+    }
+
+    private void writeFatEntries(int fromBlock, int numBlocks) throws IOException {
+        metrics.addFatEntriesWritten(numBlocks);
+        var transaction = currentTransaction.get();
+        if (transaction != null) {
+            addFatEntriesWrite(transaction, fromBlock, fileAllocationTable.toBytes(fromBlock, numBlocks));
+            return;
+        }
+
+        var ioBuffer = ioBufferPool.acquire();
+        try {
+            var entriesPerBuffer = ioBuffer.capacity() / fatEntryWidthBytes;
+            for (int block = fromBlock; block < fromBlock + numBlocks; block += entriesPerBuffer) {
+                var numEntries = Math.min(entriesPerBuffer, fromBlock + numBlocks - block);
+                ioBuffer.clear();
+                fileAllocationTable.writeEntries(block, numEntries, ioBuffer);
+                blockDevice.storeBlock(getFatEntryOffset(block), ioBuffer.flip());
+            }
+        } finally {
+            ioBufferPool.release(ioBuffer);
+        }
+    }
+
+    // Adds the encoded FAT entries to the transaction, with the runs of entries linking each block to the next one
+    // and the runs of free entries as sequence writes, so that allocating or freeing a long extent keeps the
+    // record small enough for the journal, and the operation atomic.
+    private void addFatEntriesWrite(JournalTransaction transaction, int fromBlock, byte[] entries) {
+        var numEntries = entries.length / fatEntryWidthBytes;
+        var plainStart = 0;
+        var i = 0;
+        while (i < numEntries) {
+            var value = getEncodedFatEntry(entries, i);
+            var step = i + 1 < numEntries && getEncodedFatEntry(entries, i + 1) == value ? 0 : 1;
+            var runEnd = i + 1;
+            while (runEnd < numEntries && getEncodedFatEntry(entries, runEnd) == value + step * (runEnd - i)) {
+                runEnd++;
+            }
+            if (runEnd - i < MIN_FAT_SEQUENCE_ENTRIES) {
+                i++;
+                continue;
+            }
+            if (plainStart < i) {
+                transaction.addWrite(getFatEntryOffset(fromBlock + plainStart),
+                        Arrays.copyOfRange(entries, plainStart * fatEntryWidthBytes, i * fatEntryWidthBytes));
+            }
+            transaction.addSequenceWrite(getFatEntryOffset(fromBlock + i), fatEntryWidthBytes, value, step, runEnd - i);
+            plainStart = runEnd;
+            i = runEnd;
+        }
+        if (plainStart < numEntries) {
+            transaction.addWrite(getFatEntryOffset(fromBlock + plainStart),
+                    plainStart == 0 ? entries : Arrays.copyOfRange(entries, plainStart * fatEntryWidthBytes, entries.length));
+        }
+    }
+
+    private int getEncodedFatEntry(byte[] entries, int i) {
+        var value = 0;
+        for (int j = 0; j < fatEntryWidthBytes; j++) {
+            value = (value << 8) | (entries[i * fatEntryWidthBytes + j] & 0xFF);
+        }
+        return value;
+    }
+
+    private long getFatEntryOffset(int blockNumber) {
+        return superblock.getFileAllocationTableOffset() + (long) fatEntryWidthBytes * blockNumber;
+    }
+
+    private long getDataBlockOffset(int blockNumber) {
+        return superblock.getDataRegionOffset() + (long) blockSizeBytes * blockNumber;
+    }
+
+    // frees the chain and the packed tail of a file, with the directory lock held for writing
+    private void eraseFile(FileMetadata file) throws IOException {
+        if (file.getStartingBlockNumber() >= 0) {
+            eraseBlocksToEndMarker(file.getStartingBlockNumber());
+        }
+        if (file.hasPackedTail()) {
+            freeTail(file);
+        }
+    }
+
+    // Whether the bytes of a file of this size past its last full block go into a tail block. Files smaller than a
+    // block keep their single block, they are mostly written through channels, which cannot write to a tail.
+    private boolean isTailPacked(int fileSize) {
+        var tailSize = fileSize % blockSizeBytes;
+        return fileSize >= blockSizeBytes && tailSize > 0 && tailSize <= maxPackedTailBytes;
+    }
+
+    // the number of bytes of a file in its chain, the rest of a file with a packed tail is in the tail
+    private int getChainSize(FileMetadata file) {
+        return file.getFileSize() - getPackedTailSize(file);
+    }
+
+    private int getPackedTailSize(FileMetadata file) {
+        return file.hasPackedTail() ? file.getFileSize() % blockSizeBytes : 0;
+    }
+
+    private long getTailDeviceOffset(FileMetadata file) {
+        return getDataBlockOffset(file.getTailBlock()) + file.getTailOffset();
+    }
+
+    // reads dst.remaining() bytes of the packed tail of a file from the offset in the tail
+    private void readTail(FileMetadata file, int offsetInTail, ByteBuffer dst) throws IOException {
+        blockDevice.readBlock(getTailDeviceOffset(file) + offsetInTail, dst);
+    }
+
+    // Packs the bytes into a tail block with room for them, a new one if no known block has, and returns
+    // {tail block, offset}. The bytes go into free units in place, the header of the block through the journal,
+    // so this is done with the directory lock held for writing, in the transaction that writes the entry.
+    private int[] packTail(byte[] bytes, int offset, int length) throws IOException {
+        var slot = packedTailBlocks.allocate(length);
+        if (slot == null) {
+            var block = fileAllocationTable.allocateExtents(1, -1).get(0).getStart();
+            storeFatEntries(block, 1);
+            packedTailBlocks.addBlock(block);
+            slot = packedTailBlocks.allocate(length);
+        }
+        storeBytes(getDataBlockOffset(slot[0]) + slot[1], bytes, offset, length);
+        var header = packedTailBlocks.encodeHeader(slot[0]);
+        storeMetadata(getDataBlockOffset(slot[0]), header, 0, header.length);
+        return slot;
+    }
+
+    // With the directory lock held for writing. A tail block not used since mount is loaded from its header,
+    // and freed as a whole once its last tail is gone.
+    private void freeTail(FileMetadata file) throws IOException {
+        var block = file.getTailBlock();
+        if (!packedTailBlocks.isKnown(block)) {
+            var header = ByteBuffer.allocate(packedTailBlocks.getHeaderSizeBytes());
+            blockDevice.readBlock(getDataBlockOffset(block), header);
+            packedTailBlocks.load(block, header);
+        }
+        if (packedTailBlocks.free(block, file.getTailOffset(), getPackedTailSize(file))) {
+            fileAllocationTable.set(block, FileAllocationTable.FREE);
+            storeFatEntries(block, 1);
+        } else {
+            var header = packedTailBlocks.encodeHeader(block);
+            storeMetadata(getDataBlockOffset(block), header, 0, header.length);
+        }
+    }
+
+    // moves the packed tail of a file to a block at the end of its chain, with the directory lock held for writing
+    private FileMetadata unpackTail(String filePath, FileMetadata file) throws IOException {
+        var tail = new byte[getPackedTailSize(file)];
+        readTail(file, 0, ByteBuffer.wrap(tail));
+        var startingBlockNumber = file.getStartingBlockNumber();
+        var shared = file.isShared();
+        if (startingBlockNumber < 0) {
+            startingBlockNumber = writeBytesToNewChain(tail, -1);
+        } else {
+            var lastBlockOrdinalNumber = getChainSize(file) / blockSizeBytes - 1;
+            ensureExclusive(file, lastBlockOrdinalNumber, lastBlockOrdinalNumber);
+            appendBytesToChain(findNthBlockOfFile(startingBlockNumber, lastBlockOrdinalNumber), blockSizeBytes, tail);
+            shared |= deduplication;
+        }
+        freeTail(file);
+        var unpacked = file.withChain(startingBlockNumber, file.getFileSize()).withShared(shared).withTail(-1, 0);
+        putFileEntry(filePath, unpacked);
+        return unpacked;
+    }
+
+    // only called with the directory lock held for writing, which also makes the increment safe
+    private int eraseBlocksToEndMarker(int startingBlock) throws IOException {
+        freeGeneration++;
+        blockIndexes.remove(startingBlock);
+        chunkIndexes.remove(startingBlock);
+        var currBlock = startingBlock;
+        while (currBlock >= 0 && !fileAllocationTable.isFree(currBlock)) {
+            // a block other chains pass through stays, and so do the blocks after it
+            if (deduplicationIndex.release(currBlock)) {
+                break;
+            }
+            var nextBlock = findNextConnectedBlock(currBlock);
+            fileAllocationTable.set(currBlock, FileAllocationTable.FREE);
+            storeFatEntries(currBlock, 1);
+            currBlock = nextBlock;
+        }
+        return currBlock;
+    }
+
+    // Makes the blocks of a file from fromPosition to toPosition its own before they change in place: blocks that
+    // other chains pass through and indexed blocks, which must not change, are copied together with the blocks after
+    // them up to toPosition. A change of the link at the end of a block counts as a change of the block.
+    private void ensureExclusive(FileMetadata file, int fromPosition, int toPosition) throws IOException {
+        if (!file.isShared()) {
+            return;
+        }
+        var block = file.getStartingBlockNumber();
+        for (int position = 0; position <= toPosition && block > 0; position++) {
+            if (deduplicationIndex.isShared(block) || (position >= fromPosition && deduplicationIndex.isIndexed(block))) {
+                unshareBlocks(file.getStartingBlockNumber(), position, toPosition);
+                return;
+            }
+            block = fileAllocationTable.get(block);
+        }
+    }
+
+    // Puts copies of the blocks from fromPosition to toPosition in their place in this chain only, the old blocks
+    // are released and stay as long as other chains pass through them. The first block of a chain is never shared.
+    private void unshareBlocks(int startingBlock, int fromPosition, int toPosition) throws IOException {
+        lockDirectoriesForWrite();
+        var previousBlock = findNthBlockOfFile(startingBlock, fromPosition - 1);
+        var firstOldBlock = fileAllocationTable.get(previousBlock);
+        var extents = fileAllocationTable.allocateExtents(toPosition - fromPosition + 1, previousBlock + 1);
+        var oldBlock = firstOldBlock;
+        var lastOldBlock = oldBlock;
+        for (FileAllocationTable.Extent extent : extents) {
+            for (int block = extent.getStart(); block < extent.getEnd(); block++) {
+                copyBlocks(oldBlock, block, 1);
+                lastOldBlock = oldBlock;
+                oldBlock = fileAllocationTable.get(oldBlock);
+            }
+        }
+        var nextBlock = fileAllocationTable.get(lastOldBlock);
+        var lastNewBlock = extents.get(extents.size() - 1).getEnd() - 1;
+        if (nextBlock != FileAllocationTable.END_OF_FILE) {
+            fileAllocationTable.set(lastNewBlock, nextBlock);
+            deduplicationIndex.addReference(nextBlock);
+        }
+        for (FileAllocationTable.Extent extent : extents) {
+            storeFatEntries(extent.getStart(), extent.getLength());
+        }
+        fileAllocationTable.set(previousBlock, extents.get(0).getStart());
+        storeFatEntries(previousBlock, 1);
+        eraseBlocksToEndMarker(firstOldBlock);
+        blockIndexes.remove(startingBlock);
+        metrics.addUnsharedBlocks(toPosition - fromPosition + 1);
+    }
+
+    private void flushDirectories() throws IOException {
+        if (journal == null) {
+            // nothing is atomic without a journal, but the chains a directory points at are on disk before it
+            flushFatEntries();
+        }
+        for (Directory dir : dirtyDirectories) {
+            flushDirectory(dir);
+        }
+        dirtyDirectories.clear();
+    }
+
+    // appends the logged entry changes to the directory, or rewrites it completely once the log has grown too big
+    private void flushDirectory(Directory dir) throws IOException {
+        var event = new FileSystemEvents.DirectoryFlush();
+        event.begin();
+        long bytesWritten;
+        var checkpoint = dir.needsCheckpoint();
+        if (checkpoint) {
+            var bytes = dir.checkpoint();
+            writeMetadataChain(dir.getStartingBlockNumber(), bytes);
+            bytesWritten = bytes.length;
+        } else if (dir.hasPendingChanges()) {
+            var logOffset = dir.getLogEndOffset();
+            var log = dir.takePendingLog();
+            var header = dir.getHeaderBytes();
+            writeMetadataAt(dir.getStartingBlockNumber(), logOffset, log);
+            writeMetadataAt(dir.getStartingBlockNumber(), 0, header);
+            bytesWritten = log.length + header.length;
+        } else {
+            return;
+        }
+        metrics.addDirectoryFlush(bytesWritten);
+        if (event.shouldCommit()) {
+            event.startingBlock = dir.getStartingBlockNumber();
+            event.bytesWritten = bytesWritten;
+            event.checkpoint = checkpoint;
+            event.commit();
+        }
+    }
+
+    // Containers written before subdirectories existed keep all files in the root, with '/' in their names.
+    // Those entries are moved into directories, entries that clash with a file of the same name stay as they are.
+    private int migrateRootDir() throws IOException {
+        for (String name : rootDir.getFileNames()) {
+            if (!name.contains("/")) {
+                continue;
+            }
+            var parent = findParentDirectory(name, true);
+            var newName = getName(name);
+            if (parent != null && !newName.isEmpty() && !parent.isFileExists(newName)) {
+                parent.putEntry(newName, rootDir.getFileMetadata(name).get());
+                rootDir.removeFile(name);
+                dirtyDirectories.add(parent);
+            }
+        }
+        dirtyDirectories.add(rootDir);
+        flushDirectories();
+        return 1;
+    }
+
+    // Returns the directory that contains the last component of the path, or null if a directory on the way
+    // does not exist (or is a file). The path is split at '/' as is, a leading '/' names a directory
+    // with an empty name, so that paths are listed exactly as they were created.
+    private Directory findParentDirectory(String path, boolean create) throws IOException {
+        var dir = rootDir;
+        var start = 0;
+        var slash = path.indexOf('/');
+        while (slash >= 0) {
+            var name = path.substring(start, slash);
+            var entry = dir.getFileMetadata(name);
+            if (entry.isPresent()) {
+                if (entry.get().getType() != FileType.DIR) {
+                    return null;
+                }
+                dir = loadDirectory(entry.get().getStartingBlockNumber());
+            } else if (create) {
+                dir = createDirectory(dir, name);
+            } else {
+                return null;
+            }
+            start = slash + 1;
+            slash = path.indexOf('/', start);
+        }
+        return dir;
+    }
+
+    private static String getName(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private Directory createDirectory(Directory parent, String name) throws IOException {
+        var startingBlock = fileAllocationTable.allocateExtents(1, -1).get(0).getStart();
+        storeFatEntries(startingBlock, 1);
+        var dir = new Directory(startingBlock);
+        loadedDirectories.put(startingBlock, dir);
+        parent.addDirectory(name, startingBlock);
+        dirtyDirectories.add(parent);
+        dirtyDirectories.add(dir);
+        return dir;
+    }
+
+    private Directory loadDirectory(int startingBlock) throws IOException {
+        var dir = loadedDirectories.get(startingBlock);
+        if (dir == null) {
+            // two readers may load the same directory at once, only one copy is kept
+            var loaded = Directory.fromBytes(startingBlock, readChain(startingBlock));
+            dir = loadedDirectories.putIfAbsent(startingBlock, loaded);
+            if (dir == null) {
+                dir = loaded;
+            }
+        }
+        return dir;
+    }
+
+    private void collectFiles(Directory dir, String dirPath, String namePrefix, List<String> files) throws IOException {
+        for (Map.Entry<String, FileMetadata> entry : dir.getEntriesWithPrefix(namePrefix)) {
+            var path = dirPath + entry.getKey();
+            if (entry.getValue().getType() == FileType.DIR) {
+                collectFiles(loadDirectory(entry.getValue().getStartingBlockNumber()), path + "/", "", files);
+            } else {
+                files.add(path);
+            }
+        }
+    }
+
+    // Moves blocks from the end of the data region into the first free blocks and links them in place of the old
+    // ones, a run of adjacent blocks of a chain with a single copy. Blocks are taken from the last one in use down,
+    // until maxBlocks are moved, the time is up, or there is no free block before them left. The first run is moved
+    // whatever the time, or a slow start would end compaction. A block that several chains pass through only starts
+    // a run, and all blocks linking to it are relinked. A tail block is moved on its own, and the entries of all
+    // files with tails in it are changed.
+    private int moveTailBlocks(int maxBlocks, long deadlineNanos) throws IOException {
+        var firstFreeBlock = fileAllocationTable.findFirstFreeBlock();
+        var lastFreeBlockNum = getLastFreeBlockNum();
+        var tail = new ArrayList<Integer>();
+        var block = (lastFreeBlockNum >= 0 ? lastFreeBlockNum : fileAllocationTable.size()) - 1;
+        for (; firstFreeBlock >= 0 && block > firstFreeBlock && tail.size() < maxBlocks; block--) {
+            if (!fileAllocationTable.isFree(block)) {
+                tail.add(block);
+            }
+        }
+        if (tail.isEmpty()) {
+            return 0;
+        }
+
+        // the FAT only links forward, the blocks pointing at the tail are found with a single pass over it
+        var tailBlocks = new HashSet<>(tail);
+        var lowestTailBlock = tail.get(tail.size() - 1);
+        var predecessors = new HashMap<Integer, Integer>();
+        var morePredecessors = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < fileAllocationTable.size(); i++) {
+            var next = fileAllocationTable.get(i);
+            if (next >= lowestTailBlock && tailBlocks.contains(next) && predecessors.putIfAbsent(next, i) != null) {
+                morePredecessors.computeIfAbsent(next, shared -> new ArrayList<>()).add(i);
+            }
+        }
+        // the first blocks of chains and tail blocks are pointed at by directory entries instead
+        var entries = new HashMap<Integer, EntryRef>();
+        var packedEntries = new HashMap<Integer, List<EntryRef>>();
+        if (predecessors.size() < tail.size()) {
+            collectEntriesStartingIn(rootDir, tailBlocks, entries, packedEntries);
+        }
+
+        var maxRunLength = ioBufferSizeBytes / blockSizeBytes;
+        // run start -> {length, new start}
+        var moves = new TreeMap<Integer, int[]>();
+        var numMovedBlocks = 0;
+        var i = 0;
+        while (i < tail.size() && numMovedBlocks < maxBlocks && (numMovedBlocks == 0 || System.nanoTime() < deadlineNanos)) {
+            var runEnd = tail.get(i);
+            var runLength = 1;
+            while (runLength < Math.min(maxRunLength, maxBlocks - numMovedBlocks)
+                    && i + runLength < tail.size()
+                    && tail.get(i + runLength) == runEnd - runLength
+                    && Objects.equals(predecessors.get(runEnd - runLength + 1), runEnd - runLength)
+                    && !morePredecessors.containsKey(runEnd - runLength + 1)) {
+                runLength++;
+            }
+            var hole = fileAllocationTable.findFirstFreeBlock();
+            if (hole < 0 || hole > runEnd - runLength) {
+                break;
+            }
+            var length = Math.min(runLength, fileAllocationTable.getFreeRunLengthAt(hole));
+            var runStart = runEnd - length + 1;
+            i += length;
+
+            var predecessor = predecessors.get(runStart);
+            var entry = entries.get(runStart);
+            var packed = packedEntries.get(runStart);
+            if (predecessor == null && entry == null && packed == null) {
+                // not part of any file, which only happens to blocks leaked by a crash, they are left where they are
+                continue;
+            }
+            if (predecessor == null && entry != null && entry.metadata.getType() == FileType.DIR) {
+                // the directory is written anew, which changes more of the FAT than what was looked at above
+                flushDirectories();
+                relocateDirectory(entry.dir, entry.name, loadDirectory(runStart));
+                numMovedBlocks += length;
+                break;
+            }
+
+            // indexed blocks are found by the block they link to, so the moved ones and those linking to them are indexed anew
+            var linkingBlocks = new ArrayList<>(morePredecessors.getOrDefault(runStart, List.of()));
+            if (predecessor != null) {
+                linkingBlocks.add(predecessor);
+            }
+            var movedHashes = new Long[length];
+            for (int j = 0; j < length; j++) {
+                movedHashes[j] = deduplicationIndex.unindex(runStart + j);
+            }
+            var linkingHashes = new Long[linkingBlocks.size()];
+            for (int j = 0; j < linkingBlocks.size(); j++) {
+                linkingHashes[j] = deduplicationIndex.unindex(linkingBlocks.get(j));
+            }
+
+            copyBlocks(runStart, hole, length);
+            for (int j = 0; j < length - 1; j++) {
+                fileAllocationTable.set(hole + j, hole + j + 1);
+            }
+            var next = fileAllocationTable.get(runEnd);
+            fileAllocationTable.set(hole + length - 1, next);
+            storeFatEntries(hole, length);
+            if (predecessor != null) {
+                for (int linkingBlock : linkingBlocks) {
+                    fileAllocationTable.set(linkingBlock, hole);
+                    storeFatEntries(linkingBlock, 1);
+                }
+            } else if (entry != null) {
+                // the entry may have changed since it was collected, if its tail block was moved first
+                entry.dir.putEntry(entry.name, entry.dir.getFileMetadata(entry.name).get().withStartingBlockNumber(hole));
+                dirtyDirectories.add(entry.dir);
+            } else {
+                for (EntryRef packedEntry : packed) {
+                    var metadata = packedEntry.dir.getFileMetadata(packedEntry.name).get();
+                    packedEntry.dir.putEntry(packedEntry.name, metadata.withTail(hole, metadata.getTailOffset()));
+                    dirtyDirectories.add(packedEntry.dir);
+                }
+                packedTailBlocks.move(runStart, hole);
+            }
+            for (int b = runStart; b <= runEnd; b++) {
+                fileAllocationTable.set(b, FileAllocationTable.FREE);
+            }
+            storeFatEntries(runStart, length);
+            for (int j = 0; j < length; j++) {
+                deduplicationIndex.moveReferences(runStart + j, hole + j);
+                if (movedHashes[j] != null) {
+                    deduplicationIndex.index(hole + j, movedHashes[j], fileAllocationTable.get(hole + j));
+                }
+            }
+            for (int j = 0; j < linkingBlocks.size(); j++) {
+                if (linkingHashes[j] != null) {
+                    deduplicationIndex.index(linkingBlocks.get(j), linkingHashes[j], hole);
+                }
+            }
+            if (next > 0 && tailBlocks.contains(next)) {
+                var otherPredecessors = morePredecessors.get(next);
+                if (Objects.equals(predecessors.get(next), runEnd)) {
+                    predecessors.put(next, hole + length - 1);
+                } else if (otherPredecessors != null && otherPredecessors.remove(runEnd)) {
+                    otherPredecessors.add(hole + length - 1);
+                }
+            }
+            moves.put(runStart, new int[]{length, hole});
+            numMovedBlocks += length;
+        }
+
+        if (numMovedBlocks > 0) {
+            // readers remember block numbers
+            freeGeneration++;
+            remapBlockIndexes(moves);
+        }
+        return numMovedBlocks;
+    }
+
+    private void remapBlockIndexes(TreeMap<Integer, int[]> moves) {
+        IntUnaryOperator newBlockNumbers = block -> {
+            var move = moves.floorEntry(block);
+            return move != null && block < move.getKey() + move.getValue()[0] ? move.getValue()[1] + block - move.getKey() : block;
+        };
+        synchronized (blockIndexes) {
+            var indexes = new ArrayList<>(blockIndexes.values());
+            blockIndexes.clear();
+            for (BlockIndex index : indexes) {
+                index.remap(newBlockNumbers);
+                blockIndexes.put(index.getStartingBlock(), index);
+            }
+        }
+        // chunk positions are counted in the chain, only the starting block they are kept by may have moved
+        synchronized (chunkIndexes) {
+            var indexes = new ArrayList<>(chunkIndexes.entrySet());
+            chunkIndexes.clear();
+            for (Map.Entry<Integer, ChunkIndex> entry : indexes) {
+                chunkIndexes.put(newBlockNumbers.applyAsInt(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    private void copyBlocks(int fromBlock, int toBlock, int numBlocks) throws IOException {
+        var ioBuffer = ioBufferPool.acquire();
+        try {
+            ioBuffer.clear().limit(numBlocks * blockSizeBytes);
+            blockDevice.readBlock(getDataBlockOffset(fromBlock), ioBuffer);
+            blockDevice.storeBlock(getDataBlockOffset(toBlock), ioBuffer.flip());
+        } finally {
+            ioBufferPool.release(ioBuffer);
+        }
+    }
+
+    // the entries whose chains start in the blocks, and the entries with tails packed into them by block
+    private void collectEntriesStartingIn(Directory dir, Set<Integer> blocks, Map<Integer, EntryRef> entries,
+                                         Map<Integer, List<EntryRef>> packedEntries) throws IOException {
+        for (Map.Entry<String, FileMetadata> entry : dir.getEntriesWithPrefix("")) {
+            var metadata = entry.getValue();
+            if (blocks.contains(metadata.getStartingBlockNumber())) {
+                entries.put(metadata.getStartingBlockNumber(), new EntryRef(dir, entry.getKey(), metadata));
+            }
+            if (metadata.hasPackedTail() && blocks.contains(metadata.getTailBlock())) {
+                packedEntries.computeIfAbsent(metadata.getTailBlock(), block -> new ArrayList<>()).add(new EntryRef(dir, entry.getKey(), metadata));
+            }
+            if (metadata.getType() == FileType.DIR) {
+                collectEntriesStartingIn(loadDirectory(metadata.getStartingBlockNumber()), blocks, entries, packedEntries);
+            }
+        }
+    }
+
+    // writes the directory's chain anew, starting at the first free block
+    private void relocateDirectory(Directory parent, String name, Directory dir) throws IOException {
+        var image = dir.checkpoint();
+        var numBlocks = Math.max(1, (image.length + blockSizeBytes - 1) / blockSizeBytes);
+        var extents = fileAllocationTable.allocateExtents(numBlocks, fileAllocationTable.findFirstFreeBlock());
+        writeBytesToExtents(extents, image, 0, true);
+        var newStartingBlock = extents.get(0).getStart();
+
+        parent.addDirectory(name, newStartingBlock);
+        dirtyDirectories.add(parent);
+        flushDirectories();
+        eraseBlocksToEndMarker(dir.getStartingBlockNumber());
+        loadedDirectories.remove(dir.getStartingBlockNumber());
+        loadedDirectories.put(newStartingBlock, Directory.fromBytes(newStartingBlock, image));
+    }
+
+    private int findNthBlockInFile(int startingBlock, int n) {
+        var currBlock = startingBlock;
+        for (int i = 0; i < n; i++) {
+            if (fileAllocationTable.get(currBlock) <= 0) {
+                throw new RuntimeException("unexpected end of file");
+            }
+            currBlock = fileAllocationTable.get(currBlock);
+        }
+
+        return currBlock;
+    }
+
+    // like findNthBlockInFile from the first block of a file, but through the file's block index for long walks
+    private int findNthBlockOfFile(int startingBlock, int n) {
+        if (n < BLOCK_INDEX_INTERVAL) {
+            return findNthBlockInFile(startingBlock, n);
+        }
+        var index = blockIndexes.computeIfAbsent(startingBlock, block -> new BlockIndex(block, BLOCK_INDEX_INTERVAL));
+        return index.findNthBlock(fileAllocationTable, n);
+    }
+
+    private int findNextConnectedBlock(int from) {
+        if (fileAllocationTable.get(from) > 0) {
+            return fileAllocationTable.get(from);
+        }
+
+        return -1;
+    }
+
+    private static int calculateJournalSize(long deviceSize, int blockSize) {
+        var journalSize = (int) Math.min(MAX_JOURNAL_SIZE_BYTES, Math.max(MIN_JOURNAL_SIZE_BYTES, deviceSize / 16));
+        return Math.max(blockSize, journalSize / blockSize * blockSize);
+    }
+
+    private static int calculateNumFatEntries(long deviceSize, double dataRegionRatio, int blockSize) {
+        var dataRegionSize = (deviceSize * dataRegionRatio);
+        return (int) Math.ceil(dataRegionSize / blockSize);
+    }
+
+    private byte[] readChain(int startingBlock) throws IOException {
+        var numBlocks = 1;
+        for (int block = startingBlock; findNextConnectedBlock(block) >= 0; block = findNextConnectedBlock(block)) {
+            numBlocks++;
+        }
+        var bytes = new byte[numBlocks * blockSizeBytes];
+        readBytesFromChain(startingBlock, 0, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    private int getLastFreeBlockNum() {
+        return fileAllocationTable.getLastFreeBlockNum();
+    }
+
+    // state of a FileWriteChannel: what the file looks like on disk, and what has been written past that
+    static class WriteSession {
+        private final String filePath;
+        private int committedStartingBlockNumber;
+        private long committedSize;
+        private int committedLastBlockNumber;
+        // including the bytes written since the last commit
+        private long size;
+        private int lastBlockNumber;
+        private int firstNewBlockNumber = -1;
+        private final ArrayDeque<Integer> reservedBlocks = new ArrayDeque<>();
+
+        WriteSession(String filePath, int startingBlockNumber, long size, int lastBlockNumber) {
+            this.filePath = filePath;
+            this.committedStartingBlockNumber = startingBlockNumber;
+            this.committedSize = size;
+            this.committedLastBlockNumber = lastBlockNumber;
+            this.size = size;
+            this.lastBlockNumber = lastBlockNumber;
+        }
+    }
+
+    // a directory entry, by the directory it is in
+    static class EntryRef {
+        private final Directory dir;
+        private final String name;
+        private final FileMetadata metadata;
+
+        EntryRef(Directory dir, String name, FileMetadata metadata) {
+            this.dir = dir;
+            this.name = name;
+            this.metadata = metadata;
+        }
+    }
+
+    // position of a reader in a file's chain
+    static class ChainCursor {
+        private int startingBlockNumber;
+        private int blockOrdinalNumber;
+        private int blockNumber = -1;
+        private long freeGeneration;
+
+        ChainCursor(int startingBlockNumber) {
+            this.startingBlockNumber = startingBlockNumber;
+        }
     }
 }
@@ -0,0 +1,146 @@
+package io.github.pltb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of a mounted file system, updated as it runs, and gauges of its free space read when asked for.
+// Durations are kept in latency histograms: one per FileSystem operation, by its name, and the waits for
+// the file locks, the directory lock and the container's lock. The I/O counts are those of the device
+// as the file system uses it, see MeteredBlockDevice.
+public class FileSystemMetrics {
+
+    private final Map<String, LatencyHistogram> operationLatencies = new ConcurrentHashMap<>();
+    private final LatencyHistogram fileLockWaits = new LatencyHistogram();
+    private final LatencyHistogram directoryLockWaits = new LatencyHistogram();
+    private final LongAdder fatEntriesWritten = new LongAdder();
+    private final LongAdder numDirectoryFlushes = new LongAdder();
+    private final LongAdder directoryFlushBytes = new LongAdder();
+    private final LongAdder deduplicatedBlocks = new LongAdder();
+    private final LongAdder unsharedBlocks = new LongAdder();
+
+    private final MeteredBlockDevice blockDevice;
+    private final FileAllocationTable fileAllocationTable;
+    private final int blockSizeBytes;
+
+    FileSystemMetrics(MeteredBlockDevice blockDevice, FileAllocationTable fileAllocationTable, int blockSizeBytes) {
+        this.blockDevice = blockDevice;
+        this.fileAllocationTable = fileAllocationTable;
+        this.blockSizeBytes = blockSizeBytes;
+    }
+
+    void recordOperation(String operation, long nanos) {
+        operationLatencies.computeIfAbsent(operation, name -> new LatencyHistogram()).record(nanos);
+    }
+
+    void addFatEntriesWritten(int numEntries) {
+        fatEntriesWritten.add(numEntries);
+    }
+
+    void addDirectoryFlush(long bytes) {
+        numDirectoryFlushes.increment();
+        directoryFlushBytes.add(bytes);
+    }
+
+    void addDeduplicatedBlocks(int numBlocks) {
+        deduplicatedBlocks.add(numBlocks);
+    }
+
+    void addUnsharedBlocks(int numBlocks) {
+        unsharedBlocks.add(numBlocks);
+    }
+
+    // by operation name, in the order of the names
+    public Map<String, LatencyHistogram> getOperationLatencies() {
+        return Collections.unmodifiableMap(new TreeMap<>(operationLatencies));
+    }
+
+    // an empty histogram for an operation that has not run yet
+    public LatencyHistogram getOperationLatency(String operation) {
+        return operationLatencies.getOrDefault(operation, new LatencyHistogram());
+    }
+
+    public LatencyHistogram getFileLockWaits() {
+        return fileLockWaits;
+    }
+
+    public LatencyHistogram getDirectoryLockWaits() {
+        return directoryLockWaits;
+    }
+
+    // only taken when the container is mounted with cross-process locking
+    public LatencyHistogram getContainerLockWaits() {
+        return blockDevice.getLockWaits();
+    }
+
+    public long getBytesRead() {
+        return blockDevice.getBytesRead();
+    }
+
+    public long getBytesWritten() {
+        return blockDevice.getBytesWritten();
+    }
+
+    // the bytes read and written in whole blocks, rounded down
+    public long getBlocksRead() {
+        return getBytesRead() / blockSizeBytes;
+    }
+
+    public long getBlocksWritten() {
+        return getBytesWritten() / blockSizeBytes;
+    }
+
+    public long getNumDeviceFlushes() {
+        return blockDevice.getNumFlushes();
+    }
+
+    // the entries written in place, and those logged to the journal to be written once it is applied
+    public long getFatEntriesWritten() {
+        return fatEntriesWritten.sum();
+    }
+
+    public long getNumDirectoryFlushes() {
+        return numDirectoryFlushes.sum();
+    }
+
+    public long getDirectoryFlushBytes() {
+        return directoryFlushBytes.sum();
+    }
+
+    // the blocks of new data that were linked to existing blocks with the same data instead of being written
+    public long getDeduplicatedBlocks() {
+        return deduplicatedBlocks.sum();
+    }
+
+    // the shared blocks copied because a file was about to change them
+    public long getUnsharedBlocks() {
+        return unsharedBlocks.sum();
+    }
+
+    // blocks freed by operations count as soon as the operations are done, though they may only be reused later
+    public long getNumFreeBlocks() {
+        return fileAllocationTable.getNumFreeBlocks();
+    }
+
+    public long getFreeSpaceBytes() {
+        return getNumFreeBlocks() * blockSizeBytes;
+    }
+
+    public int getNumFreeExtents() {
+        synchronized (fileAllocationTable) {
+            return fileAllocationTable.getFreeSpaceIndex().getNumFreeExtents();
+        }
+    }
+
+    // the share of the free blocks outside the largest free run: 0 when all of them are in one run,
+    // close to 1 when they are scattered in runs of a block or a few
+    public double getFreeSpaceFragmentation() {
+        synchronized (fileAllocationTable) {
+            var freeSpaceIndex = fileAllocationTable.getFreeSpaceIndex();
+            var numFreeBlocks = freeSpaceIndex.getNumFreeBlocks();
+            return numFreeBlocks == 0 ? 0 : 1 - (double) freeSpaceIndex.getLargestFreeRunLength() / numFreeBlocks;
+        }
+    }
+}
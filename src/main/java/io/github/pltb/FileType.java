@@ -2,5 +2,5 @@ package io.github.pltb;
 
 public enum FileType {
     FILE,
-    DIR // todo: remove? it's unused atm
+    DIR
 }
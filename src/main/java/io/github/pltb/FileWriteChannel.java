@@ -0,0 +1,124 @@
+package io.github.pltb;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+// Buffered, sequential write channel over a file of a FileSystemImpl. Small writes are collected into a buffer
+// of whole blocks, which goes to the file system when full. The file's metadata (FAT entries and its directory entry)
+// is only written on flush() and close(), so the written bytes become visible to others at those points.
+// Writing fails if the file is changed by anyone else while the channel is open.
+public class FileWriteChannel implements WritableByteChannel, Flushable {
+
+    final private static int BUFFER_SIZE_BYTES = 64 * 1024;
+
+    private final FileSystemImpl fileSystem;
+    private final FileSystemImpl.WriteSession session;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE_BYTES);
+    // position of the start of the buffer in the file
+    private long position;
+    private boolean open = true;
+
+    FileWriteChannel(FileSystemImpl fileSystem, FileSystemImpl.WriteSession session, long position) {
+        this.fileSystem = fileSystem;
+        this.session = session;
+        this.position = position;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        var length = src.remaining();
+        while (src.hasRemaining()) {
+            if (buffer.position() == 0 && src.hasArray() && src.remaining() >= buffer.capacity()) {
+                // large writes skip the buffer
+                var chunkLength = src.remaining() / buffer.capacity() * buffer.capacity();
+                fileSystem.writeToFile(session, position, src.array(), src.arrayOffset() + src.position(), chunkLength);
+                src.position(src.position() + chunkLength);
+                position += chunkLength;
+                continue;
+            }
+
+            var chunkLength = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), src, src.position(), chunkLength);
+            buffer.position(buffer.position() + chunkLength);
+            src.position(src.position() + chunkLength);
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+        }
+        return length;
+    }
+
+    // makes everything written so far part of the file
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        writeBuffer();
+        fileSystem.commitWrites(session);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            writeBuffer();
+        } finally {
+            fileSystem.closeWriteSession(session);
+        }
+    }
+
+    public synchronized long position() {
+        return position + buffer.position();
+    }
+
+    // flush() and close() of the stream are passed to the channel
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                FileWriteChannel.this.write(ByteBuffer.wrap(new byte[] {(byte) b}));
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                FileWriteChannel.this.write(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void flush() throws IOException {
+                FileWriteChannel.this.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                FileWriteChannel.this.close();
+            }
+        };
+    }
+
+    private void writeBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            fileSystem.writeToFile(session, position, buffer.array(), 0, buffer.position());
+            position += buffer.position();
+            buffer.clear();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.pltb;
+
+// options of a new container, persisted in its superblock, so that every later mount uses the same ones
+public class FormatOptions {
+
+    final private static int MIN_BLOCK_SIZE_BYTES = 512;
+    final private static int MAX_BLOCK_SIZE_BYTES = 1024 * 1024;
+    final private static int MIN_FAT_ENTRY_WIDTH_BYTES = 2;
+    final private static int MAX_FAT_ENTRY_WIDTH_BYTES = 4;
+
+    private int blockSizeBytes = 1024;
+    private int fatEntryWidthBytes = 4;
+    // the share of the max capacity that is addressable by the FAT, the rest is left for the metadata regions
+    private double dataRegionRatio = 0.8;
+    // -1 sizes the journal by the max capacity, 0 formats the container without a journal
+    private int journalSizeBytes = -1;
+
+    public static FormatOptions defaults() {
+        return new FormatOptions();
+    }
+
+    // a power of two, large blocks suit big sequential files, small ones many small files
+    public FormatOptions withBlockSize(int blockSizeBytes) {
+        if (blockSizeBytes < MIN_BLOCK_SIZE_BYTES || blockSizeBytes > MAX_BLOCK_SIZE_BYTES || Integer.bitCount(blockSizeBytes) != 1) {
+            throw new IllegalArgumentException("block size must be a power of two from " + MIN_BLOCK_SIZE_BYTES + " to " + MAX_BLOCK_SIZE_BYTES);
+        }
+        this.blockSizeBytes = blockSizeBytes;
+        return this;
+    }
+
+    // narrower entries make the FAT smaller, but address fewer blocks (2 bytes: up to 65535 blocks)
+    public FormatOptions withFatEntryWidth(int fatEntryWidthBytes) {
+        if (fatEntryWidthBytes < MIN_FAT_ENTRY_WIDTH_BYTES || fatEntryWidthBytes > MAX_FAT_ENTRY_WIDTH_BYTES) {
+            throw new IllegalArgumentException("FAT entry width must be from " + MIN_FAT_ENTRY_WIDTH_BYTES + " to " + MAX_FAT_ENTRY_WIDTH_BYTES + " bytes");
+        }
+        this.fatEntryWidthBytes = fatEntryWidthBytes;
+        return this;
+    }
+
+    public FormatOptions withDataRegionRatio(double dataRegionRatio) {
+        if (dataRegionRatio <= 0 || dataRegionRatio > 1) {
+            throw new IllegalArgumentException("data region ratio must be in (0, 1]");
+        }
+        this.dataRegionRatio = dataRegionRatio;
+        return this;
+    }
+
+    // rounded down to whole blocks
+    public FormatOptions withJournalSize(int journalSizeBytes) {
+        if (journalSizeBytes < 0) {
+            throw new IllegalArgumentException("journal size cannot be negative");
+        }
+        this.journalSizeBytes = journalSizeBytes;
+        return this;
+    }
+
+    public int getBlockSizeBytes() {
+        return blockSizeBytes;
+    }
+
+    public int getFatEntryWidthBytes() {
+        return fatEntryWidthBytes;
+    }
+
+    public double getDataRegionRatio() {
+        return dataRegionRatio;
+    }
+
+    // -1 if the journal is sized by the max capacity
+    public int getJournalSizeBytes() {
+        return journalSizeBytes;
+    }
+}
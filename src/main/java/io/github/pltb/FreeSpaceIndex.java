@@ -0,0 +1,152 @@
+package io.github.pltb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// in-memory index of free block extents, kept in sync with the FAT,
+// so that allocation does not need to scan the table
+public class FreeSpaceIndex {
+
+    // extent start -> extent length
+    private final TreeMap<Integer, Integer> extentsByStart = new TreeMap<>();
+    // (length << 32 | start), ordered by length first
+    private final TreeSet<Long> extentsBySize = new TreeSet<>();
+
+    private final int numBlocks;
+    private int numFreeBlocks;
+
+    public FreeSpaceIndex(int numBlocks) {
+        this.numBlocks = numBlocks;
+    }
+
+    public static FreeSpaceIndex fromFat(int[] fat) {
+        var index = new FreeSpaceIndex(fat.length);
+        var runStart = -1;
+        for (int i = 0; i < fat.length; i++) {
+            if (fat[i] == FileAllocationTable.FREE) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+            } else if (runStart >= 0) {
+                index.addExtent(runStart, i - runStart);
+                runStart = -1;
+            }
+        }
+        if (runStart >= 0) {
+            index.addExtent(runStart, fat.length - runStart);
+        }
+        return index;
+    }
+
+    // returns the first free block at or after the given one, or -1
+    public int nextFreeFrom(int from) {
+        if (from >= numBlocks) {
+            return -1;
+        }
+        var containing = extentsByStart.floorEntry(from);
+        if (containing != null && containing.getKey() + containing.getValue() > from) {
+            return from;
+        }
+        var next = extentsByStart.ceilingKey(from);
+        return next == null ? -1 : next;
+    }
+
+    // returns the number of free blocks from the given one up to the end of its extent
+    public int getFreeRunLengthAt(int block) {
+        var containing = extentsByStart.floorEntry(block);
+        if (containing == null || containing.getKey() + containing.getValue() <= block) {
+            return 0;
+        }
+        return containing.getKey() + containing.getValue() - block;
+    }
+
+    // returns the start of the smallest free run of at least numBlocks blocks, or -1
+    public int findFreeRun(int numBlocks) {
+        var fit = extentsBySize.ceiling(sizeKey(numBlocks, 0));
+        return fit == null ? -1 : (int) (long) fit;
+    }
+
+    public int getLargestFreeRunLength() {
+        return extentsBySize.isEmpty() ? 0 : (int) (extentsBySize.last() >>> 32);
+    }
+
+    public int getLargestFreeRunStart() {
+        return extentsBySize.isEmpty() ? -1 : (int) (long) extentsBySize.last();
+    }
+
+    // returns the start of the free run that reaches the end of the table, or -1
+    public int getTrailingFreeRunStart() {
+        var last = extentsByStart.lastEntry();
+        if (last != null && last.getKey() + last.getValue() == numBlocks) {
+            return last.getKey();
+        }
+        return -1;
+    }
+
+    public int getNumFreeBlocks() {
+        return numFreeBlocks;
+    }
+
+    public int getNumFreeExtents() {
+        return extentsByStart.size();
+    }
+
+    public void markAllocated(int start, int length) {
+        var containing = extentsByStart.floorEntry(start);
+        if (containing == null || containing.getKey() + containing.getValue() < start + length) {
+            throw new IllegalStateException("blocks " + start + ".." + (start + length - 1) + " are not free");
+        }
+        int extentStart = containing.getKey();
+        int extentLength = containing.getValue();
+        removeExtent(extentStart, extentLength);
+        if (start > extentStart) {
+            addExtent(extentStart, start - extentStart);
+        }
+        var extentEnd = extentStart + extentLength;
+        if (start + length < extentEnd) {
+            addExtent(start + length, extentEnd - start - length);
+        }
+    }
+
+    public void markFree(int start, int length) {
+        var mergedStart = start;
+        var mergedEnd = start + length;
+
+        var left = extentsByStart.floorEntry(start);
+        if (left != null && left.getKey() + left.getValue() > start) {
+            throw new IllegalStateException("block " + start + " is already free");
+        }
+        if (left != null && left.getKey() + left.getValue() == start) {
+            mergedStart = left.getKey();
+            removeExtent(left.getKey(), left.getValue());
+        }
+
+        Map.Entry<Integer, Integer> right = extentsByStart.ceilingEntry(start);
+        if (right != null && right.getKey() < mergedEnd) {
+            throw new IllegalStateException("block " + right.getKey() + " is already free");
+        }
+        if (right != null && right.getKey() == mergedEnd) {
+            mergedEnd += right.getValue();
+            removeExtent(right.getKey(), right.getValue());
+        }
+
+        addExtent(mergedStart, mergedEnd - mergedStart);
+    }
+
+    private void addExtent(int start, int length) {
+        extentsByStart.put(start, length);
+        extentsBySize.add(sizeKey(length, start));
+        numFreeBlocks += length;
+    }
+
+    private void removeExtent(int start, int length) {
+        extentsByStart.remove(start);
+        extentsBySize.remove(sizeKey(length, start));
+        numFreeBlocks -= length;
+    }
+
+    private static long sizeKey(int length, int start) {
+        return ((long) length << 32) | (start & 0xFFFFFFFFL);
+    }
+}
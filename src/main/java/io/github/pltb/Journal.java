@@ -0,0 +1,403 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Write-ahead journal for metadata writes (FAT entries and directory blocks).
+//
+// Region layout: a header (magic, epoch) followed by transaction records, each of which is
+// <magic> <epoch> <seq> <number of writes> (<device offset> <length> <bytes>)* <crc32>
+// where a sequence write has a negative length, the negated number of entries, followed by
+// <entry width (1 byte)> <first value> <step> instead of the bytes.
+//
+// A transaction is made durable by appending its record and forcing the device, and only then are its
+// writes applied in place. Transactions submitted while another thread is committing are written out
+// together by the next committer with a single force (group commit). When the region is full, the device
+// is forced, so that the writes applied in place are durable, and the region is reused under a new epoch.
+// On mount, the records of the current epoch are replayed in order until the first incomplete one.
+// Replay writes to the device whatever the records say, so a block that a record of the current epoch writes to
+// must not be freed for data written outside the journal before the next checkpoint: on-applied actions hold such
+// frees back with addOnCheckpointedAction().
+// A failed commit fails every later one, and close(): the callers' metadata in memory is ahead of the device by
+// the failed batch, which only a remount brings back in line, by replaying what was made durable of it.
+public class Journal {
+
+    final public static int HEADER_SIZE_BYTES = 64;
+
+    final private static int HEADER_MAGIC = 0x4A524E4C;
+    final private static int RECORD_MAGIC = 0x4A524543;
+    final private static int RECORD_HEADER_SIZE_BYTES = 4 + 8 + 8 + 4;
+    final private static int WRITE_HEADER_SIZE_BYTES = 8 + 4;
+    final private static int RECORD_TRAILER_SIZE_BYTES = 4;
+    // held back actions beyond which the region is checkpointed early, so that the blocks they free come back
+    final private static int MAX_ON_CHECKPOINTED_ACTIONS = 64;
+
+    private final BlockDevice blockDevice;
+    private final long regionOffset;
+    private final int regionSizeBytes;
+
+    // guarded by this
+    private List<JournalTransaction> pendingTransactions = new ArrayList<>();
+    private long lastSubmittedSeq;
+    private long lastDurableSeq;
+    private boolean commitInProgress;
+    // never cleared, see the class comment
+    private IOException commitFailure;
+    private long numForces;
+    private long numCommittedTransactions;
+
+    // only touched by the committing thread
+    private long epoch;
+    private long recordSeq;
+    private int writePosition;
+    // the device ranges the records of the current epoch write to, start -> end (exclusive), merged
+    private final TreeMap<Long, Long> replayableRanges = new TreeMap<>();
+    private final List<Runnable> onCheckpointedActions = new ArrayList<>();
+
+    private Journal(BlockDevice blockDevice, long regionOffset, int regionSizeBytes) {
+        this.blockDevice = blockDevice;
+        this.regionOffset = regionOffset;
+        this.regionSizeBytes = regionSizeBytes;
+    }
+
+    public static Journal format(BlockDevice blockDevice, long regionOffset, int regionSizeBytes) throws IOException {
+        var journal = new Journal(blockDevice, regionOffset, regionSizeBytes);
+        journal.epoch = 1;
+        journal.writePosition = HEADER_SIZE_BYTES;
+        journal.writeHeader();
+        return journal;
+    }
+
+    // replays the committed transactions that may not have been applied in place before the last shutdown
+    public static Journal open(BlockDevice blockDevice, long regionOffset, int regionSizeBytes) throws IOException {
+        var journal = new Journal(blockDevice, regionOffset, regionSizeBytes);
+        var region = ByteBuffer.allocate(regionSizeBytes);
+        blockDevice.readBlock(regionOffset, region);
+        if (region.getInt(0) == HEADER_MAGIC) {
+            journal.epoch = region.getLong(4);
+            journal.replay(region);
+        }
+        journal.checkpoint();
+        return journal;
+    }
+
+    public synchronized long submit(JournalTransaction transaction) {
+        pendingTransactions.add(transaction);
+        return ++lastSubmittedSeq;
+    }
+
+    // blocks until the transaction with the given sequence number is durable and applied in place;
+    // the first waiting thread commits everything submitted so far, the others wait for it
+    public void awaitDurable(long seq) throws IOException {
+        List<JournalTransaction> batch;
+        long batchLastSeq;
+        synchronized (this) {
+            while (true) {
+                if (commitFailure != null) {
+                    throw new IOException("journal commit failed", commitFailure);
+                }
+                if (lastDurableSeq >= seq) {
+                    return;
+                }
+                if (!commitInProgress) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a journal commit");
+                }
+            }
+            commitInProgress = true;
+            batch = pendingTransactions;
+            pendingTransactions = new ArrayList<>();
+            batchLastSeq = lastSubmittedSeq;
+        }
+
+        IOException failure = null;
+        try {
+            commitBatch(batch);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                commitInProgress = false;
+                if (failure == null) {
+                    lastDurableSeq = batchLastSeq;
+                } else {
+                    commitFailure = failure;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    public void commit(JournalTransaction transaction) throws IOException {
+        awaitDurable(submit(transaction));
+    }
+
+    public void close() throws IOException {
+        long seq;
+        synchronized (this) {
+            seq = lastSubmittedSeq;
+        }
+        awaitDurable(seq);
+        checkpoint();
+    }
+
+    // Whether replay could still write to the given range of the device. Only for on-applied actions, which run
+    // on the committing thread.
+    public boolean isReplayable(long offset, int length) {
+        var range = replayableRanges.lowerEntry(offset + length);
+        return range != null && range.getValue() > offset;
+    }
+
+    // runs the action once the records of the current epoch can no longer be replayed, only for on-applied actions
+    public void addOnCheckpointedAction(Runnable action) {
+        onCheckpointedActions.add(action);
+    }
+
+    // Checkpoints the region if actions are held back for it, so that they run now. It takes the place of the
+    // committing thread; transactions submitted but not committed yet go into the new epoch.
+    public void checkpointIfHolding() throws IOException {
+        synchronized (this) {
+            while (commitInProgress) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for a journal commit");
+                }
+            }
+            commitInProgress = true;
+        }
+        try {
+            if (!onCheckpointedActions.isEmpty()) {
+                checkpoint();
+            }
+        } finally {
+            synchronized (this) {
+                commitInProgress = false;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized long getNumForces() {
+        return numForces;
+    }
+
+    public synchronized long getNumCommittedTransactions() {
+        return numCommittedTransactions;
+    }
+
+    private void commitBatch(List<JournalTransaction> batch) throws IOException {
+        var recordTransactions = new ArrayList<JournalTransaction>();
+        var recordsSizeBytes = 0;
+
+        for (JournalTransaction transaction : batch) {
+            var recordSize = transaction.getNumWrites() > 0 ? getRecordSizeBytes(transaction) : 0;
+            if (HEADER_SIZE_BYTES + recordSize > regionSizeBytes) {
+                // Can never fit into the journal, so it is written in place without atomicity. The region is
+                // emptied before and after, as the records in it must not be replayed over these writes.
+                writeRecordsAndApply(recordTransactions, recordsSizeBytes);
+                recordTransactions.clear();
+                recordsSizeBytes = 0;
+                checkpoint();
+                applyInPlace(transaction);
+                checkpoint();
+                runOnAppliedActions(transaction);
+                continue;
+            }
+
+            if (writePosition + recordsSizeBytes + recordSize > regionSizeBytes) {
+                writeRecordsAndApply(recordTransactions, recordsSizeBytes);
+                recordTransactions.clear();
+                recordsSizeBytes = 0;
+                checkpoint();
+            }
+            recordTransactions.add(transaction);
+            recordsSizeBytes += recordSize;
+        }
+
+        writeRecordsAndApply(recordTransactions, recordsSizeBytes);
+        if (onCheckpointedActions.size() >= MAX_ON_CHECKPOINTED_ACTIONS) {
+            checkpoint();
+        }
+        synchronized (this) {
+            numCommittedTransactions += batch.size();
+        }
+    }
+
+    private void writeRecordsAndApply(List<JournalTransaction> transactions, int recordsSizeBytes) throws IOException {
+        if (recordsSizeBytes > 0) {
+            var records = ByteBuffer.allocate(recordsSizeBytes);
+            for (JournalTransaction transaction : transactions) {
+                if (transaction.getNumWrites() > 0) {
+                    encodeRecord(transaction, records);
+                }
+            }
+            blockDevice.storeBlock(regionOffset + writePosition, records.flip());
+            force();
+            writePosition += recordsSizeBytes;
+        }
+
+        for (JournalTransaction transaction : transactions) {
+            applyInPlace(transaction);
+            runOnAppliedActions(transaction);
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        // everything applied so far has to be durable before the records describing it are dropped
+        force();
+        epoch++;
+        writePosition = HEADER_SIZE_BYTES;
+        writeHeader();
+        force();
+        replayableRanges.clear();
+        for (Runnable action : onCheckpointedActions) {
+            action.run();
+        }
+        onCheckpointedActions.clear();
+    }
+
+    private void replay(ByteBuffer region) throws IOException {
+        var position = HEADER_SIZE_BYTES;
+        var lastSeq = 0L;
+        while (position + RECORD_HEADER_SIZE_BYTES + RECORD_TRAILER_SIZE_BYTES <= regionSizeBytes) {
+            region.position(position);
+            if (region.getInt() != RECORD_MAGIC || region.getLong() != epoch) {
+                break;
+            }
+            var seq = region.getLong();
+            var numWrites = region.getInt();
+            if (seq <= lastSeq || numWrites <= 0) {
+                break;
+            }
+
+            var transaction = new JournalTransaction();
+            var valid = true;
+            for (int i = 0; i < numWrites && valid; i++) {
+                if (region.remaining() < WRITE_HEADER_SIZE_BYTES) {
+                    valid = false;
+                    break;
+                }
+                var offset = region.getLong();
+                var length = region.getInt();
+                if (length < 0) {
+                    if (region.remaining() < JournalTransaction.SEQUENCE_SIZE_BYTES + RECORD_TRAILER_SIZE_BYTES) {
+                        valid = false;
+                        break;
+                    }
+                    var entryWidth = region.get();
+                    var firstValue = region.getInt();
+                    var step = region.getInt();
+                    if (entryWidth < 1 || entryWidth > Integer.BYTES) {
+                        valid = false;
+                        break;
+                    }
+                    transaction.addSequenceWrite(offset, entryWidth, firstValue, step, -length);
+                    continue;
+                }
+                if (region.remaining() < length + RECORD_TRAILER_SIZE_BYTES) {
+                    valid = false;
+                    break;
+                }
+                var bytes = new byte[length];
+                region.get(bytes);
+                transaction.addWrite(offset, bytes);
+            }
+            if (!valid || region.remaining() < RECORD_TRAILER_SIZE_BYTES) {
+                break;
+            }
+
+            var crc = new CRC32();
+            crc.update(region.array(), position + 4, region.position() - position - 4);
+            if ((int) crc.getValue() != region.getInt()) {
+                break;
+            }
+
+            applyInPlace(transaction);
+            lastSeq = seq;
+            position = region.position();
+        }
+        recordSeq = lastSeq;
+    }
+
+    private void encodeRecord(JournalTransaction transaction, ByteBuffer dst) {
+        var start = dst.position();
+        dst.putInt(RECORD_MAGIC).putLong(epoch).putLong(++recordSeq).putInt(transaction.getNumWrites());
+        for (int i = 0; i < transaction.getNumWrites(); i++) {
+            dst.putLong(transaction.getOffset(i));
+            if (transaction.isSequence(i)) {
+                var sequence = transaction.getSequence(i);
+                dst.putInt(-sequence[3]).put((byte) sequence[0]).putInt(sequence[1]).putInt(sequence[2]);
+                addReplayableRange(transaction.getOffset(i), sequence[0] * sequence[3]);
+            } else {
+                var bytes = transaction.getWrite(i);
+                dst.putInt(bytes.length).put(bytes);
+                addReplayableRange(transaction.getOffset(i), bytes.length);
+            }
+        }
+        var crc = new CRC32();
+        crc.update(dst.array(), start + 4, dst.position() - start - 4);
+        dst.putInt((int) crc.getValue());
+    }
+
+    private void addReplayableRange(long offset, int length) {
+        var start = offset;
+        var end = offset + length;
+        var left = replayableRanges.floorEntry(start);
+        if (left != null && left.getValue() >= start) {
+            start = left.getKey();
+            end = Math.max(end, left.getValue());
+        }
+        Map.Entry<Long, Long> right;
+        while ((right = replayableRanges.ceilingEntry(start)) != null && right.getKey() <= end) {
+            end = Math.max(end, right.getValue());
+            replayableRanges.remove(right.getKey());
+        }
+        replayableRanges.put(start, end);
+    }
+
+    private static int getRecordSizeBytes(JournalTransaction transaction) {
+        return RECORD_HEADER_SIZE_BYTES
+                + WRITE_HEADER_SIZE_BYTES * transaction.getNumWrites()
+                + transaction.getPayloadSizeBytes()
+                + RECORD_TRAILER_SIZE_BYTES;
+    }
+
+    private void applyInPlace(JournalTransaction transaction) throws IOException {
+        for (int i = 0; i < transaction.getNumWrites(); i++) {
+            blockDevice.storeBlock(transaction.getOffset(i), ByteBuffer.wrap(transaction.getWrite(i)));
+        }
+    }
+
+    private void runOnAppliedActions(JournalTransaction transaction) {
+        for (Runnable action : transaction.getOnAppliedActions()) {
+            action.run();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        var header = ByteBuffer.allocate(HEADER_SIZE_BYTES);
+        header.putInt(HEADER_MAGIC).putLong(epoch);
+        blockDevice.storeBlock(regionOffset, header.flip());
+    }
+
+    private void force() throws IOException {
+        blockDevice.flush();
+        synchronized (this) {
+            numForces++;
+        }
+    }
+}
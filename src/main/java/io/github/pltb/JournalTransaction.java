@@ -0,0 +1,84 @@
+package io.github.pltb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// metadata writes of a single file system operation, which reach the disk atomically
+public class JournalTransaction {
+
+    final public static int SEQUENCE_SIZE_BYTES = 1 + 4 + 4;
+
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<byte[]> writes = new ArrayList<>();
+    // {entry width, first value, step, number of entries} for sequence writes, null for plain ones
+    private final List<int[]> sequences = new ArrayList<>();
+    private final List<Runnable> onAppliedActions = new ArrayList<>();
+    private int payloadSizeBytes;
+
+    public void addWrite(long offset, byte[] bytes) {
+        offsets.add(offset);
+        writes.add(bytes);
+        sequences.add(null);
+        payloadSizeBytes += bytes.length;
+    }
+
+    // Entries of entryWidthBytes bytes, starting with firstValue and growing by step, each holding the low bytes
+    // of its value in big-endian order. A run of linked FAT entries or of free ones takes a few bytes this way.
+    public void addSequenceWrite(long offset, int entryWidthBytes, int firstValue, int step, int numEntries) {
+        offsets.add(offset);
+        writes.add(null);
+        sequences.add(new int[] {entryWidthBytes, firstValue, step, numEntries});
+        payloadSizeBytes += SEQUENCE_SIZE_BYTES;
+    }
+
+    // runs once the writes have been applied in place
+    public void addOnAppliedAction(Runnable action) {
+        onAppliedActions.add(action);
+    }
+
+    public boolean isEmpty() {
+        return writes.isEmpty() && onAppliedActions.isEmpty();
+    }
+
+    public int getNumWrites() {
+        return writes.size();
+    }
+
+    public long getOffset(int i) {
+        return offsets.get(i);
+    }
+
+    public boolean isSequence(int i) {
+        return sequences.get(i) != null;
+    }
+
+    public int[] getSequence(int i) {
+        return sequences.get(i);
+    }
+
+    // the bytes written, with sequences spelled out
+    public byte[] getWrite(int i) {
+        var sequence = sequences.get(i);
+        if (sequence == null) {
+            return writes.get(i);
+        }
+        var entryWidth = sequence[0];
+        var bytes = new byte[entryWidth * sequence[3]];
+        var value = sequence[1];
+        for (int entry = 0; entry < sequence[3]; entry++, value += sequence[2]) {
+            for (int j = 0; j < entryWidth; j++) {
+                bytes[entry * entryWidth + j] = (byte) (value >>> (8 * (entryWidth - 1 - j)));
+            }
+        }
+        return bytes;
+    }
+
+    // the size of the writes as stored in a journal record
+    public int getPayloadSizeBytes() {
+        return payloadSizeBytes;
+    }
+
+    List<Runnable> getOnAppliedActions() {
+        return onAppliedActions;
+    }
+}
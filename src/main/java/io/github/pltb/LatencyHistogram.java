@@ -0,0 +1,69 @@
+package io.github.pltb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Durations in nanoseconds, counted in a bucket per power of two: recording is a couple of atomic increments,
+// and percentiles are exact up to a factor of two. Bucket i counts the durations from 2^(i-1) up to 2^i - 1,
+// bucket 0 those of zero, such as lock acquisitions that did not wait.
+public class LatencyHistogram {
+
+    final private static int NUM_BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets.incrementAndGet(Math.min(NUM_BUCKETS - 1, Long.SIZE - Long.numberOfLeadingZeros(nanos)));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        var count = getCount();
+        return count == 0 ? 0 : (double) getTotalNanos() / count;
+    }
+
+    // the upper bound of the bucket the percentile falls into, but at most the max; 0 if nothing was recorded
+    public long getPercentileNanos(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be from 0 to 100");
+        }
+        var counts = new long[NUM_BUCKETS];
+        var total = 0L;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        var seen = 0L;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                var upperBound = i == 0 ? 0 : i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(upperBound, getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+}
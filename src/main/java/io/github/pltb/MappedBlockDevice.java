@@ -0,0 +1,241 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Block device over a memory-mapped container file. The file is mapped in segments (a single mapping
+// cannot exceed 2 GB), and the mapping is grown in chunks, so the container file may be up to one chunk
+// larger than the device while it is open. It is trimmed back to the exact size on close.
+public class MappedBlockDevice implements BlockDevice {
+
+    final private static long SEGMENT_SIZE_BYTES = 1L << 30;
+    final private static long GROWTH_CHUNK_SIZE_BYTES = 1L << 20;
+
+    private final FileChannel fileChannel;
+    // orders execWithLock() between threads, the lock on the channel only keeps other processes out
+    private final ReentrantLock processLock = new ReentrantLock();
+    // replaced as a whole when the mapping changes, so that readers can use it without locking
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long mappedSizeBytes;
+    private volatile long sizeInBytes;
+
+    private long maxAddressableSpaceBytes;
+
+    private MappedBlockDevice(FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        this.sizeInBytes = fileChannel.size();
+        ensureMapped(sizeInBytes);
+    }
+
+    public static BlockDevice createNew(File containerFile, long maxAddressableSpaceBytes) throws IOException {
+        containerFile.createNewFile();
+        var fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+        var blockDevice = new MappedBlockDevice(fileChannel);
+        blockDevice.maxAddressableSpaceBytes = maxAddressableSpaceBytes;
+        return blockDevice;
+    }
+
+    public static BlockDevice attachToFile(File containerFile) throws IOException {
+        var fileChannel = FileChannel.open(containerFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.READ);
+        var blockDevice = new MappedBlockDevice(fileChannel);
+        var superblock = Superblock.fromBytes(blockDevice.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES));
+        blockDevice.maxAddressableSpaceBytes = superblock.getMaxAddressableSpaceBytes();
+        return blockDevice;
+    }
+
+    @Override
+    public void storeBlock(int blockOffset, byte[] block) throws IOException {
+        storeBlock(blockOffset, ByteBuffer.wrap(block));
+    }
+
+    @Override
+    public byte[] readBlock(int blockOffset, int blockSize) throws IOException {
+        var block = ByteBuffer.allocate(blockSize);
+        readBlock(blockOffset, block);
+        return block.array();
+    }
+
+    @Override
+    public synchronized void storeBlock(long blockOffset, ByteBuffer src) throws IOException {
+        ensureMapped(blockOffset + src.remaining());
+        var segments = this.segments;
+        var position = blockOffset;
+        while (src.hasRemaining()) {
+            var segment = segments[(int) (position / SEGMENT_SIZE_BYTES)];
+            var positionInSegment = (int) (position % SEGMENT_SIZE_BYTES);
+            var length = Math.min(src.remaining(), segment.capacity() - positionInSegment);
+            segment.put(positionInSegment, src, src.position(), length);
+            src.position(src.position() + length);
+            position += length;
+        }
+        sizeInBytes = Math.max(sizeInBytes, position);
+    }
+
+    @Override
+    public void readBlock(long blockOffset, ByteBuffer dst) throws IOException {
+        var segments = this.segments;
+        // like a file channel read, bytes past the end of the device read as zeros
+        var bytesAvailable = (int) Math.max(0, Math.min(dst.remaining(), sizeInBytes - blockOffset));
+        var position = blockOffset;
+        var end = blockOffset + bytesAvailable;
+        while (position < end) {
+            var segment = segments[(int) (position / SEGMENT_SIZE_BYTES)];
+            var positionInSegment = (int) (position % SEGMENT_SIZE_BYTES);
+            var length = (int) Math.min(end - position, segment.capacity() - positionInSegment);
+            dst.put(dst.position(), segment, positionInSegment, length);
+            dst.position(dst.position() + length);
+            position += length;
+        }
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+    }
+
+    // the channel writes straight from the mapping
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        if (offset + count > sizeInBytes) {
+            throw new IOException("transfer past the end of the container");
+        }
+        var segments = this.segments;
+        var position = offset;
+        while (position < offset + count) {
+            var segment = segments[(int) (position / SEGMENT_SIZE_BYTES)];
+            var positionInSegment = (int) (position % SEGMENT_SIZE_BYTES);
+            var length = (int) Math.min(offset + count - position, segment.capacity() - positionInSegment);
+            var slice = segment.slice(positionInSegment, length);
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+            position += length;
+        }
+    }
+
+    // the channel reads straight into the mapping
+    @Override
+    public synchronized long transferFrom(ReadableByteChannel src, long offset, long count) throws IOException {
+        ensureMapped(offset + count);
+        var segments = this.segments;
+        var position = offset;
+        while (position < offset + count) {
+            var segment = segments[(int) (position / SEGMENT_SIZE_BYTES)];
+            var positionInSegment = (int) (position % SEGMENT_SIZE_BYTES);
+            var length = (int) Math.min(offset + count - position, segment.capacity() - positionInSegment);
+            var bytesRead = src.read(segment.slice(positionInSegment, length));
+            if (bytesRead < 0) {
+                break;
+            }
+            position += bytesRead;
+            sizeInBytes = Math.max(sizeInBytes, position);
+        }
+        return position - offset;
+    }
+
+    @Override
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        for (MappedByteBuffer segment : this.segments) {
+            segment.force();
+        }
+        this.fileChannel.force(true);
+    }
+
+    @Override
+    public void execWithLock(RunnableIOOperation func) throws IOException {
+        processLock.lock();
+        try {
+            FileLock lock = this.fileChannel.lock();
+
+            try {
+                func.run();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    @Override
+    public <T> T execWithLock(CallableIOOperation<? extends T> func) throws IOException {
+        processLock.lock();
+        try {
+            FileLock lock = this.fileChannel.lock();
+
+            try {
+                return func.run();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        // the mappings are released by the GC; dropping them here makes sure they are not touched anymore
+        this.segments = new MappedByteBuffer[0];
+        this.fileChannel.truncate(sizeInBytes);
+        this.fileChannel.close();
+    }
+
+    @Override
+    public synchronized void truncate(long newLength) throws IOException {
+        if (newLength >= sizeInBytes) {
+            return;
+        }
+
+        sizeInBytes = newLength;
+        // accessing a mapping past the end of a truncated file crashes the JVM, so remap from scratch
+        this.segments = new MappedByteBuffer[0];
+        mappedSizeBytes = 0;
+        this.fileChannel.truncate(roundUpToChunk(newLength));
+        ensureMapped(newLength);
+    }
+
+    public long getMaxAddressableSpaceBytes() {
+        return maxAddressableSpaceBytes;
+    }
+
+    private void ensureMapped(long endPosition) throws IOException {
+        if (endPosition <= mappedSizeBytes) {
+            return;
+        }
+
+        var newMappedSize = roundUpToChunk(endPosition);
+        var numSegments = (int) ((newMappedSize + SEGMENT_SIZE_BYTES - 1) / SEGMENT_SIZE_BYTES);
+        var newSegments = Arrays.copyOf(this.segments, numSegments);
+        // the last segment may be partial, so it is remapped with the new length
+        var firstSegmentToMap = this.segments.length;
+        if (firstSegmentToMap > 0 && this.segments[firstSegmentToMap - 1].capacity() < SEGMENT_SIZE_BYTES) {
+            firstSegmentToMap--;
+        }
+
+        for (int i = firstSegmentToMap; i < numSegments; i++) {
+            var segmentStart = i * SEGMENT_SIZE_BYTES;
+            var segmentSize = Math.min(SEGMENT_SIZE_BYTES, newMappedSize - segmentStart);
+            newSegments[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, segmentStart, segmentSize);
+        }
+        this.segments = newSegments;
+        mappedSizeBytes = newMappedSize;
+    }
+
+    private static long roundUpToChunk(long size) {
+        return Math.max(1, (size + GROWTH_CHUNK_SIZE_BYTES - 1) / GROWTH_CHUNK_SIZE_BYTES) * GROWTH_CHUNK_SIZE_BYTES;
+    }
+}
@@ -0,0 +1,143 @@
+package io.github.pltb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+// A block device decorator that counts the I/O going through it, and the time spent waiting for the container's
+// lock in execWithLock. The file system puts it on top of the device it mounts, so that the counts include
+// the superblock, the journal, the FAT and the directories as well as file data, as the file system asks for them.
+public class MeteredBlockDevice implements BlockDevice {
+
+    private final BlockDevice blockDevice;
+
+    private final LongAdder numReads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder numWrites = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder numFlushes = new LongAdder();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+
+    public MeteredBlockDevice(BlockDevice blockDevice) {
+        this.blockDevice = blockDevice;
+    }
+
+    @Override
+    public void storeBlock(int blockOffset, byte[] block) throws IOException {
+        blockDevice.storeBlock(blockOffset, block);
+        countWrite(block.length);
+    }
+
+    @Override
+    public byte[] readBlock(int blockOffset, int blockSize) throws IOException {
+        var block = blockDevice.readBlock(blockOffset, blockSize);
+        countRead(blockSize);
+        return block;
+    }
+
+    @Override
+    public void storeBlock(long blockOffset, ByteBuffer src) throws IOException {
+        var length = src.remaining();
+        blockDevice.storeBlock(blockOffset, src);
+        countWrite(length);
+    }
+
+    @Override
+    public void readBlock(long blockOffset, ByteBuffer dst) throws IOException {
+        var length = dst.remaining();
+        blockDevice.readBlock(blockOffset, dst);
+        countRead(length);
+    }
+
+    @Override
+    public void transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        blockDevice.transferTo(offset, count, target);
+        countRead(count);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long offset, long count) throws IOException {
+        var transferred = blockDevice.transferFrom(src, offset, count);
+        countWrite(transferred);
+        return transferred;
+    }
+
+    @Override
+    public long getSizeInBytes() throws IOException {
+        return blockDevice.getSizeInBytes();
+    }
+
+    @Override
+    public void truncate(long newLength) throws IOException {
+        blockDevice.truncate(newLength);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        blockDevice.flush();
+        numFlushes.increment();
+    }
+
+    @Override
+    public void execWithLock(RunnableIOOperation func) throws IOException {
+        var start = System.nanoTime();
+        blockDevice.execWithLock(() -> {
+            lockWaits.record(System.nanoTime() - start);
+            func.run();
+        });
+    }
+
+    @Override
+    public <T> T execWithLock(CallableIOOperation<? extends T> func) throws IOException {
+        var start = System.nanoTime();
+        return blockDevice.<T>execWithLock(() -> {
+            lockWaits.record(System.nanoTime() - start);
+            return func.run();
+        });
+    }
+
+    @Override
+    public void close() throws IOException {
+        blockDevice.close();
+    }
+
+    public BlockDevice getBlockDevice() {
+        return blockDevice;
+    }
+
+    public long getNumReads() {
+        return numReads.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getNumWrites() {
+        return numWrites.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getNumFlushes() {
+        return numFlushes.sum();
+    }
+
+    public LatencyHistogram getLockWaits() {
+        return lockWaits;
+    }
+
+    private void countRead(long length) {
+        numReads.increment();
+        bytesRead.add(length);
+    }
+
+    private void countWrite(long length) {
+        numWrites.increment();
+        bytesWritten.add(length);
+    }
+}
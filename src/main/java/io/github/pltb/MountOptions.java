@@ -0,0 +1,87 @@
+package io.github.pltb;
+
+import java.io.File;
+import java.io.IOException;
+
+// runtime options that are not persisted in the container
+public class MountOptions {
+
+    private BlockDeviceType blockDeviceType = BlockDeviceType.FILE_CHANNEL;
+
+    private int blockCacheNumPages = 0;
+    private CachingBlockDevice.EvictionPolicy blockCacheEvictionPolicy = CachingBlockDevice.EvictionPolicy.CLOCK;
+    private CachingBlockDevice.WritePolicy blockCacheWritePolicy = CachingBlockDevice.WritePolicy.WRITE_THROUGH;
+    private boolean blockCacheOffHeap = false;
+
+    private boolean crossProcessLocking = false;
+
+    private int deduplicationIndexSize = 0;
+
+    public static MountOptions defaults() {
+        return new MountOptions();
+    }
+
+    public MountOptions withBlockDeviceType(BlockDeviceType blockDeviceType) {
+        this.blockDeviceType = blockDeviceType;
+        return this;
+    }
+
+    // numPages == 0 disables the cache
+    public MountOptions withBlockCache(int numPages,
+                                       CachingBlockDevice.EvictionPolicy evictionPolicy,
+                                       CachingBlockDevice.WritePolicy writePolicy,
+                                       boolean offHeap) {
+        this.blockCacheNumPages = numPages;
+        this.blockCacheEvictionPolicy = evictionPolicy;
+        this.blockCacheWritePolicy = writePolicy;
+        this.blockCacheOffHeap = offHeap;
+        return this;
+    }
+
+    // Takes the container's file lock around every operation, for containers that other processes open too.
+    // Threads of the same process are kept apart by in-process locks either way.
+    public MountOptions withCrossProcessLocking(boolean crossProcessLocking) {
+        this.crossProcessLocking = crossProcessLocking;
+        return this;
+    }
+
+    // Links the chains of new data to blocks already holding the same data, with an index of up to maxIndexedBlocks
+    // blocks, see DeduplicationIndex. maxIndexedBlocks == 0 disables it, chains shared before are still handled.
+    public MountOptions withDeduplication(int maxIndexedBlocks) {
+        this.deduplicationIndexSize = maxIndexedBlocks;
+        return this;
+    }
+
+    public BlockDeviceType getBlockDeviceType() {
+        return blockDeviceType;
+    }
+
+    public int getBlockCacheNumPages() {
+        return blockCacheNumPages;
+    }
+
+    public boolean isCrossProcessLocking() {
+        return crossProcessLocking;
+    }
+
+    public int getDeduplicationIndexSize() {
+        return deduplicationIndexSize;
+    }
+
+    BlockDevice createBlockDevice(File containerFile, long maxAddressableSpaceBytes, int blockSizeBytes) throws IOException {
+        return withBlockCacheIfEnabled(blockDeviceType.createNew(containerFile, maxAddressableSpaceBytes), blockSizeBytes);
+    }
+
+    // without the block cache, its page size is only known once the superblock has been read
+    BlockDevice attachBlockDevice(File containerFile) throws IOException {
+        return blockDeviceType.attachToFile(containerFile);
+    }
+
+    BlockDevice withBlockCacheIfEnabled(BlockDevice blockDevice, int blockSizeBytes) throws IOException {
+        if (blockCacheNumPages == 0) {
+            return blockDevice;
+        }
+        return new CachingBlockDevice(blockDevice, blockSizeBytes, blockCacheNumPages,
+                blockCacheEvictionPolicy, blockCacheWritePolicy, blockCacheOffHeap);
+    }
+}
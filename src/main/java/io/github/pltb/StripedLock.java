@@ -0,0 +1,60 @@
+package io.github.pltb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A fixed number of read-write locks, a key is guarded by the lock of its hash, so that there is no lock
+// object per key to create or clean up. Keys sharing a stripe just exclude each other more than necessary.
+// Locks for several keys are returned in stripe order, taking them in that order cannot deadlock.
+public class StripedLock {
+
+    private final ReentrantReadWriteLock[] stripes;
+
+    public StripedLock(int numStripes) {
+        this.stripes = new ReentrantReadWriteLock[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public List<Lock> readLocks(String... keys) {
+        var locks = new ArrayList<Lock>();
+        for (int stripe : stripesOf(keys)) {
+            locks.add(stripes[stripe].readLock());
+        }
+        return locks;
+    }
+
+    public List<Lock> writeLocks(String... keys) {
+        var locks = new ArrayList<Lock>();
+        for (int stripe : stripesOf(keys)) {
+            locks.add(stripes[stripe].writeLock());
+        }
+        return locks;
+    }
+
+    // for operations that touch keys they cannot name up front
+    public List<Lock> allWriteLocks() {
+        var locks = new ArrayList<Lock>();
+        for (ReentrantReadWriteLock stripe : stripes) {
+            locks.add(stripe.writeLock());
+        }
+        return locks;
+    }
+
+    public int getNumStripes() {
+        return stripes.length;
+    }
+
+    private TreeSet<Integer> stripesOf(String... keys) {
+        var stripeNumbers = new TreeSet<Integer>();
+        for (String key : keys) {
+            var hash = key.hashCode();
+            stripeNumbers.add(Math.floorMod(hash ^ (hash >>> 16), stripes.length));
+        }
+        return stripeNumbers;
+    }
+}
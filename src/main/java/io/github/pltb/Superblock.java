@@ -2,28 +2,102 @@ package io.github.pltb;
 
 import java.nio.ByteBuffer;
 
+// Layout: magic, format version, FAT offset, number of FAT entries, data region offset, max addressable space,
+// journal offset, journal size, block size, FAT entry width, first block of the saved deduplication index (version 2).
+// Containers written before the superblock was versioned start right with the FAT offset, which is never the magic.
+// They are read as version 0, with the block size and FAT entry width that were hard-coded back then.
 public class Superblock {
 
-    // size: 16 * 3 + 4
-
     public static final short SUPERBLOCK_SIZE_BYTES = 160;
+    public static final int MAGIC = 0x50465342;
+    public static final int CURRENT_VERSION = 2;
+
+    final private static int LEGACY_BLOCK_SIZE_BYTES = 1024;
+    final private static int LEGACY_FAT_ENTRY_WIDTH_BYTES = 4;
 
+    private final int version;
     private final int fileAllocationTableOffset;
     private final int fileAllocationTableNumEntries;
     private final int dataRegionOffset;
     private final long maxAddressableSpaceBytes;
-
+    // containers written before the journal was introduced have zeros here, which means "no journal"
+    private final int journalOffset;
+    private final int journalSizeBytes;
+    private final int blockSizeBytes;
+    private final int fatEntryWidthBytes;
+    // -1 unless the deduplication index was saved on close, older versions have no index
+    private final int deduplicationIndexBlock;
 
     public Superblock(int fileAllocationTableOffset, int fileAllocationTableNumEntries, int dataRegionOffset,  long maxAddressableSpaceBytes) {
+        this(fileAllocationTableOffset, fileAllocationTableNumEntries, dataRegionOffset, maxAddressableSpaceBytes, 0, 0);
+    }
+
+    public Superblock(int fileAllocationTableOffset,
+                      int fileAllocationTableNumEntries,
+                      int dataRegionOffset,
+                      long maxAddressableSpaceBytes,
+                      int journalOffset,
+                      int journalSizeBytes) {
+        this(CURRENT_VERSION, fileAllocationTableOffset, fileAllocationTableNumEntries, dataRegionOffset, maxAddressableSpaceBytes,
+                journalOffset, journalSizeBytes, LEGACY_BLOCK_SIZE_BYTES, LEGACY_FAT_ENTRY_WIDTH_BYTES, -1);
+    }
+
+    public Superblock(int fileAllocationTableOffset,
+                      int fileAllocationTableNumEntries,
+                      int dataRegionOffset,
+                      long maxAddressableSpaceBytes,
+                      int journalOffset,
+                      int journalSizeBytes,
+                      int blockSizeBytes,
+                      int fatEntryWidthBytes) {
+        this(CURRENT_VERSION, fileAllocationTableOffset, fileAllocationTableNumEntries, dataRegionOffset, maxAddressableSpaceBytes,
+                journalOffset, journalSizeBytes, blockSizeBytes, fatEntryWidthBytes, -1);
+    }
+
+    private Superblock(int version,
+                       int fileAllocationTableOffset,
+                       int fileAllocationTableNumEntries,
+                       int dataRegionOffset,
+                       long maxAddressableSpaceBytes,
+                       int journalOffset,
+                       int journalSizeBytes,
+                       int blockSizeBytes,
+                       int fatEntryWidthBytes,
+                       int deduplicationIndexBlock) {
+        this.version = version;
         this.fileAllocationTableOffset = fileAllocationTableOffset;
         this.dataRegionOffset = dataRegionOffset;
         this.maxAddressableSpaceBytes = maxAddressableSpaceBytes;
         this.fileAllocationTableNumEntries = fileAllocationTableNumEntries;
+        this.journalOffset = journalOffset;
+        this.journalSizeBytes = journalSizeBytes;
+        this.blockSizeBytes = blockSizeBytes;
+        this.fatEntryWidthBytes = fatEntryWidthBytes;
+        this.deduplicationIndexBlock = deduplicationIndexBlock;
     }
 
     public static Superblock fromBytes(byte[] bytes) {
         ByteBuffer bb = ByteBuffer.wrap(bytes);
-        return new Superblock(bb.getInt(), bb.getInt(), bb.getInt(), bb.getLong());
+        if (bb.getInt(0) != MAGIC) {
+            return new Superblock(0, bb.getInt(), bb.getInt(), bb.getInt(), bb.getLong(), bb.getInt(), bb.getInt(),
+                    LEGACY_BLOCK_SIZE_BYTES, LEGACY_FAT_ENTRY_WIDTH_BYTES, -1);
+        }
+        bb.getInt();
+        var version = bb.getInt();
+        if (version > CURRENT_VERSION) {
+            throw new RuntimeException("unsupported container format version " + version);
+        }
+        return new Superblock(version, bb.getInt(), bb.getInt(), bb.getInt(), bb.getLong(), bb.getInt(), bb.getInt(), bb.getInt(), bb.getInt(),
+                version >= 2 ? bb.getInt() : -1);
+    }
+
+    public Superblock withDeduplicationIndexBlock(int deduplicationIndexBlock) {
+        return new Superblock(CURRENT_VERSION, fileAllocationTableOffset, fileAllocationTableNumEntries, dataRegionOffset,
+                maxAddressableSpaceBytes, journalOffset, journalSizeBytes, blockSizeBytes, fatEntryWidthBytes, deduplicationIndexBlock);
+    }
+
+    public int getVersion() {
+        return version;
     }
 
     public int getFileAllocationTableOffset() {
@@ -38,13 +112,42 @@ public class Superblock {
         return maxAddressableSpaceBytes;
     }
 
+    // always in the current version
     public byte[] toBytes() {
         ByteBuffer bb = ByteBuffer.allocate(SUPERBLOCK_SIZE_BYTES);
+        bb.putInt(MAGIC).putInt(CURRENT_VERSION);
         bb.putInt(fileAllocationTableOffset).putInt(fileAllocationTableNumEntries).putInt(dataRegionOffset).putLong(maxAddressableSpaceBytes);
+        bb.putInt(journalOffset).putInt(journalSizeBytes);
+        bb.putInt(blockSizeBytes).putInt(fatEntryWidthBytes);
+        bb.putInt(deduplicationIndexBlock);
         return bb.array();
     }
 
     public int getFileAllocationTableNumEntries() {
         return fileAllocationTableNumEntries;
     }
+
+    public int getJournalOffset() {
+        return journalOffset;
+    }
+
+    public int getJournalSizeBytes() {
+        return journalSizeBytes;
+    }
+
+    public boolean hasJournal() {
+        return journalSizeBytes > 0;
+    }
+
+    public int getBlockSizeBytes() {
+        return blockSizeBytes;
+    }
+
+    public int getFatEntryWidthBytes() {
+        return fatEntryWidthBytes;
+    }
+
+    public int getDeduplicationIndexBlock() {
+        return deduplicationIndexBlock;
+    }
 }
@@ -0,0 +1,191 @@
+package io.github.pltb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+// The blocks the tails of files are packed into, several tails to a block. A tail block starts with a header,
+// <magic> <bitmap of the used units>, and each tail takes a run of units of UNIT_SIZE_BYTES after it. The header
+// is metadata and goes through the journal together with the entries pointing into the block, the tails are file
+// data. A block is known once a tail has been packed into it or freed from it since mount, otherwise its header is
+// loaded first: there is no scan on mount, and tails are only packed into known blocks or new ones.
+// Units freed by a journal transaction are only reused once it is applied, like the blocks freed in the FAT, and
+// a block whose last tail is freed is dropped to be freed as a whole. Synchronized, as the tails of files written
+// under different file locks share blocks.
+public class TailBlocks {
+
+    final public static int UNIT_SIZE_BYTES = 16;
+    final private static int MAGIC = 0x5441494C;
+    // known blocks with free units that new tails are looked for in, the one touched longest ago is dropped beyond it
+    final private static int MAX_BLOCKS_WITH_SPACE = 64;
+
+    private final int numUnits;
+    private final int numHeaderUnits;
+    // the units used as written in the headers, by block
+    private final Map<Integer, BitSet> usedUnits = new HashMap<>();
+    // units freed by transactions that have not been applied yet, by block
+    private final Map<Integer, BitSet> deferredUnits = new HashMap<>();
+    private final LinkedHashSet<Integer> blocksWithSpace = new LinkedHashSet<>();
+    // every thread runs its own transaction, so the deferral is per thread, see FileAllocationTable
+    private final ThreadLocal<List<int[]>> deferredFrees = new ThreadLocal<>();
+
+    public TailBlocks(int blockSizeBytes) {
+        this.numUnits = blockSizeBytes / UNIT_SIZE_BYTES;
+        this.numHeaderUnits = (Integer.BYTES + (numUnits + 7) / 8 + UNIT_SIZE_BYTES - 1) / UNIT_SIZE_BYTES;
+    }
+
+    public int getHeaderSizeBytes() {
+        return numHeaderUnits * UNIT_SIZE_BYTES;
+    }
+
+    public int getMaxTailBytes() {
+        return (numUnits - numHeaderUnits) * UNIT_SIZE_BYTES;
+    }
+
+    public synchronized boolean isKnown(int block) {
+        return usedUnits.containsKey(block);
+    }
+
+    // a block that has just been allocated, with no tails in it yet
+    public synchronized void addBlock(int block) {
+        var used = new BitSet(numUnits);
+        used.set(0, numHeaderUnits);
+        usedUnits.put(block, used);
+        addBlockWithSpace(block);
+    }
+
+    public synchronized void load(int block, ByteBuffer header) {
+        if (header.getInt(0) != MAGIC) {
+            throw new RuntimeException("block " + block + " is not a tail block");
+        }
+        var bitmap = new byte[(numUnits + 7) / 8];
+        header.get(Integer.BYTES, bitmap);
+        usedUnits.put(block, BitSet.valueOf(bitmap));
+        addBlockWithSpace(block);
+    }
+
+    public synchronized byte[] encodeHeader(int block) {
+        var bitmap = usedUnits.get(block).toByteArray();
+        return ByteBuffer.allocate(getHeaderSizeBytes()).putInt(MAGIC).put(bitmap).array();
+    }
+
+    // Takes a run of units for a tail of the given length in one of the known blocks and returns {block, offset},
+    // null if none of them has room for it.
+    public synchronized int[] allocate(int length) {
+        var units = (length + UNIT_SIZE_BYTES - 1) / UNIT_SIZE_BYTES;
+        var full = new ArrayList<Integer>();
+        int[] slot = null;
+        for (int block : blocksWithSpace) {
+            var taken = (BitSet) usedUnits.get(block).clone();
+            var deferred = deferredUnits.get(block);
+            if (deferred != null) {
+                taken.or(deferred);
+            }
+            var start = taken.nextClearBit(numHeaderUnits);
+            if (start >= numUnits) {
+                full.add(block);
+                continue;
+            }
+            while (start + units <= numUnits) {
+                var end = taken.nextSetBit(start);
+                if (end < 0 || end >= start + units) {
+                    usedUnits.get(block).set(start, start + units);
+                    slot = new int[]{block, start * UNIT_SIZE_BYTES};
+                    break;
+                }
+                start = taken.nextClearBit(end);
+            }
+            if (slot != null) {
+                break;
+            }
+        }
+        blocksWithSpace.removeAll(full);
+        return slot;
+    }
+
+    // Frees the units of a tail in a known block. Returns true if it was the last tail of the block, which is then
+    // dropped, the header of any other block has to be written anew.
+    public synchronized boolean free(int block, int offset, int length) {
+        var used = usedUnits.get(block);
+        var firstUnit = offset / UNIT_SIZE_BYTES;
+        var endUnit = firstUnit + (length + UNIT_SIZE_BYTES - 1) / UNIT_SIZE_BYTES;
+        used.clear(firstUnit, endUnit);
+        if (used.nextSetBit(numHeaderUnits) < 0) {
+            usedUnits.remove(block);
+            deferredUnits.remove(block);
+            blocksWithSpace.remove(block);
+            return true;
+        }
+        var deferred = deferredFrees.get();
+        if (deferred != null) {
+            deferredUnits.computeIfAbsent(block, b -> new BitSet(numUnits)).set(firstUnit, endUnit);
+            deferred.add(new int[]{block, firstUnit, endUnit});
+        }
+        addBlockWithSpace(block);
+        return false;
+    }
+
+    public void beginDeferringFrees() {
+        deferredFrees.set(new ArrayList<>());
+    }
+
+    public List<int[]> endDeferringFrees() {
+        var frees = deferredFrees.get();
+        deferredFrees.remove();
+        return frees;
+    }
+
+    // can be called from any thread, units of blocks dropped since are skipped
+    public synchronized void releaseDeferredFrees(List<int[]> frees) {
+        for (int[] free : frees) {
+            var deferred = deferredUnits.get(free[0]);
+            if (deferred != null) {
+                deferred.clear(free[1], free[2]);
+                if (deferred.isEmpty()) {
+                    deferredUnits.remove(free[0]);
+                }
+            }
+        }
+    }
+
+    // for a block moved elsewhere by compaction
+    public synchronized void move(int oldBlock, int newBlock) {
+        var used = usedUnits.remove(oldBlock);
+        if (used == null) {
+            return;
+        }
+        usedUnits.put(newBlock, used);
+        var deferred = deferredUnits.remove(oldBlock);
+        if (deferred != null) {
+            deferredUnits.put(newBlock, deferred);
+        }
+        if (blocksWithSpace.remove(oldBlock)) {
+            addBlockWithSpace(newBlock);
+        }
+    }
+
+    public synchronized int getNumKnownBlocks() {
+        return usedUnits.size();
+    }
+
+    // the free units of the known blocks, those of blocks not loaded since mount are not counted
+    public synchronized long getFreeBytes() {
+        long freeUnits = 0;
+        for (BitSet used : usedUnits.values()) {
+            freeUnits += numUnits - used.cardinality();
+        }
+        return freeUnits * UNIT_SIZE_BYTES;
+    }
+
+    private void addBlockWithSpace(int block) {
+        blocksWithSpace.remove(block);
+        blocksWithSpace.add(block);
+        if (blocksWithSpace.size() > MAX_BLOCKS_WITH_SPACE) {
+            blocksWithSpace.remove(blocksWithSpace.iterator().next());
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package io.github.pltb;
+
+public enum WriteMode {
+    // writes go to the end of the file, which is created if missing
+    APPEND,
+    // writes start at the beginning of the file, replacing its bytes and growing it past its end
+    OVERWRITE,
+    // the file is created or emptied, then written from the beginning
+    TRUNCATE
+}
@@ -0,0 +1,91 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class AsyncFileSystemTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testOperationsCompleteFutures() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 4 * 1024 * 1024);
+             var async = new AsyncFileSystem(fs)) {
+            List<CompletableFuture<Integer>> writes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                var path = "dir/file" + i;
+                var content = ("content" + i).getBytes();
+                writes.add(async.createFile(path).thenCompose(created -> async.appendToFile(path, content)));
+            }
+            CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).get();
+
+            assertEquals(50, async.listFilesUnderPrefix("dir/").get().size());
+            assertEquals("content7", new String(async.readFile("dir/file7").get().get()));
+            assertEquals(1, async.writeToFileFromOffset("dir/file7", "C".getBytes(), 0).get());
+            assertEquals("Content7", new String(async.readFile("dir/file7").get().get()));
+            assertEquals(1, async.moveFile("dir/file7", "moved").get());
+            assertEquals(1, async.deleteFile("moved").get());
+            assertTrue(async.readFile("moved").get().isEmpty());
+        }
+    }
+
+    @Test
+    void testFragmentedFileIsReadInPieces() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(11);
+        var expected = new byte[0];
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fs.createFile("big.bin");
+            fs.createFile("other.bin");
+            // interleaved appends leave the chain of big.bin in many runs
+            for (int i = 0; i < 20; i++) {
+                var chunk = new byte[100_000 + random.nextInt(1000)];
+                random.nextBytes(chunk);
+                fs.appendToFile("big.bin", chunk);
+                fs.appendToFile("other.bin", new byte[3000]);
+                var grown = new byte[expected.length + chunk.length];
+                System.arraycopy(expected, 0, grown, 0, expected.length);
+                System.arraycopy(chunk, 0, grown, expected.length, chunk.length);
+                expected = grown;
+            }
+
+            try (var async = new AsyncFileSystem(fs)) {
+                assertArrayEquals(expected, async.readFile("big.bin").get().get());
+            }
+            // a single thread runs the pieces one after the other
+            var singleThread = Executors.newSingleThreadExecutor();
+            try (var async = new AsyncFileSystem(fs, singleThread)) {
+                assertArrayEquals(expected, async.readFile("big.bin").get().get());
+            } finally {
+                singleThread.shutdown();
+            }
+            assertEquals(2, fs.getMetrics().getOperationLatency("readFile").getCount());
+        }
+    }
+
+    @Test
+    void testFailureCompletesFutureExceptionally() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+
+        var fs = FileSystemImpl.createNew(containerFile, 1024 * 1024);
+        try (var async = new AsyncFileSystem(fs)) {
+            fs.close();
+            var future = async.createFile("a.txt");
+            var e = assertThrows(Exception.class, future::get);
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
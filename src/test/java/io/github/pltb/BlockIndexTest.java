@@ -0,0 +1,51 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class BlockIndexTest {
+
+    @Test
+    void testSamplesAreTakenAsFarAsAsked() {
+        // a chain going backwards through the table: 99 -> 98 -> ... -> 1
+        var fat = FileAllocationTable.createEmpty(100);
+        for (int block = 99; block > 1; block--) {
+            fat.set(block, block - 1);
+        }
+        fat.set(1, FileAllocationTable.END_OF_FILE);
+        var index = new BlockIndex(99, 8);
+
+        assertEquals(94, index.findNthBlock(fat, 5));
+        assertEquals(1, index.getNumSamples());
+        assertEquals(49, index.findNthBlock(fat, 50));
+        assertEquals(7, index.getNumSamples());
+        assertEquals(90, index.findNthBlock(fat, 9));
+        assertEquals(7, index.getNumSamples());
+        assertEquals(1, index.findNthBlock(fat, 98));
+        assertThrows(RuntimeException.class, () -> index.findNthBlock(fat, 99));
+    }
+
+    @Test
+    void testSamplesFollowMovedBlocks() {
+        var fat = FileAllocationTable.createEmpty(64);
+        for (int block = 0; block < 31; block++) {
+            fat.set(block, block + 1);
+        }
+        fat.set(31, FileAllocationTable.END_OF_FILE);
+        var index = new BlockIndex(0, 4);
+        assertEquals(30, index.findNthBlock(fat, 30));
+
+        // blocks 16..31 move to 40..55
+        for (int block = 16; block < 32; block++) {
+            fat.set(block + 24, fat.get(block) > 0 ? fat.get(block) + 24 : fat.get(block));
+            fat.set(block, FileAllocationTable.FREE);
+        }
+        fat.set(15, 40);
+        index.remap(block -> block >= 16 && block < 32 ? block + 24 : block);
+
+        assertEquals(54, index.findNthBlock(fat, 30));
+        assertEquals(12, index.findNthBlock(fat, 12));
+        assertEquals(0, index.getStartingBlock());
+    }
+}
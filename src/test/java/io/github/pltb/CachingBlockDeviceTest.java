@@ -0,0 +1,242 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CachingBlockDeviceTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testWriteBackReachesDeviceOnFlush() throws IOException {
+        File containerFile = new File(tempDir, "device.bin");
+        var bytes = new byte[3000];
+        new Random(1).nextBytes(bytes);
+
+        try (var cache = new CachingBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20), 1024, 4,
+                CachingBlockDevice.EvictionPolicy.LRU, CachingBlockDevice.WritePolicy.WRITE_BACK, true)) {
+            cache.storeBlock(100, bytes);
+            assertEquals(0, Files.size(containerFile.toPath()));
+            assertEquals(3100, cache.getSizeInBytes());
+            assertArrayEquals(bytes, cache.readBlock(100, bytes.length));
+
+            cache.flush();
+            assertEquals(3100, Files.size(containerFile.toPath()));
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            assertArrayEquals(bytes, device.readBlock(100, bytes.length));
+        }
+    }
+
+    @Test
+    void testTruncateDropsCachedTail() throws IOException {
+        File containerFile = new File(tempDir, "device.bin");
+        var bytes = new byte[4096];
+        new Random(2).nextBytes(bytes);
+
+        try (var cache = new CachingBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20), 1024, 8,
+                CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_BACK, false)) {
+            cache.storeBlock(0, bytes);
+            cache.truncate(1500);
+            cache.storeBlock(3000, new byte[] {1});
+            cache.flush();
+
+            var readBack = cache.readBlock(0, 3001);
+            for (int i = 0; i < 1500; i++) {
+                assertEquals(bytes[i], readBack[i]);
+            }
+            for (int i = 1500; i < 3000; i++) {
+                assertEquals(0, readBack[i]);
+            }
+            assertEquals(3001, Files.size(containerFile.toPath()));
+        }
+    }
+
+    @Test
+    void testLruKeepsRecentlyUsedPages() throws IOException {
+        File containerFile = new File(tempDir, "device.bin");
+        try (var cache = new CachingBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20), 1024, 2,
+                CachingBlockDevice.EvictionPolicy.LRU, CachingBlockDevice.WritePolicy.WRITE_THROUGH, false)) {
+            cache.storeBlock(0, new byte[4096]);
+            cache.readBlock(0, 10);
+            cache.readBlock(1024, 10);
+            cache.readBlock(0, 10);
+            assertEquals(1, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+
+            // the recently used page survives the eviction caused by a third page
+            cache.readBlock(2048, 10);
+            cache.readBlock(0, 10);
+            assertEquals(1, cache.getEvictionCount());
+            assertEquals(2, cache.getHitCount());
+        }
+    }
+
+    @Test
+    void testClockGivesReferencedPagesASecondChance() throws IOException {
+        File containerFile = new File(tempDir, "device.bin");
+        try (var cache = new CachingBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20), 1024, 3,
+                CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_THROUGH, false)) {
+            cache.storeBlock(0, new byte[8192]);
+            cache.readBlock(0, 10);
+            cache.readBlock(1024, 10);
+            cache.readBlock(2048, 10);
+            // the sweep clears all reference bits and evicts page 0, then only page 2 is referenced again
+            cache.readBlock(3072, 10);
+            cache.readBlock(2048, 10);
+            cache.readBlock(4096, 10);
+
+            var hits = cache.getHitCount();
+            cache.readBlock(2048, 10);
+            cache.readBlock(3072, 10);
+            assertEquals(hits + 2, cache.getHitCount());
+            assertEquals(2, cache.getEvictionCount());
+        }
+    }
+
+    @Test
+    void testMissDoesNotBlockOtherPages() throws Exception {
+        File containerFile = new File(tempDir, "device.bin");
+        var bytes = new byte[8192];
+        new Random(4).nextBytes(bytes);
+        var slowPageReached = new CountDownLatch(1);
+        var slowPageReleased = new CountDownLatch(1);
+        var device = new MeteredBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20)) {
+            @Override
+            public void readBlock(long blockOffset, ByteBuffer dst) throws IOException {
+                if (blockOffset == 5 * 1024) {
+                    slowPageReached.countDown();
+                    try {
+                        slowPageReleased.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                super.readBlock(blockOffset, dst);
+            }
+        };
+
+        try (var cache = new CachingBlockDevice(device, 1024, 4,
+                CachingBlockDevice.EvictionPolicy.LRU, CachingBlockDevice.WritePolicy.WRITE_THROUGH, false)) {
+            cache.storeBlock(0, bytes);
+            cache.readBlock(0, 10);
+            var slowRead = new byte[1][];
+            var slowReader = new Thread(() -> {
+                try {
+                    slowRead[0] = cache.readBlock(5 * 1024 + 10, 100);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            slowReader.start();
+            slowPageReached.await();
+
+            // a hit and a miss of other pages while the slow page is loading
+            var otherRead = new byte[2][];
+            var otherReader = new Thread(() -> {
+                try {
+                    otherRead[0] = cache.readBlock(0, 10);
+                    otherRead[1] = cache.readBlock(2 * 1024, 10);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            otherReader.start();
+            otherReader.join(10_000);
+            assertFalse(otherReader.isAlive());
+            slowPageReleased.countDown();
+            slowReader.join();
+
+            assertArrayEquals(Arrays.copyOfRange(bytes, 0, 10), otherRead[0]);
+            assertArrayEquals(Arrays.copyOfRange(bytes, 2048, 2058), otherRead[1]);
+            assertArrayEquals(Arrays.copyOfRange(bytes, 5 * 1024 + 10, 5 * 1024 + 110), slowRead[0]);
+        }
+    }
+
+    @Test
+    void testConcurrentReadsAndWrites() throws Exception {
+        File containerFile = new File(tempDir, "device.bin");
+        var numPages = 64;
+        var numThreads = 8;
+
+        try (var cache = new CachingBlockDevice(BlockDeviceImpl.createNew(containerFile, 1 << 20), 1024, 8,
+                CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_THROUGH, false)) {
+            for (int page = 0; page < numPages; page++) {
+                cache.storeBlock(page * 1024, pageBytes(page, 0));
+            }
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                var threadNum = t;
+                var thread = new Thread(() -> {
+                    var random = new Random(threadNum);
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            // every thread writes its own pages and reads any page, which holds some version of itself
+                            var page = random.nextInt(numPages);
+                            if (page % numThreads == threadNum && random.nextBoolean()) {
+                                cache.storeBlock(page * 1024, pageBytes(page, i));
+                            } else {
+                                var read = ByteBuffer.wrap(cache.readBlock(page * 1024, 1024));
+                                var version = read.getInt(4);
+                                assertArrayEquals(pageBytes(page, version), read.array());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(failures.isEmpty());
+        }
+    }
+
+    private static byte[] pageBytes(int page, int version) {
+        var bytes = ByteBuffer.allocate(1024);
+        while (bytes.hasRemaining()) {
+            bytes.putInt(page).putInt(version);
+        }
+        return bytes.array();
+    }
+
+    @Test
+    void testFileSystemOverCache() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var bytes = new byte[50_000];
+        new Random(3).nextBytes(bytes);
+        var mountOptions = MountOptions.defaults().withBlockCache(16,
+                CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_BACK, true);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 2 * 1024 * 1024, mountOptions)) {
+            fs.createFile("a.bin");
+            fs.appendToFile("a.bin", bytes);
+            assertArrayEquals(bytes, fs.readFile("a.bin").get());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile, mountOptions)) {
+            assertArrayEquals(bytes, fs.readFile("a.bin").get());
+            assertArrayEquals(bytes, fs.readFile("a.bin").get());
+            assertTrue(((CachingBlockDevice) fs.getBlockDevice()).getHitCount() > 0);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package io.github.pltb;
+
+import static io.github.pltb.TestFiles.concat;
+import static io.github.pltb.TestFiles.randomBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CloneTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testClonesShareBlocksUntilWritten() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        byte[] original, clone;
+        long initialFreeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var blockSize = fs.getBlockSizeBytes();
+            var metrics = fs.getMetrics();
+            initialFreeBlocks = metrics.getNumFreeBlocks();
+            original = randomBytes(new Random(1), 50 * blockSize + 123);
+            fs.createFile("data/original.bin");
+            fs.appendToFile("data/original.bin", original);
+
+            var freeBlocks = metrics.getNumFreeBlocks();
+            assertEquals(1, fs.cloneFile("data/original.bin", "copies/clone.bin"));
+            // the copy of the first block, and the new directory
+            assertEquals(2, freeBlocks - metrics.getNumFreeBlocks());
+            assertArrayEquals(original, fs.readFile("copies/clone.bin").get());
+            assertEquals(-1, fs.cloneFile("missing.bin", "copies/other.bin"));
+            assertEquals(-1, fs.cloneFile("data/original.bin", "data/original.bin"));
+
+            // each side sees its own writes only
+            clone = original.clone();
+            fs.writeToFileFromOffset("copies/clone.bin", new byte[100], 20 * blockSize - 50);
+            Arrays.fill(clone, 20 * blockSize - 50, 20 * blockSize + 50, (byte) 0);
+            fs.appendToFile("data/original.bin", "appended".getBytes());
+            original = concat(original, "appended".getBytes());
+            assertArrayEquals(original, fs.readFile("data/original.bin").get());
+            assertArrayEquals(clone, fs.readFile("copies/clone.bin").get());
+
+            // a clone of a clone, and a clone replacing a file
+            assertEquals(1, fs.cloneFile("copies/clone.bin", "copies/second.bin"));
+            assertEquals(1, fs.cloneFile("data/original.bin", "copies/second.bin"));
+            assertArrayEquals(original, fs.readFile("copies/second.bin").get());
+            fs.compact();
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertEquals(1, fs.deleteFile("data/original.bin"));
+            assertArrayEquals(clone, fs.readFile("copies/clone.bin").get());
+            assertArrayEquals(original, fs.readFile("copies/second.bin").get());
+            try (var channel = fs.openForWrite("copies/second.bin", WriteMode.APPEND)) {
+                channel.write(ByteBuffer.wrap("more".getBytes()));
+            }
+            original = concat(original, "more".getBytes());
+            assertArrayEquals(original, fs.readFile("copies/second.bin").get());
+            assertArrayEquals(clone, fs.readFile("copies/clone.bin").get());
+            assertEquals(1, fs.deleteFile("copies/clone.bin"));
+            assertEquals(1, fs.deleteFile("copies/second.bin"));
+            assertEquals(1, fs.deleteFile("copies"));
+            assertEquals(1, fs.deleteFile("data"));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+
+    @Test
+    void testInlineEmptyAndCompressedFilesAreCloned() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fs.createFile("small.txt");
+            fs.appendToFile("small.txt", "hello".getBytes());
+            fs.createFile("empty.txt");
+            var text = "compressible text ".repeat(20_000).getBytes();
+            fs.createCompressedFile("log.txt");
+            fs.appendToFile("log.txt", text);
+
+            assertEquals(1, fs.cloneFile("small.txt", "small-clone.txt"));
+            assertEquals(1, fs.cloneFile("empty.txt", "empty-clone.txt"));
+            assertEquals(1, fs.cloneFile("log.txt", "log-clone.txt"));
+            fs.appendToFile("small-clone.txt", " world".getBytes());
+            fs.appendToFile("empty-clone.txt", "not empty".getBytes());
+            fs.writeToFileFromOffset("log.txt", "CHANGED".getBytes(), 200_000);
+            fs.appendToFile("log-clone.txt", "tail".getBytes());
+
+            assertEquals("hello", new String(fs.readFile("small.txt").get()));
+            assertEquals("hello world", new String(fs.readFile("small-clone.txt").get()));
+            assertEquals(0, fs.readFile("empty.txt").get().length);
+            assertEquals("not empty", new String(fs.readFile("empty-clone.txt").get()));
+            var changed = text.clone();
+            System.arraycopy("CHANGED".getBytes(), 0, changed, 200_000, 7);
+            assertArrayEquals(changed, fs.readFile("log.txt").get());
+            assertArrayEquals(concat(text, "tail".getBytes()), fs.readFile("log-clone.txt").get());
+        }
+    }
+
+    @Test
+    void testSnapshotKeepsThePointInTime() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(2);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var paths = List.of("a.bin", "dir/b.bin", "dir/sub/c.bin");
+            var contents = new byte[paths.size()][];
+            for (int i = 0; i < paths.size(); i++) {
+                contents[i] = randomBytes(random, (i + 1) * 10_000);
+                fs.createFile(paths.get(i));
+                fs.appendToFile(paths.get(i), contents[i]);
+            }
+
+            // the copies of the first blocks and of some tails, and the four new directories, not another 60 KB
+            var freeSpaceBytes = fs.getFreeSpaceBytes();
+            assertEquals(3, fs.snapshot("snapshots/first"));
+            assertTrue(freeSpaceBytes - fs.getFreeSpaceBytes() < 8L * fs.getBlockSizeBytes());
+            assertEquals(-1, fs.snapshot("snapshots/first"));
+            assertEquals(-1, fs.snapshot("a.bin/snapshot"));
+
+            fs.appendToFile("a.bin", new byte[5000]);
+            fs.writeToFileFromOffset("dir/b.bin", new byte[5000], 100);
+            fs.deleteFile("dir/sub/c.bin");
+            try (var channel = fs.openForWrite("dir/b.bin", WriteMode.TRUNCATE)) {
+                channel.write(ByteBuffer.wrap(new byte[100]));
+                assertThrows(IOException.class, () -> fs.snapshot("snapshots/second"));
+                assertThrows(IOException.class, () -> fs.cloneFile("dir/b.bin", "b-clone.bin"));
+            }
+
+            for (int i = 0; i < paths.size(); i++) {
+                assertArrayEquals(contents[i], fs.readFile("snapshots/first/" + paths.get(i)).get());
+            }
+            // the first snapshot is a directory like any other, the second one includes it
+            assertEquals(5, fs.snapshot("snapshots/second"));
+            assertArrayEquals(contents[2], fs.readFile("snapshots/second/snapshots/first/dir/sub/c.bin").get());
+            assertEquals(100, fs.readFile("snapshots/second/dir/b.bin").get().length);
+        }
+    }
+}
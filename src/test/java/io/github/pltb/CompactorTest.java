@@ -0,0 +1,155 @@
+package io.github.pltb;
+
+import static io.github.pltb.TestFiles.concat;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompactorTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testStepsMoveTailBlocksIntoHoles() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(5);
+        var expected = new HashMap<String, byte[]>();
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fillWithHoles(fs, random, expected);
+            var sizeBefore = containerFile.length();
+
+            // a channel opened before the compaction keeps reading the moved blocks
+            var channel = fs.openForRead("dir0/big.bin");
+            var firstHalf = ByteBuffer.allocate(expected.get("dir0/big.bin").length / 2);
+            channel.read(firstHalf);
+
+            int moved;
+            var numSteps = 0;
+            while ((moved = fs.compactStep(64)) > 0) {
+                assertTrue(moved <= 64);
+                numSteps++;
+                // other operations run between the steps
+                fs.appendToFile("dir1/file1", new byte[]{(byte) numSteps});
+                expected.put("dir1/file1", append(expected.get("dir1/file1"), (byte) numSteps));
+            }
+            assertTrue(numSteps > 1);
+            assertTrue(containerFile.length() < sizeBefore);
+
+            var secondHalf = ByteBuffer.allocate(expected.get("dir0/big.bin").length - firstHalf.capacity());
+            while (secondHalf.hasRemaining() && channel.read(secondHalf) >= 0) {
+            }
+            var readBack = ByteBuffer.allocate(expected.get("dir0/big.bin").length).put(firstHalf.flip()).put(secondHalf.flip());
+            assertArrayEquals(expected.get("dir0/big.bin"), readBack.array());
+            channel.close();
+
+            assertFiles(fs, expected);
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertFiles(fs, expected);
+            assertEquals(0, fs.compactStep(64));
+        }
+    }
+
+    @Test
+    void testBackgroundCompactionWithConcurrentReaders() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(6);
+        var expected = new HashMap<String, byte[]>();
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fillWithHoles(fs, random, expected);
+            var sizeBefore = containerFile.length();
+
+            var failure = new AtomicReference<Throwable>();
+            var reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        assertFiles(fs, expected);
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+
+            try (var compactor = Compactor.start(fs, 8 * 1024 * 1024)) {
+                reader.start();
+                assertTrue(compactor.getCompletion().get(30, TimeUnit.SECONDS) > 0);
+            }
+            reader.join();
+            assertNull(failure.get());
+            assertTrue(containerFile.length() < sizeBefore);
+            assertFiles(fs, expected);
+        }
+    }
+
+    @Test
+    void testStepsWaitForWriteChannels() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(7);
+        var expected = new HashMap<String, byte[]>();
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fillWithHoles(fs, random, expected);
+
+            var channel = fs.openForWrite("written.bin", WriteMode.APPEND);
+            channel.write(ByteBuffer.wrap(new byte[10_000]));
+            assertEquals(-1, fs.compactStep(64));
+            assertEquals(-1, fs.compact());
+
+            try (var compactor = Compactor.start(fs)) {
+                Thread.sleep(200);
+                assertFalse(compactor.getCompletion().isDone());
+                channel.close();
+                assertTrue(compactor.getCompletion().get(30, TimeUnit.SECONDS) > 0);
+            }
+            assertEquals(1, fs.compact());
+            expected.put("written.bin", new byte[10_000]);
+            assertFiles(fs, expected);
+        }
+    }
+
+    // files in two directories and a fragmented big file, with every other file deleted
+    private static void fillWithHoles(FileSystemImpl fs, Random random, Map<String, byte[]> expected) throws IOException {
+        fs.createFile("dir0/big.bin");
+        for (int i = 0; i < 200; i++) {
+            var path = "dir" + (i % 2) + "/file" + i;
+            var content = new byte[random.nextInt(5000)];
+            random.nextBytes(content);
+            fs.createFile(path);
+            fs.appendToFile(path, content);
+            expected.put(path, content);
+
+            var chunk = new byte[2000];
+            random.nextBytes(chunk);
+            fs.appendToFile("dir0/big.bin", chunk);
+            expected.merge("dir0/big.bin", chunk, TestFiles::concat);
+        }
+        for (int i = 0; i < 200; i += 2) {
+            fs.deleteFile("dir0/file" + i);
+            expected.remove("dir0/file" + i);
+        }
+    }
+
+    private static void assertFiles(FileSystemImpl fs, Map<String, byte[]> expected) throws IOException {
+        assertEquals(expected.size(), fs.listFiles().size());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), fs.readFile(entry.getKey()).get(), entry.getKey());
+        }
+    }
+
+    private static byte[] append(byte[] bytes, byte b) {
+        return concat(bytes, new byte[]{b});
+    }
+}
@@ -0,0 +1,144 @@
+package io.github.pltb;
+
+import static io.github.pltb.TestFiles.randomBytes;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressedFilesTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testCompressedFileTakesFewerBlocks() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var content = generateText(new Random(1), 1_000_000);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var freeBlocks = fs.getMetrics().getNumFreeBlocks();
+            assertEquals(1, fs.createCompressedFile("logs/app.json"));
+            assertEquals(1, fs.appendToFile("logs/app.json", content));
+            var compressedBlocks = freeBlocks - fs.getMetrics().getNumFreeBlocks();
+            assertTrue(compressedBlocks * fs.getBlockSizeBytes() < content.length / 2);
+
+            assertArrayEquals(content, fs.readFile("logs/app.json").get());
+            assertArrayEquals(Arrays.copyOfRange(content, 200_000, 330_000), fs.readFileRange("logs/app.json", 200_000, 130_000).get());
+            assertArrayEquals(content, fs.readFileConcurrently("logs/app.json", Runnable::run).get());
+            var out = new ByteArrayOutputStream();
+            assertEquals(content.length, fs.exportFile("logs/app.json", Channels.newChannel(out)));
+            assertArrayEquals(content, out.toByteArray());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertArrayEquals(content, fs.readFile("logs/app.json").get());
+        }
+    }
+
+    @Test
+    void testAppendsAndOffsetWritesRewriteOnlyTheirChunks() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(2);
+        var expected = new ByteArrayOutputStream();
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fs.createCompressedFile("data.txt");
+            // pieces that end in the middle of chunks, some of them incompressible
+            for (int i = 0; i < 20; i++) {
+                var piece = i % 4 == 3 ? randomBytes(random, 30_000) : generateText(random, 10_000 + random.nextInt(40_000));
+                assertEquals(1, fs.appendToFile("data.txt", piece));
+                expected.writeBytes(piece);
+            }
+            var content = expected.toByteArray();
+            assertArrayEquals(content, fs.readFile("data.txt").get());
+
+            // across a chunk boundary, in the first chunk, and at the very end
+            var offsets = new int[]{CompressedChunks.CHUNK_SIZE_BYTES - 100, 10, content.length - 50, 3 * CompressedChunks.CHUNK_SIZE_BYTES};
+            for (int offset : offsets) {
+                var bytes = randomBytes(random, Math.min(5000, content.length - offset));
+                assertEquals(1, fs.writeToFileFromOffset("data.txt", bytes, offset));
+                System.arraycopy(bytes, 0, content, offset, bytes.length);
+            }
+            assertEquals(-1, fs.writeToFileFromOffset("data.txt", new byte[10], content.length - 5));
+            assertArrayEquals(content, fs.readFile("data.txt").get());
+            for (int i = 0; i < 20; i++) {
+                var offset = random.nextInt(content.length);
+                var length = random.nextInt(100_000);
+                var end = Math.min(content.length, offset + length);
+                assertArrayEquals(Arrays.copyOfRange(content, offset, end), fs.readFileRange("data.txt", offset, length).get());
+            }
+
+            try (var channel = fs.openForRead("data.txt")) {
+                var buffer = ByteBuffer.allocate(content.length);
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                }
+                assertArrayEquals(content, buffer.array());
+            }
+            assertThrows(IOException.class, () -> fs.openForWrite("data.txt", WriteMode.APPEND));
+            assertThrows(IOException.class, () -> fs.openForWrite("data.txt", WriteMode.TRUNCATE));
+
+            // the blocks of replaced chunks are freed, and compaction moves the rest of the chain
+            fs.createFile("padding.bin");
+            fs.appendToFile("padding.bin", new byte[1_000_000]);
+            fs.deleteFile("padding.bin");
+            fs.compact();
+            assertArrayEquals(content, fs.readFile("data.txt").get());
+            assertEquals(1, fs.moveFile("data.txt", "moved/data.txt"));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            var content = fs.readFile("moved/data.txt").get();
+            fs.appendToFile("moved/data.txt", "tail".getBytes());
+            assertEquals("tail", new String(fs.readFileRange("moved/data.txt", content.length, 10).get()));
+            assertEquals(1, fs.deleteFile("moved/data.txt"));
+            assertEquals(1, fs.createFile("moved/data.txt"));
+            assertEquals(0, fs.readFile("moved/data.txt").get().length);
+        }
+    }
+
+    @Test
+    void testChunkIndexFollowsRewrittenChunks() throws IOException {
+        // chunks of 3, 1, 2, 4 and 1 blocks
+        var numBlocks = new int[]{3, 1, 2, 4, 1};
+        var index = new ChunkIndex();
+        ChunkIndex.ChunkSizes chunkSizes = position -> {
+            var start = 0;
+            for (int blocks : numBlocks) {
+                if (start == position) {
+                    return blocks;
+                }
+                start += blocks;
+            }
+            throw new IOException("no chunk starts at " + position);
+        };
+
+        assertEquals(6, index.getFirstBlock(3, chunkSizes));
+        assertEquals(4, index.getNumKnownChunks());
+        numBlocks[1] = 2;
+        index.resize(1, 2);
+        assertEquals(5, index.getFirstBlock(2, chunkSizes));
+        assertEquals(7, index.getFirstBlock(3, chunkSizes));
+        assertEquals(11, index.getFirstBlock(4, chunkSizes));
+
+        index.truncate(2);
+        assertEquals(3, index.getNumKnownChunks());
+        assertEquals(5, index.getFirstBlock(2, chunkSizes));
+    }
+
+    private static byte[] generateText(Random random, int size) {
+        var words = new String[]{"{\"id\": ", "\"name\": \"", "value", "\", ", "\"tags\": [", "], ", "true", "null", "}\n"};
+        var text = new StringBuilder();
+        while (text.length() < size) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(1000));
+        }
+        return text.substring(0, size).getBytes();
+    }
+}
@@ -0,0 +1,295 @@
+package io.github.pltb;
+
+import static io.github.pltb.TestFiles.concat;
+import static io.github.pltb.TestFiles.randomBytes;
+import static io.github.pltb.TestFiles.writeFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeduplicationTest {
+
+    final private static int NUM_BLOCKS = 100;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testCopiesShareBlocksUntilChanged() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var mountOptions = MountOptions.defaults().withDeduplication(1 << 16);
+        byte[] a, b, c;
+        long initialFreeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024, mountOptions)) {
+            var blockSize = fs.getBlockSizeBytes();
+            var metrics = fs.getMetrics();
+            initialFreeBlocks = metrics.getNumFreeBlocks();
+            fs.createFile("padding.bin");
+            fs.appendToFile("padding.bin", new byte[20 * blockSize]);
+
+            a = randomBytes(new Random(1), NUM_BLOCKS * blockSize - 10);
+            writeFile(fs, "a.bin", a);
+            // a different header, and a change in the middle
+            b = a.clone();
+            b[0]++;
+            c = a.clone();
+            c[50 * blockSize]++;
+
+            var freeBlocks = metrics.getNumFreeBlocks();
+            writeFile(fs, "b.bin", b);
+            assertEquals(1, freeBlocks - metrics.getNumFreeBlocks());
+            assertEquals(NUM_BLOCKS - 1, metrics.getDeduplicatedBlocks());
+            writeFile(fs, "c.bin", c);
+            assertEquals(52, freeBlocks - metrics.getNumFreeBlocks());
+            assertEquals(NUM_BLOCKS - 1 + 49, metrics.getDeduplicatedBlocks());
+
+            // the shared blocks are copied before they change, the other files keep the old data
+            fs.appendToFile("a.bin", "tail".getBytes());
+            a = concat(a, "tail".getBytes());
+            fs.writeToFileFromOffset("b.bin", new byte[2 * blockSize], 30 * blockSize + 7);
+            Arrays.fill(b, 30 * blockSize + 7, 32 * blockSize + 7, (byte) 0);
+            assertTrue(metrics.getUnsharedBlocks() > 0);
+            assertFiles(fs, a, b, c);
+
+            fs.deleteFile("padding.bin");
+            fs.compact();
+            assertFiles(fs, a, b, c);
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile, mountOptions)) {
+            assertFiles(fs, a, b, c);
+            // the index was saved on close
+            var d = c.clone();
+            d[0]--;
+            writeFile(fs, "d.bin", d);
+            assertEquals(NUM_BLOCKS - 1, fs.getMetrics().getDeduplicatedBlocks());
+
+            assertEquals(1, fs.deleteFile("a.bin"));
+            assertEquals(1, fs.deleteFile("c.bin"));
+            assertArrayEquals(b, fs.readFile("b.bin").get());
+            assertArrayEquals(d, fs.readFile("d.bin").get());
+            try (var channel = fs.openForWrite("d.bin", WriteMode.APPEND)) {
+                channel.write(ByteBuffer.wrap("more".getBytes()));
+            }
+            assertArrayEquals(concat(d, "more".getBytes()), fs.readFile("d.bin").get());
+            assertEquals(1, fs.deleteFile("b.bin"));
+            assertEquals(1, fs.deleteFile("d.bin"));
+        }
+
+        // every block is freed once the last file using it is gone
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+
+    @Test
+    void testSharedChainsAreKeptWithoutDeduplication() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        byte[] a, b;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024, MountOptions.defaults().withDeduplication(1024))) {
+            a = randomBytes(new Random(2), 10 * fs.getBlockSizeBytes());
+            b = a.clone();
+            b[1]++;
+            writeFile(fs, "a.bin", a);
+            writeFile(fs, "b.bin", b);
+            assertEquals(9, fs.getMetrics().getDeduplicatedBlocks());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            fs.writeToFileFromOffset("a.bin", "changed".getBytes(), 5 * fs.getBlockSizeBytes());
+            System.arraycopy("changed".getBytes(), 0, a, 5 * fs.getBlockSizeBytes(), 7);
+            assertEquals(1, fs.deleteFile("b.bin"));
+            assertArrayEquals(a, fs.readFile("a.bin").get());
+            writeFile(fs, "b.bin", b);
+            assertEquals(0, fs.getMetrics().getDeduplicatedBlocks());
+        }
+
+        // the index saved before was dropped by the mount without deduplication
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile, MountOptions.defaults().withDeduplication(1024))) {
+            writeFile(fs, "c.bin", b);
+            assertEquals(0, fs.getMetrics().getDeduplicatedBlocks());
+            assertArrayEquals(a, fs.readFile("a.bin").get());
+            assertArrayEquals(b, fs.readFile("b.bin").get());
+        }
+    }
+
+    @Test
+    void testIndexIsSavedWithoutJournal() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var formatOptions = FormatOptions.defaults().withJournalSize(0);
+        var mountOptions = MountOptions.defaults().withDeduplication(1024);
+        byte[] a;
+        long freeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024, formatOptions, mountOptions)) {
+            a = randomBytes(new Random(3), 10 * fs.getBlockSizeBytes());
+            writeFile(fs, "a.bin", a);
+            freeBlocks = fs.getMetrics().getNumFreeBlocks();
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile, mountOptions)) {
+            // the chain of the saved index is freed by the mount
+            assertEquals(freeBlocks, fs.getMetrics().getNumFreeBlocks());
+            var b = a.clone();
+            b[0]++;
+            writeFile(fs, "b.bin", b);
+            assertEquals(9, fs.getMetrics().getDeduplicatedBlocks());
+            assertArrayEquals(a, fs.readFile("a.bin").get());
+            assertArrayEquals(b, fs.readFile("b.bin").get());
+        }
+    }
+
+    @Test
+    void testReferencesAreCountedFromTheFat() {
+        // 1 -> 2 -> 3 and 4 -> 2, 5 -> 2
+        var fileAllocationTable = FileAllocationTable.createEmpty(8);
+        fileAllocationTable.set(1, 2);
+        fileAllocationTable.set(2, 3);
+        fileAllocationTable.set(3, FileAllocationTable.END_OF_FILE);
+        fileAllocationTable.set(4, 2);
+        fileAllocationTable.set(5, 2);
+        var index = new DeduplicationIndex(2);
+        index.countReferences(fileAllocationTable);
+        assertTrue(index.isShared(2));
+        assertFalse(index.isShared(3));
+
+        index.index(3, 42, FileAllocationTable.END_OF_FILE);
+        assertEquals(3, index.findAndReference(42, FileAllocationTable.END_OF_FILE));
+        assertEquals(-1, index.findAndReference(42, 7));
+        assertTrue(index.release(3));
+        assertTrue(index.release(2));
+        assertTrue(index.release(2));
+        assertFalse(index.release(2));
+        assertFalse(index.release(3));
+        assertFalse(index.isIndexed(3));
+
+        // the least recently used block is dropped
+        index.index(1, 1, 2);
+        index.index(4, 4, 2);
+        index.findAndReference(1, 2);
+        index.index(5, 5, 2);
+        assertTrue(index.isIndexed(1));
+        assertFalse(index.isIndexed(4));
+    }
+
+    @Test
+    void testMatchIsReleasedWhenTheWriteFails() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var formatOptions = FormatOptions.defaults().withBlockSize(512);
+        var mountOptions = MountOptions.defaults().withDeduplication(1 << 16);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 1024 * 1024, formatOptions, mountOptions)) {
+            var initialFreeBlocks = fs.getMetrics().getNumFreeBlocks();
+            var a = randomBytes(new Random(5), 10 * 512);
+            writeFile(fs, "a.bin", a);
+            writeFile(fs, "padding.bin", new byte[(int) fs.getMetrics().getNumFreeBlocks() * 512]);
+            assertEquals(0, fs.getMetrics().getNumFreeBlocks());
+
+            // the end of b matches a, but there is no block left for its first one
+            var b = a.clone();
+            b[0]++;
+            assertEquals(1, fs.createFile("b.bin"));
+            assertThrows(RuntimeException.class, () -> fs.appendToFile("b.bin", b));
+            assertEquals(1, fs.deleteFile("b.bin"));
+            assertEquals(1, fs.deleteFile("padding.bin"));
+            assertEquals(1, fs.deleteFile("a.bin"));
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+
+    @Test
+    void testConcurrentDeletesLeaveNoBlocksBehind() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var formatOptions = FormatOptions.defaults().withBlockSize(512);
+        var mountOptions = MountOptions.defaults().withBlockDeviceType(BlockDeviceType.MEMORY_MAPPED).withDeduplication(4096);
+        var numThreads = 6;
+        long initialFreeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024, formatOptions, mountOptions)) {
+            initialFreeBlocks = fs.getMetrics().getNumFreeBlocks();
+            // a few contents of 8 blocks that differ in a block or two, every file differs from the others in its first one
+            var contents = new byte[4][];
+            contents[0] = randomBytes(new Random(4), 8 * 512);
+            for (int i = 1; i < contents.length; i++) {
+                contents[i] = contents[0].clone();
+                contents[i][i * 512 + 5]++;
+            }
+
+            var done = new AtomicBoolean();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            var compactor = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        fs.compactStep(64);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            compactor.start();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                var threadNum = t;
+                var thread = new Thread(() -> {
+                    try {
+                        var random = new Random(threadNum);
+                        for (int i = 0; i < 300; i++) {
+                            var path = "data/file" + threadNum + "-" + random.nextInt(4);
+                            if (fs.readFile(path).isEmpty()) {
+                                var bytes = contents[random.nextInt(contents.length)].clone();
+                                bytes[0] = (byte) i;
+                                writeFile(fs, path, bytes);
+                            } else if (random.nextInt(4) == 0) {
+                                fs.writeToFileFromOffset(path, new byte[700], random.nextInt(4000));
+                            } else if (random.nextInt(3) == 0) {
+                                fs.appendToFile(path, contents[random.nextInt(contents.length)]);
+                            } else {
+                                assertEquals(1, fs.deleteFile(path));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            done.set(true);
+            compactor.join();
+            assertTrue(failures.isEmpty(), failures.toString());
+
+            // the files are in a directory of their own, whose log is gone with it, so the root keeps its single block
+            for (String path : fs.listFilesUnderPrefix("data/")) {
+                assertEquals(1, fs.deleteFile(path));
+            }
+            assertEquals(1, fs.deleteFile("data"));
+            fs.compact();
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile, mountOptions)) {
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+
+    private static void assertFiles(FileSystemImpl fs, byte[] a, byte[] b, byte[] c) throws IOException {
+        assertArrayEquals(a, fs.readFile("a.bin").get());
+        assertArrayEquals(b, fs.readFile("b.bin").get());
+        assertArrayEquals(c, fs.readFile("c.bin").get());
+    }
+}
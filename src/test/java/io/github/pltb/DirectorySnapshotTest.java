@@ -0,0 +1,49 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+class DirectorySnapshotTest {
+
+    @Test
+    void testLookupWithIndex() {
+        var entries = new HashMap<String, FileMetadata>();
+        for (int i = 0; i < 1000; i++) {
+            entries.put("dir/file-" + i + ".txt", new FileMetadata(FileType.FILE, i, i * 10));
+        }
+        entries.put("\u00fcn\u00efc\u00f6d\u00e9", new FileMetadata(FileType.FILE, 7, 70));
+
+        var snapshot = DirectorySnapshot.wrap(ByteBuffer.wrap(DirectorySnapshot.encode(entries)));
+        assertTrue(snapshot.getNumBuckets() > 0);
+        assertEquals(entries.size(), snapshot.getNumEntries());
+        for (int i = 0; i < 1000; i++) {
+            var metadata = snapshot.lookup("dir/file-" + i + ".txt");
+            assertEquals(i, metadata.getStartingBlockNumber());
+            assertEquals(i * 10, metadata.getFileSize());
+        }
+        assertEquals(70, snapshot.lookup("\u00fcn\u00efc\u00f6d\u00e9").getFileSize());
+        assertNull(snapshot.lookup("dir/file-1000.txt"));
+        assertNull(snapshot.lookup(""));
+        assertEquals(entries.keySet(), snapshot.readAll().keySet());
+    }
+
+    @Test
+    void testSmallSnapshotWithoutIndex() {
+        var entries = new HashMap<String, FileMetadata>();
+        entries.put("a", new FileMetadata(FileType.FILE, -1, 0));
+        entries.put("b", new FileMetadata(FileType.FILE, 3, 5));
+
+        var snapshot = DirectorySnapshot.wrap(ByteBuffer.wrap(DirectorySnapshot.encode(entries)));
+        assertEquals(0, snapshot.getNumBuckets());
+        assertEquals(-1, snapshot.lookup("a").getStartingBlockNumber());
+        assertEquals(5, snapshot.lookup("b").getFileSize());
+        assertNull(snapshot.lookup("c"));
+
+        var empty = DirectorySnapshot.wrap(ByteBuffer.wrap(DirectorySnapshot.encode(new HashMap<>())));
+        assertNull(empty.lookup("a"));
+        assertTrue(empty.readAll().isEmpty());
+    }
+}
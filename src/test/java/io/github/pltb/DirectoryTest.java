@@ -0,0 +1,129 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class DirectoryTest {
+
+    @Test
+    void testLoggedChangesAreReplayed() {
+        var dir = new Directory(0);
+        dir.addFile("a.txt", 5, 100);
+        dir.addFile("b.txt", 7, 200);
+        var image = dir.checkpoint();
+
+        dir.addFile("a.txt", 5, 150);
+        dir.move("b.txt", "c.txt");
+        dir.addFile("d.txt", -1, 0);
+        dir.removeFile("d.txt");
+        assertFalse(dir.needsCheckpoint());
+
+        image = applyPendingChanges(dir, image);
+        var restored = Directory.fromBytes(image);
+        assertEquals(150, restored.getFileSize("a.txt"));
+        assertFalse(restored.isFileExists("b.txt"));
+        assertEquals(7, restored.getFileStartingBlock("c.txt"));
+        assertEquals(200, restored.getFileSize("c.txt"));
+        assertFalse(restored.isFileExists("d.txt"));
+        assertFalse(restored.needsCheckpoint());
+    }
+
+    @Test
+    void testInlineFilesAreLoggedAndCheckpointed() {
+        var dir = new Directory(0);
+        dir.addFile("a.txt", 5, 100);
+        dir.putEntry("small.txt", new FileMetadata("hello".getBytes(StandardCharsets.UTF_8)));
+        var image = dir.checkpoint();
+
+        dir.putEntry("small.txt", new FileMetadata("hello, world".getBytes(StandardCharsets.UTF_8)));
+        dir.putEntry("tiny.txt", new FileMetadata(new byte[] {1, 2, 3}));
+        image = applyPendingChanges(dir, image);
+        var restored = Directory.fromBytes(image);
+        assertArrayEquals("hello, world".getBytes(StandardCharsets.UTF_8), restored.getFileMetadata("small.txt").get().getInlineData());
+        assertEquals(12, restored.getFileSize("small.txt"));
+        assertEquals(-1, restored.getFileStartingBlock("small.txt"));
+        assertArrayEquals(new byte[] {1, 2, 3}, restored.getFileMetadata("tiny.txt").get().getInlineData());
+        assertFalse(restored.getFileMetadata("a.txt").get().isInline());
+
+        // the entries after an inline one are found by the snapshot's index as well
+        restored = Directory.fromBytes(restored.checkpoint());
+        assertEquals(100, restored.getFileSize("a.txt"));
+        assertArrayEquals(new byte[] {1, 2, 3}, restored.getFileMetadata("tiny.txt").get().getInlineData());
+        assertEquals(3, restored.getFileNames().size());
+    }
+
+    @Test
+    void testPackedTailsAreLoggedAndCheckpointed() {
+        var dir = new Directory(0);
+        dir.putEntry("a.bin", new FileMetadata(FileType.FILE, 5, 1100).withTail(9, 32));
+        dir.addFile("b.bin", 6, 100);
+        var image = dir.checkpoint();
+
+        dir.putEntry("c.bin", new FileMetadata(FileType.FILE, -1, 300, false, false, 9, 128));
+        image = applyPendingChanges(dir, image);
+        var restored = Directory.fromBytes(image);
+        var a = restored.getFileMetadata("a.bin").get();
+        assertEquals(9, a.getTailBlock());
+        assertEquals(32, a.getTailOffset());
+        assertEquals(1100, a.getFileSize());
+        assertEquals(128, restored.getFileMetadata("c.bin").get().getTailOffset());
+        assertFalse(restored.getFileMetadata("b.bin").get().hasPackedTail());
+
+        restored = Directory.fromBytes(restored.checkpoint());
+        assertEquals(6, restored.getFileStartingBlock("b.bin"));
+        assertEquals(9, restored.getFileMetadata("c.bin").get().getTailBlock());
+        assertEquals(-1, restored.getFileStartingBlock("c.bin"));
+    }
+
+    @Test
+    void testCheckpointOnceLogOutgrowsSnapshot() {
+        var dir = new Directory(0);
+        dir.addFile("a.txt", 1, 0);
+        var image = dir.checkpoint();
+
+        var changes = 0;
+        while (!dir.needsCheckpoint()) {
+            dir.addFile("a.txt", 1, ++changes);
+            image = applyPendingChanges(dir, image);
+        }
+        assertTrue(changes > 1);
+
+        image = dir.checkpoint();
+        var restored = Directory.fromBytes(image);
+        assertEquals(changes, restored.getFileSize("a.txt"));
+        assertEquals(image.length, restored.getLogEndOffset());
+    }
+
+    @Test
+    void testLegacyTextFormatIsRead() {
+        var legacy = "2\na.txt\nFILE\n3\n10\nb.txt\nFILE\n-1\n0\n".getBytes(StandardCharsets.UTF_8);
+        var dir = Directory.fromBytes(legacy);
+        assertEquals(3, dir.getFileStartingBlock("a.txt"));
+        assertEquals(10, dir.getFileSize("a.txt"));
+        assertTrue(dir.isFileExists("b.txt"));
+        // the directory is rewritten in the current format with the next change
+        assertTrue(dir.needsCheckpoint());
+    }
+
+    @Test
+    void testDirSizeIsNotLimitedToInt() {
+        var dir = new Directory(0);
+        dir.addFile("a.bin", 5, Integer.MAX_VALUE);
+        dir.addFile("b.bin", 7, Integer.MAX_VALUE);
+        assertEquals(2L * Integer.MAX_VALUE, dir.getDirSizeBytes());
+    }
+
+    // does to the image what FileSystemImpl does to the directory's chain
+    private static byte[] applyPendingChanges(Directory dir, byte[] image) {
+        var logOffset = dir.getLogEndOffset();
+        var records = dir.takePendingLog();
+        var newImage = new byte[Math.max(image.length, logOffset + records.length)];
+        System.arraycopy(image, 0, newImage, 0, image.length);
+        System.arraycopy(records, 0, newImage, logOffset, records.length);
+        var header = dir.getHeaderBytes();
+        System.arraycopy(header, 0, newImage, 0, header.length);
+        return newImage;
+    }
+}
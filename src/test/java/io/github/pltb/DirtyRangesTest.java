@@ -0,0 +1,47 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class DirtyRangesTest {
+
+    @Test
+    void testAdjacentAndOverlappingRangesAreMerged() {
+        var ranges = new DirtyRanges();
+        for (int block = 100; block < 1100; block++) {
+            ranges.add(block, 1);
+        }
+        assertEquals(1, ranges.getNumRanges());
+        assertEquals(1000, ranges.getNumEntries());
+
+        ranges.add(2000, 10);
+        ranges.add(1995, 3);
+        assertEquals(3, ranges.getNumRanges());
+        // fills the gaps on both sides and covers the range in the middle
+        ranges.add(1098, 910);
+        assertEquals(1, ranges.getNumRanges());
+        assertEquals(100, ranges.getRanges().get(0).getStart());
+        assertEquals(2010, ranges.getRanges().get(0).getEnd());
+        assertEquals(1910, ranges.getNumEntries());
+
+        ranges.add(500, 5);
+        assertEquals(1910, ranges.getNumEntries());
+    }
+
+    @Test
+    void testSeparateRangesStayApart() {
+        var ranges = new DirtyRanges();
+        ranges.add(10, 2);
+        ranges.add(0, 1);
+        ranges.add(13, 1);
+
+        var extents = ranges.getRanges();
+        assertEquals(3, extents.size());
+        assertEquals(0, extents.get(0).getStart());
+        assertEquals(10, extents.get(1).getStart());
+        assertEquals(2, extents.get(1).getLength());
+        assertEquals(13, extents.get(2).getStart());
+        assertEquals(4, ranges.getNumEntries());
+    }
+}
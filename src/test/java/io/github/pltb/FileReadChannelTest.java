@@ -0,0 +1,87 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileReadChannelTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testSequentialAndRandomReads() throws IOException {
+        var bytes = new byte[100_000];
+        new Random(1).nextBytes(bytes);
+
+        try (var fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), 2 * 1024 * 1024)) {
+            fs.createFile("dir/data.bin");
+            // several appends, so that the chain is not a single run
+            for (int offset = 0; offset < bytes.length; offset += 30_000) {
+                fs.createFile("dir/filler" + offset);
+                fs.appendToFile("dir/filler" + offset, new byte[1500]);
+                fs.appendToFile("dir/data.bin", Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + 30_000)));
+            }
+
+            try (var channel = fs.openForRead("dir/data.bin")) {
+                assertEquals(bytes.length, channel.size());
+                var readBack = ByteBuffer.allocate(bytes.length);
+                var chunk = ByteBuffer.allocate(777);
+                while (channel.read(chunk.clear()) > 0) {
+                    readBack.put(chunk.flip());
+                }
+                assertArrayEquals(bytes, readBack.array());
+                assertEquals(-1, channel.read(chunk.clear()));
+
+                channel.position(54_321);
+                var slice = ByteBuffer.allocateDirect(5000);
+                assertEquals(5000, channel.read(slice));
+                var sliceBytes = new byte[5000];
+                slice.flip().get(sliceBytes);
+                assertArrayEquals(Arrays.copyOfRange(bytes, 54_321, 59_321), sliceBytes);
+
+                channel.position(10);
+                var start = ByteBuffer.allocate(10);
+                channel.read(start);
+                assertArrayEquals(Arrays.copyOfRange(bytes, 10, 20), start.array());
+                assertThrows(NonWritableChannelException.class, () -> channel.write(ByteBuffer.allocate(1)));
+            }
+
+            try (var in = fs.openInputStream("dir/data.bin")) {
+                var out = new ByteArrayOutputStream();
+                in.transferTo(out);
+                assertArrayEquals(bytes, out.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    void testChannelSeesAppendsAndDeletion() throws IOException {
+        try (var fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), 2 * 1024 * 1024)) {
+            assertThrows(NoSuchFileException.class, () -> fs.openForRead("missing"));
+            fs.createFile("log.txt");
+
+            try (var channel = fs.openForRead("log.txt")) {
+                assertEquals(0, channel.size());
+                assertEquals(-1, channel.read(ByteBuffer.allocate(10)));
+
+                fs.appendToFile("log.txt", "hello".getBytes());
+                var buffer = ByteBuffer.allocate(10);
+                assertEquals(5, channel.read(buffer));
+                assertEquals("hello", new String(buffer.array(), 0, 5));
+
+                fs.deleteFile("log.txt");
+                assertThrows(IOException.class, () -> channel.read(ByteBuffer.allocate(10)));
+            }
+        }
+    }
+}
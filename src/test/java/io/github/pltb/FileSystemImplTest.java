@@ -2,13 +2,23 @@ package io.github.pltb;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
@@ -50,7 +60,7 @@ class FileSystemImplTest {
             getFileNames(files, rootPath);
 
 
-            try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024)) {
+            try (var fs = FileSystemImpl.createNew(tempFile, 8 * 1024 * 1024)) {
                 for (Path file : files) {
                     fs.createFile(file.toAbsolutePath().toString());
                     fs.appendToFile(file.toAbsolutePath().toString(), Files.readAllBytes(file));
@@ -93,7 +103,591 @@ class FileSystemImplTest {
         }
     }
 
-    private static List<String> IGNORED_DIRS = List.of(".gradle");
+    @Test
+    void testAppendAndOverwriteAcrossBlocks() throws IOException {
+        File tempFile = new File(tempDir, "container2.fs");
+        var expected = new ByteArrayOutputStream();
+        var random = new Random(42);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024)) {
+            fs.createFile("log.txt");
+            for (int chunkSize : new int[] {10, 1014, 1, 3000, 0, 2047, 5}) {
+                var chunk = new byte[chunkSize];
+                random.nextBytes(chunk);
+                fs.appendToFile("log.txt", chunk);
+                expected.write(chunk);
+            }
+            assertArrayEquals(expected.toByteArray(), fs.readFile("log.txt").get());
+
+            var patch = new byte[2500];
+            random.nextBytes(patch);
+            assertEquals(1, fs.writeToFileFromOffset("log.txt", patch, 1000));
+            var expectedBytes = expected.toByteArray();
+            System.arraycopy(patch, 0, expectedBytes, 1000, patch.length);
+            assertArrayEquals(expectedBytes, fs.readFile("log.txt").get());
+
+            assertEquals(-1, fs.writeToFileFromOffset("log.txt", patch, expectedBytes.length - 10));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            var bytes = fs.readFile("log.txt").get();
+            assertEquals(expected.size(), bytes.length);
+        }
+    }
+
+    @Test
+    void testMemoryMappedDevice() throws IOException {
+        File tempFile = new File(tempDir, "container3.fs");
+        var bytes = new byte[10_000];
+        new Random(7).nextBytes(bytes);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024, BlockDeviceType.MEMORY_MAPPED)) {
+            fs.createFile("a.bin");
+            fs.appendToFile("a.bin", bytes);
+            fs.createFile("b.bin");
+            fs.appendToFile("b.bin", bytes);
+            fs.deleteFile("b.bin");
+            fs.compact();
+            assertArrayEquals(bytes, fs.readFile("a.bin").get());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile, BlockDeviceType.FILE_CHANNEL)) {
+            assertArrayEquals(bytes, fs.readFile("a.bin").get());
+            fs.appendToFile("a.bin", bytes);
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile, BlockDeviceType.MEMORY_MAPPED)) {
+            var readBack = fs.readFile("a.bin").get();
+            assertEquals(2 * bytes.length, readBack.length);
+            assertArrayEquals(bytes, Arrays.copyOfRange(readBack, bytes.length, readBack.length));
+        }
+    }
+
+    @Test
+    void testManyDirectoryChanges() throws IOException {
+        File tempFile = new File(tempDir, "container4.fs");
+        var numFiles = 2000;
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 4 * 1024 * 1024)) {
+            for (int i = 0; i < numFiles; i++) {
+                fs.createFile("file" + i);
+                fs.appendToFile("file" + i, ("content" + i).getBytes());
+            }
+            for (int i = 0; i < numFiles; i += 2) {
+                fs.deleteFile("file" + i);
+            }
+            for (int i = 1; i < numFiles; i += 4) {
+                assertEquals(1, fs.moveFile("file" + i, "moved" + i));
+            }
+            assertEquals(-1, fs.moveFile("missing", "moved"));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertEquals(numFiles / 2, fs.listFiles().size());
+            for (int i = 1; i < numFiles; i += 2) {
+                var name = (i % 4 == 1 ? "moved" : "file") + i;
+                assertEquals("content" + i, new String(fs.readFile(name).get()));
+            }
+            assertTrue(fs.readFile("file0").isEmpty());
+        }
+    }
+
+    @Test
+    void testLegacyDirectoryIsMigratedOnMount() throws IOException {
+        File tempFile = new File(tempDir, "container5.fs");
+        int dataRegionOffset;
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024)) {
+            // larger than an inline file, so that it has blocks the legacy entry can point to
+            fs.createFile("a.txt");
+            fs.appendToFile("a.txt", "hello".repeat(100).getBytes());
+        }
+        try (var device = BlockDeviceImpl.attachToFile(tempFile)) {
+            dataRegionOffset = Superblock.fromBytes(device.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES)).getDataRegionOffset();
+            var startingBlock = Directory.fromBytes(device.readBlock(dataRegionOffset, 1024)).getFileStartingBlock("a.txt");
+            // the directory as it was written before the binary format
+            var legacyDir = new byte[1024];
+            var legacyText = ("2\na.txt\nFILE\n" + startingBlock + "\n500\nlogs/b.txt\nFILE\n-1\n0\n").getBytes();
+            System.arraycopy(legacyText, 0, legacyDir, 0, legacyText.length);
+            device.storeBlock(dataRegionOffset, legacyDir);
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertEquals("hello".repeat(100), new String(fs.readFile("a.txt").get()));
+            assertEquals(List.of("logs/b.txt"), fs.listFilesUnderPrefix("logs/"));
+            assertEquals(0, fs.readFile("logs/b.txt").get().length);
+        }
+        try (var device = BlockDeviceImpl.attachToFile(tempFile)) {
+            var migrated = Directory.fromBytes(device.readBlock(dataRegionOffset, 1024));
+            assertFalse(migrated.needsCheckpoint());
+            assertEquals(500, migrated.getFileSize("a.txt"));
+        }
+    }
+
+    @Test
+    void testNestedDirectories() throws IOException {
+        File tempFile = new File(tempDir, "container6.fs");
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024)) {
+            assertEquals(1, fs.createFile("a/b/c.txt"));
+            assertEquals(1, fs.appendToFile("a/b/c.txt", "c".getBytes()));
+            assertEquals(1, fs.createFile("a/b/d.txt"));
+            assertEquals(1, fs.createFile("a/bb.txt"));
+            assertEquals(1, fs.createFile("/abs/e.txt"));
+            assertEquals(1, fs.createFile("top.txt"));
+
+            // a file cannot be used as a directory and the other way round
+            assertEquals(-1, fs.createFile("top.txt/x"));
+            assertEquals(-1, fs.createFile("a/b"));
+            assertEquals(-1, fs.appendToFile("a/b", "x".getBytes()));
+            assertTrue(fs.readFile("a/b").isEmpty());
+
+            assertEquals(List.of("a/b/c.txt", "a/b/d.txt", "a/bb.txt"), fs.listFilesUnderPrefix("a/"));
+            assertEquals(List.of("a/b/c.txt", "a/b/d.txt", "a/bb.txt"), fs.listFilesUnderPrefix("a/b"));
+            assertEquals(List.of("a/b/c.txt", "a/b/d.txt"), fs.listFilesUnderPrefix("a/b/"));
+            assertEquals(List.of("/abs/e.txt"), fs.listFilesUnderPrefix("/"));
+            assertEquals(List.of(), fs.listFilesUnderPrefix("x/"));
+            assertEquals(5, fs.listFiles().size());
+
+            // moving a directory moves everything under it
+            assertEquals(1, fs.moveFile("a/b", "moved/b"));
+            assertEquals(-1, fs.moveFile("moved", "moved/b/inside"));
+            assertEquals(List.of("moved/b/c.txt", "moved/b/d.txt"), fs.listFilesUnderPrefix("moved/"));
+            assertEquals("c", new String(fs.readFile("moved/b/c.txt").get()));
+
+            // only empty directories can be deleted
+            assertEquals(-1, fs.deleteFile("moved/b"));
+            assertEquals(1, fs.deleteFile("moved/b/c.txt"));
+            assertEquals(1, fs.deleteFile("moved/b/d.txt"));
+            assertEquals(1, fs.deleteFile("moved/b"));
+            fs.compact();
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertEquals(List.of("/abs/e.txt", "a/bb.txt", "top.txt"), fs.listFiles());
+            assertTrue(fs.readFile("moved/b/c.txt").isEmpty());
+        }
+    }
+
+    @Test
+    void testConcurrentReadersAndWriters() throws Exception {
+        File tempFile = new File(tempDir, "container7.fs");
+        var numThreads = 8;
+        var appendsPerThread = 40;
+        var shared = new byte[20_000];
+        new Random(3).nextBytes(shared);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 8 * 1024 * 1024)) {
+            fs.createFile("shared.bin");
+            fs.appendToFile("shared.bin", shared);
+
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                var threadNum = t;
+                var thread = new Thread(() -> {
+                    try {
+                        var path = "dir" + threadNum % 2 + "/file" + threadNum;
+                        fs.createFile(path);
+                        for (int i = 0; i < appendsPerThread; i++) {
+                            fs.appendToFile(path, ("chunk" + i + ";").repeat(30).getBytes());
+                            // everybody reads the same file in between
+                            assertArrayEquals(shared, fs.readFile("shared.bin").get());
+                        }
+                        fs.writeToFileFromOffset(path, "patched".getBytes(), 0);
+                        fs.createFile("tmp" + threadNum);
+                        fs.moveFile("tmp" + threadNum, "moved/tmp" + threadNum);
+                        fs.deleteFile("moved/tmp" + threadNum);
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertTrue(failures.isEmpty(), failures.toString());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            var expected = new StringBuilder();
+            for (int i = 0; i < appendsPerThread; i++) {
+                expected.append(("chunk" + i + ";").repeat(30));
+            }
+            expected.replace(0, "patched".length(), "patched");
+            for (int t = 0; t < numThreads; t++) {
+                assertEquals(expected.toString(), new String(fs.readFile("dir" + t % 2 + "/file" + t).get()));
+            }
+            assertArrayEquals(shared, fs.readFile("shared.bin").get());
+            assertEquals(List.of(), fs.listFilesUnderPrefix("moved/"));
+        }
+    }
+
+    @Test
+    void testCrossProcessLockingFromSeveralThreads() throws Exception {
+        File tempFile = new File(tempDir, "container8.fs");
+        var mountOptions = MountOptions.defaults().withCrossProcessLocking(true);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024, mountOptions)) {
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                var path = "file" + t;
+                var thread = new Thread(() -> {
+                    try {
+                        fs.createFile(path);
+                        for (int i = 0; i < 20; i++) {
+                            fs.appendToFile(path, "x".getBytes());
+                            fs.readFile(path);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // threads of one process used to run into OverlappingFileLockException
+            assertTrue(failures.isEmpty(), failures.toString());
+            assertEquals("x".repeat(20), new String(fs.readFile("file3").get()));
+        }
+    }
+
+    @Test
+    void testLargeDeletesFreeAllBlocks() throws IOException {
+        File tempFile = new File(tempDir, "container9.fs");
+        var big = new byte[1_200_000];
+        new Random(5).nextBytes(big);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 2 * 1024 * 1024)) {
+            fs.createFile("small.txt");
+            fs.appendToFile("small.txt", "small".getBytes());
+            // small files between the appends leave big.bin in many runs, deleting it changes most of the FAT at once,
+            // which writes the whole table
+            fs.createFile("big.bin");
+            for (int i = 0; i < 12; i++) {
+                fs.appendToFile("big.bin", Arrays.copyOfRange(big, i * 100_000, (i + 1) * 100_000));
+                fs.createFile("pad" + i);
+                fs.appendToFile("pad" + i, "p".getBytes());
+            }
+            assertEquals(1, fs.deleteFile("big.bin"));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertEquals("small", new String(fs.readFile("small.txt").get()));
+            // fits again only if the freed blocks are free on disk too
+            fs.createFile("big.bin");
+            assertEquals(1, fs.appendToFile("big.bin", big));
+            fs.createFile("fragmented.bin");
+            for (int i = 0; i < 50; i++) {
+                fs.appendToFile("fragmented.bin", Arrays.copyOfRange(big, i * 1000, i * 1000 + 1000));
+                fs.appendToFile("small.txt", "x".getBytes());
+            }
+            fs.deleteFile("big.bin");
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertArrayEquals(Arrays.copyOfRange(big, 0, 50_000), fs.readFile("fragmented.bin").get());
+            assertEquals("small" + "x".repeat(50), new String(fs.readFile("small.txt").get()));
+            fs.createFile("big.bin");
+            assertEquals(1, fs.appendToFile("big.bin", big));
+        }
+    }
+
+    @Test
+    void testFormatOptionsAreUsedOnLoad() throws IOException {
+        var content = new byte[300_000];
+        new Random(6).nextBytes(content);
+
+        for (var formatOptions : List.of(
+                FormatOptions.defaults().withBlockSize(512).withFatEntryWidth(2),
+                FormatOptions.defaults().withBlockSize(64 * 1024).withDataRegionRatio(0.9),
+                FormatOptions.defaults().withBlockSize(4096).withFatEntryWidth(3).withJournalSize(0))) {
+            File tempFile = new File(tempDir, "container10-" + formatOptions.getBlockSizeBytes() + ".fs");
+
+            try (var fs = FileSystemImpl.createNew(tempFile, 8 * 1024 * 1024, formatOptions)) {
+                fs.createFile("dir/big.bin");
+                fs.createFile("dir/small.txt");
+                for (int i = 0; i < 3; i++) {
+                    fs.appendToFile("dir/big.bin", Arrays.copyOfRange(content, i * 100_000, (i + 1) * 100_000));
+                    fs.appendToFile("dir/small.txt", "small".getBytes());
+                }
+            }
+
+            try (var device = BlockDeviceImpl.attachToFile(tempFile)) {
+                var superblock = Superblock.fromBytes(device.readBlock(0, Superblock.SUPERBLOCK_SIZE_BYTES));
+                assertEquals(Superblock.CURRENT_VERSION, superblock.getVersion());
+                assertEquals(formatOptions.getBlockSizeBytes(), superblock.getBlockSizeBytes());
+                assertEquals(formatOptions.getFatEntryWidthBytes(), superblock.getFatEntryWidthBytes());
+                assertEquals(formatOptions.getJournalSizeBytes() != 0, superblock.hasJournal());
+                assertEquals(0, superblock.getDataRegionOffset() % formatOptions.getBlockSizeBytes());
+            }
+
+            try (var fs = FileSystemImpl.loadFromContainer(tempFile, MountOptions.defaults().withBlockCache(16,
+                    CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_THROUGH, false))) {
+                assertEquals(formatOptions.getBlockSizeBytes(), fs.getBlockSizeBytes());
+                assertArrayEquals(content, fs.readFile("dir/big.bin").get());
+                assertEquals("small".repeat(3), new String(fs.readFile("dir/small.txt").get()));
+                fs.writeToFileFromOffset("dir/big.bin", "head".getBytes(), 0);
+                fs.deleteFile("dir/small.txt");
+                fs.compact();
+            }
+
+            try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+                assertEquals("head", new String(fs.readFile("dir/big.bin").get(), 0, 4));
+                assertEquals(List.of("dir/big.bin"), fs.listFiles());
+            }
+        }
+    }
+
+    @Test
+    void testUnversionedSuperblockIsReadWithLegacyLayout() {
+        // written before the superblock had a magic number, a version, a block size and a FAT entry width
+        var legacy = ByteBuffer.allocate(Superblock.SUPERBLOCK_SIZE_BYTES);
+        legacy.putInt(160).putInt(1000).putInt(8160).putLong(1 << 20).putInt(4160).putInt(4000);
+        var superblock = Superblock.fromBytes(legacy.array());
+
+        assertEquals(0, superblock.getVersion());
+        assertEquals(1024, superblock.getBlockSizeBytes());
+        assertEquals(4, superblock.getFatEntryWidthBytes());
+        assertEquals(1000, superblock.getFileAllocationTableNumEntries());
+        assertEquals(8160, superblock.getDataRegionOffset());
+        assertEquals(4000, superblock.getJournalSizeBytes());
+        assertThrows(IllegalArgumentException.class, () -> FormatOptions.defaults().withBlockSize(3000));
+        assertThrows(IllegalArgumentException.class,
+                () -> FileSystemImpl.createNew(new File(tempDir, "too-big.fs"), 1L << 30, FormatOptions.defaults().withFatEntryWidth(2)));
+    }
+
+    @Test
+    void testOffsetWritesAndReadsOfFragmentedFile() throws IOException {
+        File tempFile = new File(tempDir, "container11.fs");
+        var random = new Random(8);
+        var expected = new byte[2_000_000];
+        random.nextBytes(expected);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 8 * 1024 * 1024)) {
+            fs.createFile("big.bin");
+            for (int i = 0; i < 40; i++) {
+                fs.appendToFile("big.bin", Arrays.copyOfRange(expected, i * 50_000, (i + 1) * 50_000));
+                fs.createFile("pad" + i);
+                fs.appendToFile("pad" + i, new byte[1500]);
+            }
+            for (int i = 0; i < 40; i += 2) {
+                fs.deleteFile("pad" + i);
+            }
+
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < 200; i++) {
+                    var patch = new byte[1 + random.nextInt(3000)];
+                    random.nextBytes(patch);
+                    var offset = random.nextInt(expected.length - patch.length);
+                    assertEquals(1, fs.writeToFileFromOffset("big.bin", patch, offset));
+                    System.arraycopy(patch, 0, expected, offset, patch.length);
+                }
+                try (var channel = fs.openForRead("big.bin")) {
+                    for (int i = 0; i < 100; i++) {
+                        var position = random.nextInt(expected.length - 100);
+                        var dst = ByteBuffer.allocate(100);
+                        channel.position(position).read(dst);
+                        assertArrayEquals(Arrays.copyOfRange(expected, position, position + 100), dst.array());
+                    }
+                }
+                // the second round runs on blocks the compaction has moved
+                fs.compact();
+            }
+            assertArrayEquals(expected, fs.readFile("big.bin").get());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertArrayEquals(expected, fs.readFile("big.bin").get());
+        }
+    }
+
+    @Test
+    void testReadFileRange() throws IOException {
+        File tempFile = new File(tempDir, "container12.fs");
+        var content = new byte[500_000];
+        new Random(9).nextBytes(content);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 4 * 1024 * 1024)) {
+            fs.createFile("big.bin");
+            for (int i = 0; i < 10; i++) {
+                fs.appendToFile("big.bin", Arrays.copyOfRange(content, i * 50_000, (i + 1) * 50_000));
+                fs.createFile("pad" + i);
+                fs.appendToFile("pad" + i, "p".getBytes());
+            }
+
+            assertArrayEquals(Arrays.copyOfRange(content, 0, 16), fs.readFileRange("big.bin", 0, 16).get());
+            assertArrayEquals(Arrays.copyOfRange(content, 123_456, 323_456), fs.readFileRange("big.bin", 123_456, 200_000).get());
+            assertArrayEquals(Arrays.copyOfRange(content, 499_990, 500_000), fs.readFileRange("big.bin", 499_990, 100).get());
+            assertEquals(0, fs.readFileRange("big.bin", 600_000, 100).get().length);
+            assertTrue(fs.readFileRange("missing.bin", 0, 100).isEmpty());
+
+            for (var dst : List.of(ByteBuffer.allocate(150_000), ByteBuffer.allocateDirect(150_000))) {
+                dst.position(10);
+                assertEquals(149_990, fs.readFileRange("big.bin", 77_777, dst));
+                assertFalse(dst.hasRemaining());
+                var bytes = new byte[149_990];
+                dst.position(10);
+                dst.get(bytes);
+                assertArrayEquals(Arrays.copyOfRange(content, 77_777, 77_777 + 149_990), bytes);
+
+                dst.clear();
+                assertEquals(1000, fs.readFileRange("big.bin", 499_000, dst));
+                assertEquals(1000, dst.position());
+                assertEquals(-1, fs.readFileRange("big.bin", 500_000, dst));
+            }
+            assertThrows(NoSuchFileException.class, () -> fs.readFileRange("missing.bin", 0, ByteBuffer.allocate(10)));
+            assertThrows(IllegalArgumentException.class, () -> fs.readFileRange("big.bin", -1, 10));
+        }
+    }
+
+    @Test
+    void testExportAndImportThroughChannels() throws IOException {
+        var content = new byte[700_000];
+        new Random(10).nextBytes(content);
+        var hostFile = new File(tempDir, "host.bin");
+        Files.write(hostFile.toPath(), content);
+
+        var mountOptions = List.of(
+                MountOptions.defaults(),
+                MountOptions.defaults().withBlockDeviceType(BlockDeviceType.MEMORY_MAPPED),
+                MountOptions.defaults().withBlockCache(32, CachingBlockDevice.EvictionPolicy.CLOCK, CachingBlockDevice.WritePolicy.WRITE_BACK, false));
+        for (int i = 0; i < mountOptions.size(); i++) {
+            File tempFile = new File(tempDir, "container13-" + i + ".fs");
+            File exportedFile = new File(tempDir, "exported" + i + ".bin");
+
+            try (var fs = FileSystemImpl.createNew(tempFile, 4 * 1024 * 1024, mountOptions.get(i))) {
+                try (var src = FileChannel.open(hostFile.toPath())) {
+                    assertEquals(1, fs.importFile("in/imported.bin", src, content.length));
+                }
+                // a fragmented copy, exported run by run
+                fs.createFile("fragmented.bin");
+                for (int j = 0; j < 7; j++) {
+                    fs.appendToFile("fragmented.bin", Arrays.copyOfRange(content, j * 100_000, (j + 1) * 100_000));
+                    fs.createFile("pad" + j);
+                    fs.appendToFile("pad" + j, "p".getBytes());
+                }
+
+                try (var target = FileChannel.open(exportedFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    assertEquals(content.length, fs.exportFile("fragmented.bin", target));
+                }
+                assertArrayEquals(content, Files.readAllBytes(exportedFile.toPath()));
+
+                var out = new ByteArrayOutputStream();
+                assertEquals(content.length, fs.exportFile("in/imported.bin", Channels.newChannel(out)));
+                assertArrayEquals(content, out.toByteArray());
+
+                // a channel that ends early leaves the existing file as it was
+                var shortSrc = Channels.newChannel(new ByteArrayInputStream(new byte[1000]));
+                assertThrows(EOFException.class, () -> fs.importFile("in/imported.bin", shortSrc, 5000));
+                assertArrayEquals(content, fs.readFile("in/imported.bin").get());
+                assertEquals(1, fs.importFile("empty.bin", Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0));
+                assertThrows(NoSuchFileException.class, () -> fs.exportFile("missing.bin", Channels.newChannel(out)));
+            }
+
+            try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+                assertArrayEquals(content, fs.readFile("in/imported.bin").get());
+                assertEquals(0, fs.readFile("empty.bin").get().length);
+            }
+        }
+    }
+
+    @Test
+    void testSmallFilesAreStoredInline() throws IOException {
+        File tempFile = new File(tempDir, "container14.fs");
+        var small = "a small file".getBytes();
+        var grown = new byte[3000];
+        new Random(11).nextBytes(grown);
+        System.arraycopy(small, 0, grown, 0, small.length);
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 4 * 1024 * 1024)) {
+            var freeBlocks = fs.getMetrics().getNumFreeBlocks();
+            for (int i = 0; i < 100; i++) {
+                fs.createFile("small/file" + i);
+                fs.appendToFile("small/file" + i, small);
+            }
+            // only the directory's own blocks
+            assertTrue(freeBlocks - fs.getMetrics().getNumFreeBlocks() < 10);
+
+            assertEquals(1, fs.appendToFile("small/file0", " and more".getBytes()));
+            assertArrayEquals("a small file and more".getBytes(), fs.readFile("small/file0").get());
+            assertEquals(1, fs.writeToFileFromOffset("small/file1", "A".getBytes(), 0));
+            assertEquals(-1, fs.writeToFileFromOffset("small/file1", "too far".getBytes(), small.length - 1));
+            assertArrayEquals("small".getBytes(), fs.readFileRange("small/file1", 2, 5).get());
+            assertArrayEquals("A small file".getBytes(), fs.readFileConcurrently("small/file1", Runnable::run).get());
+
+            // past the inline size, the data moves to blocks
+            assertEquals(1, fs.appendToFile("small/file2", Arrays.copyOfRange(grown, small.length, grown.length)));
+            assertArrayEquals(grown, fs.readFile("small/file2").get());
+            assertTrue(freeBlocks - fs.getMetrics().getNumFreeBlocks() >= grown.length / fs.getBlockSizeBytes());
+
+            try (var channel = fs.openForRead("small/file3")) {
+                var buffer = ByteBuffer.allocate(100);
+                assertEquals(small.length, channel.read(buffer));
+                assertEquals(-1, channel.read(buffer));
+            }
+            try (var channel = fs.openForWrite("small/file4", WriteMode.APPEND)) {
+                channel.write(ByteBuffer.wrap("!".getBytes()));
+            }
+            assertArrayEquals("a small file!".getBytes(), fs.readFile("small/file4").get());
+
+            var out = new ByteArrayOutputStream();
+            assertEquals(small.length, fs.exportFile("small/file5", Channels.newChannel(out)));
+            assertArrayEquals(small, out.toByteArray());
+            assertEquals(1, fs.importFile("small/imported", Channels.newChannel(new ByteArrayInputStream(small)), small.length));
+            assertEquals(1, fs.moveFile("small/imported", "moved"));
+            assertEquals(1, fs.deleteFile("small/file6"));
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(tempFile)) {
+            assertArrayEquals("a small file and more".getBytes(), fs.readFile("small/file0").get());
+            assertArrayEquals("A small file".getBytes(), fs.readFile("small/file1").get());
+            assertArrayEquals(grown, fs.readFile("small/file2").get());
+            assertArrayEquals("a small file!".getBytes(), fs.readFile("small/file4").get());
+            assertArrayEquals(small, fs.readFile("moved").get());
+            assertArrayEquals(small, fs.readFile("small/file99").get());
+            assertTrue(fs.readFile("small/file6").isEmpty());
+            assertEquals(100, fs.listFiles().size());
+        }
+    }
+
+    @Test
+    void testLargeAppendSurvivesCrashWithSmallJournal() throws IOException {
+        File tempFile = new File(tempDir, "container.fs");
+        File crashedFile = new File(tempDir, "crashed.fs");
+        var formatOptions = FormatOptions.defaults().withBlockSize(1024).withJournalSize(64 * 1024);
+        var content = new byte[20 * 1024 * 1024 + 1234];
+        new Random(3).nextBytes(content);
+        long freeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(tempFile, 64 * 1024 * 1024, formatOptions)) {
+            fs.createFile("a");
+            fs.createFile("big");
+            fs.appendToFile("big", Arrays.copyOf(content, 2000));
+            fs.appendToFile("big", Arrays.copyOfRange(content, 2000, content.length));
+            freeBlocks = fs.getMetrics().getNumFreeBlocks();
+            // the state a crash would leave behind
+            Files.copy(tempFile.toPath(), crashedFile.toPath());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(crashedFile)) {
+            assertArrayEquals(content, fs.readFile("big").get());
+            assertEquals(freeBlocks, fs.getMetrics().getNumFreeBlocks());
+            assertEquals(1, fs.deleteFile("big"));
+        }
+    }
+
+    private static List<String> IGNORED_DIRS = List.of(".gradle", ".git", "build");
 
     private static List<Path> getFileNames(List<Path> files, Path dir) {
         try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
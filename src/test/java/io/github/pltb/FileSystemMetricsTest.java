@@ -0,0 +1,128 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileSystemMetricsTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testOperationsAreCounted() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var metrics = fs.getMetrics();
+            var freeBlocksBefore = metrics.getNumFreeBlocks();
+            var bytesWrittenBefore = metrics.getBytesWritten();
+            assertEquals(0.0, metrics.getFreeSpaceFragmentation());
+
+            for (int i = 0; i < 10; i++) {
+                fs.createFile("dir/file" + i);
+                fs.appendToFile("dir/file" + i, new byte[4 * fs.getBlockSizeBytes()]);
+            }
+            fs.readFile("dir/file3");
+
+            assertEquals(10, metrics.getOperationLatency("createFile").getCount());
+            assertEquals(10, metrics.getOperationLatency("appendToFile").getCount());
+            assertEquals(1, metrics.getOperationLatency("readFile").getCount());
+            assertEquals(0, metrics.getOperationLatency("deleteFile").getCount());
+            assertEquals(3, metrics.getOperationLatencies().size());
+            assertTrue(metrics.getOperationLatency("appendToFile").getTotalNanos() > 0);
+
+            assertTrue(metrics.getBytesWritten() - bytesWrittenBefore >= 40L * fs.getBlockSizeBytes());
+            assertTrue(metrics.getBlocksRead() >= 4);
+            assertTrue(metrics.getFatEntriesWritten() >= 40);
+            assertTrue(metrics.getNumDirectoryFlushes() >= 20);
+            assertTrue(metrics.getDirectoryFlushBytes() > 0);
+            assertTrue(metrics.getFileLockWaits().getCount() >= 21);
+            assertTrue(metrics.getDirectoryLockWaits().getCount() >= 21);
+            assertEquals(0, metrics.getContainerLockWaits().getCount());
+            assertTrue(freeBlocksBefore - metrics.getNumFreeBlocks() >= 40);
+
+            // holes between the files left
+            for (int i = 0; i < 10; i += 2) {
+                fs.deleteFile("dir/file" + i);
+            }
+            assertTrue(metrics.getFreeSpaceFragmentation() > 0);
+            assertTrue(metrics.getNumFreeExtents() > 1);
+            assertEquals(metrics.getNumFreeBlocks() * fs.getBlockSizeBytes(), metrics.getFreeSpaceBytes());
+        }
+    }
+
+    @Test
+    void testLatencyHistogramPercentiles() {
+        var histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileNanos(99));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1_000_000);
+        }
+        histogram.record(0);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        assertEquals(90 * 1000 + 10 * 1_000_000, histogram.getTotalNanos());
+        // within the power of two above the recorded durations
+        var median = histogram.getPercentileNanos(50);
+        assertTrue(median >= 1000 && median < 2048);
+        assertEquals(1_000_000, histogram.getPercentileNanos(99));
+        assertEquals(0, histogram.getPercentileNanos(0));
+        assertThrows(IllegalArgumentException.class, () -> histogram.getPercentileNanos(101));
+    }
+
+    @Test
+    void testFlightRecorderEvents() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var recordingFile = new File(tempDir, "recording.jfr").toPath();
+
+        try (var recording = new Recording()) {
+            recording.enable("io.github.pltb.Operation");
+            recording.enable("io.github.pltb.DirectoryFlush");
+            recording.enable("io.github.pltb.CompactionStep");
+            recording.start();
+            try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+                fs.createFile("first.txt");
+                fs.createFile("second.txt");
+                fs.appendToFile("second.txt", new byte[10_000]);
+                fs.deleteFile("first.txt");
+                fs.compact();
+            }
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+
+        var operations = new ArrayList<String>();
+        var numDirectoryFlushes = 0;
+        var numCompactionSteps = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recordingFile)) {
+            switch (event.getEventType().getName()) {
+                case "io.github.pltb.Operation" -> operations.add(event.getString("operation") + " " + event.getString("path"));
+                case "io.github.pltb.DirectoryFlush" -> {
+                    assertTrue(event.getLong("bytesWritten") > 0);
+                    numDirectoryFlushes++;
+                }
+                case "io.github.pltb.CompactionStep" -> numCompactionSteps++;
+                default -> {
+                }
+            }
+        }
+        assertTrue(operations.contains("createFile first.txt"));
+        assertTrue(operations.contains("appendToFile second.txt"));
+        assertTrue(operations.contains("deleteFile first.txt"));
+        assertTrue(operations.contains("compact null"));
+        assertTrue(numDirectoryFlushes >= 3);
+        assertTrue(numCompactionSteps >= 1);
+    }
+}
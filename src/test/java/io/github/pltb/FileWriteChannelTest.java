@@ -0,0 +1,127 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileWriteChannelTest {
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testManySmallAppendsCommitOnce() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var expected = new ByteArrayOutputStream();
+        var random = new Random(3);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 4 * 1024 * 1024)) {
+            fs.createFile("logs/app.log");
+            // past the inline size, as opening an inline file for writing moves it to blocks first
+            var header = ("header" + " ".repeat(300) + "\n").getBytes();
+            fs.appendToFile("logs/app.log", header);
+            expected.write(header);
+
+            var transactionsBefore = fs.getJournal().getNumCommittedTransactions();
+            try (var channel = fs.openForWrite("logs/app.log", WriteMode.APPEND)) {
+                for (int i = 0; i < 5000; i++) {
+                    var line = new byte[random.nextInt(100)];
+                    random.nextBytes(line);
+                    channel.write(ByteBuffer.wrap(line));
+                    expected.write(line);
+                }
+                // nothing is visible before the first commit
+                assertEquals(header.length, fs.readFile("logs/app.log").get().length);
+            }
+            assertEquals(1, fs.getJournal().getNumCommittedTransactions() - transactionsBefore);
+            assertArrayEquals(expected.toByteArray(), fs.readFile("logs/app.log").get());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertArrayEquals(expected.toByteArray(), fs.readFile("logs/app.log").get());
+        }
+    }
+
+    @Test
+    void testFlushAndStream() throws IOException {
+        try (var fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), 4 * 1024 * 1024)) {
+            var bytes = new byte[200_000];
+            new Random(5).nextBytes(bytes);
+
+            try (var out = fs.openOutputStream("new.bin", WriteMode.APPEND)) {
+                out.write(bytes, 0, 1000);
+                out.flush();
+                assertArrayEquals(Arrays.copyOf(bytes, 1000), fs.readFile("new.bin").get());
+                // large enough to bypass the buffer
+                out.write(bytes, 1000, bytes.length - 1000);
+            }
+            assertArrayEquals(bytes, fs.readFile("new.bin").get());
+        }
+    }
+
+    @Test
+    void testOverwriteAndTruncate() throws IOException {
+        try (var fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), 4 * 1024 * 1024)) {
+            var original = new byte[3000];
+            Arrays.fill(original, (byte) 'a');
+            fs.createFile("f.bin");
+            fs.appendToFile("f.bin", original);
+
+            var patch = new byte[4000];
+            Arrays.fill(patch, (byte) 'b');
+            try (var channel = fs.openForWrite("f.bin", WriteMode.OVERWRITE)) {
+                channel.write(ByteBuffer.wrap(patch, 0, 1000));
+                channel.flush();
+                var partial = fs.readFile("f.bin").get();
+                assertEquals(3000, partial.length);
+                assertEquals('b', partial[999]);
+                assertEquals('a', partial[1000]);
+                channel.write(ByteBuffer.wrap(patch, 1000, 3000));
+            }
+            assertArrayEquals(patch, fs.readFile("f.bin").get());
+
+            try (var channel = fs.openForWrite("f.bin", WriteMode.TRUNCATE)) {
+                channel.write(ByteBuffer.wrap("short".getBytes()));
+            }
+            assertEquals("short", new String(fs.readFile("f.bin").get()));
+        }
+    }
+
+    @Test
+    void testConcurrentChangeIsDetected() throws IOException {
+        try (var fs = FileSystemImpl.createNew(new File(tempDir, "container.fs"), 4 * 1024 * 1024)) {
+            var channel = fs.openForWrite("f.txt", WriteMode.APPEND);
+            channel.write(ByteBuffer.wrap("from channel".getBytes()));
+            fs.appendToFile("f.txt", "direct".getBytes());
+            assertThrows(IOException.class, channel::close);
+            assertEquals("direct", new String(fs.readFile("f.txt").get()));
+            assertFalse(channel.isOpen());
+        }
+    }
+
+    @Test
+    void testBlocksOfDeletedFileAreFreedOnClose() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        long freeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 4 * 1024 * 1024)) {
+            freeBlocks = fs.getMetrics().getNumFreeBlocks();
+            var channel = fs.openForWrite("f.bin", WriteMode.APPEND);
+            channel.write(ByteBuffer.wrap(new byte[1024 * 1024]));
+            assertEquals(1, fs.deleteFile("f.bin"));
+            assertThrows(IOException.class, channel::close);
+            assertEquals(freeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertEquals(freeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+}
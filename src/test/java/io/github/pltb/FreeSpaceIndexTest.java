@@ -0,0 +1,48 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class FreeSpaceIndexTest {
+
+    @Test
+    void testIndexIsBuiltFromFat() {
+        int[] fat = {0, -1, -1, 4, 0, -1, -1, -1, 0, -1};
+        var index = FreeSpaceIndex.fromFat(fat);
+
+        assertEquals(6, index.getNumFreeBlocks());
+        assertEquals(1, index.nextFreeFrom(0));
+        assertEquals(2, index.nextFreeFrom(2));
+        assertEquals(5, index.nextFreeFrom(3));
+        assertEquals(9, index.nextFreeFrom(8));
+        assertEquals(-1, index.nextFreeFrom(10));
+        assertEquals(5, index.findFreeRun(3));
+        assertEquals(9, index.findFreeRun(1));
+        assertEquals(-1, index.findFreeRun(4));
+        assertEquals(9, index.getTrailingFreeRunStart());
+    }
+
+    @Test
+    void testExtentsAreSplitAndMerged() {
+        var fat = FileAllocationTable.createEmpty(16);
+        var index = fat.getFreeSpaceIndex();
+
+        fat.set(4, FileAllocationTable.END_OF_FILE);
+        assertEquals(2, index.getNumFreeExtents());
+        assertEquals(11, index.getLargestFreeRunLength());
+        assertEquals(5, index.getLargestFreeRunStart());
+        assertEquals(5, fat.findFirstFreeBlockFromExclusive(3));
+
+        fat.set(4, FileAllocationTable.FREE);
+        assertEquals(1, index.getNumFreeExtents());
+        assertEquals(16, index.getNumFreeBlocks());
+        assertEquals(0, fat.getLastFreeBlockNum());
+
+        for (int i = 0; i < 16; i++) {
+            fat.set(i, FileAllocationTable.END_OF_FILE);
+        }
+        assertEquals(-1, fat.getLastFreeBlockNum());
+        assertThrows(RuntimeException.class, () -> fat.findFirstFreeBlockFromInclusive(0));
+    }
+}
@@ -0,0 +1,264 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+    final private static int REGION_OFFSET = 1024;
+    final private static int REGION_SIZE = 16 * 1024;
+    final private static int TARGET_OFFSET = 64 * 1024;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testCommittedTransactionIsReplayed() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var transaction = new JournalTransaction();
+            transaction.addWrite(TARGET_OFFSET, "committed".getBytes());
+            journal.commit(transaction);
+
+            // the in-place write never made it to the disk
+            device.storeBlock(TARGET_OFFSET, "xxxxxxxxx".getBytes());
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            Journal.open(device, REGION_OFFSET, REGION_SIZE);
+            assertEquals("committed", new String(device.readBlock(TARGET_OFFSET, 9)));
+        }
+    }
+
+    @Test
+    void testTornRecordIsNotReplayed() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var transaction = new JournalTransaction();
+            transaction.addWrite(TARGET_OFFSET, "committed".getBytes());
+            journal.commit(transaction);
+
+            device.storeBlock(TARGET_OFFSET, "xxxxxxxxx".getBytes());
+            // damage the payload of the record
+            var recordPayloadOffset = REGION_OFFSET + Journal.HEADER_SIZE_BYTES + 24 + 12;
+            device.storeBlock(recordPayloadOffset, "C".getBytes());
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            Journal.open(device, REGION_OFFSET, REGION_SIZE);
+            assertEquals("xxxxxxxxx", new String(device.readBlock(TARGET_OFFSET, 9)));
+        }
+    }
+
+    @Test
+    void testRegionIsReusedWhenFull() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            for (int i = 0; i < 100; i++) {
+                var transaction = new JournalTransaction();
+                transaction.addWrite(TARGET_OFFSET + i * 1024L, new byte[1024]);
+                transaction.addWrite(TARGET_OFFSET + i * 1024L, ("block " + i).getBytes());
+                journal.commit(transaction);
+            }
+            assertEquals(100, journal.getNumCommittedTransactions());
+            journal.close();
+
+            for (int i = 0; i < 100; i++) {
+                var expected = "block " + i;
+                assertEquals(expected, new String(device.readBlock(TARGET_OFFSET + i * 1024, expected.length())));
+            }
+        }
+    }
+
+    @Test
+    void testOversizedTransactionIsNotUndoneByReplay() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var transaction = new JournalTransaction();
+            transaction.addWrite(TARGET_OFFSET, "older".getBytes());
+            journal.commit(transaction);
+
+            var oversized = new JournalTransaction();
+            oversized.addWrite(TARGET_OFFSET, "newer".getBytes());
+            oversized.addWrite(TARGET_OFFSET + 1024, new byte[REGION_SIZE]);
+            journal.commit(oversized);
+            // crash without closing the journal
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            Journal.open(device, REGION_OFFSET, REGION_SIZE);
+            assertEquals("newer", new String(device.readBlock(TARGET_OFFSET, 5)));
+        }
+    }
+
+    @Test
+    void testSequenceWritesAreReplayed() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var numEntries = 20_000;
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var transaction = new JournalTransaction();
+            // far more entries than fit into the region as plain bytes
+            transaction.addSequenceWrite(TARGET_OFFSET, 4, 7, 1, numEntries);
+            transaction.addSequenceWrite(TARGET_OFFSET + 4L * numEntries, 3, -1, 0, 100);
+            journal.commit(transaction);
+
+            device.storeBlock(TARGET_OFFSET, new byte[4 * numEntries + 300]);
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            Journal.open(device, REGION_OFFSET, REGION_SIZE);
+            var entries = ByteBuffer.wrap(device.readBlock(TARGET_OFFSET, 4 * numEntries + 300));
+            for (int i = 0; i < numEntries; i++) {
+                assertEquals(7 + i, entries.getInt());
+            }
+            while (entries.hasRemaining()) {
+                assertEquals((byte) 0xFF, entries.get());
+            }
+        }
+    }
+
+    @Test
+    void testActionsOnReplayableRangesWaitForCheckpoint() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var checkpointed = new ArrayList<String>();
+            var transaction = new JournalTransaction();
+            transaction.addWrite(TARGET_OFFSET, new byte[100]);
+            transaction.addOnAppliedAction(() -> {
+                assertTrue(journal.isReplayable(TARGET_OFFSET + 99, 1024));
+                assertFalse(journal.isReplayable(TARGET_OFFSET + 100, 1024));
+                journal.addOnCheckpointedAction(() -> checkpointed.add("freed"));
+            });
+            journal.commit(transaction);
+            assertTrue(checkpointed.isEmpty());
+
+            journal.close();
+            assertEquals(List.of("freed"), checkpointed);
+        }
+    }
+
+    @Test
+    void testFreedDirectoryBlockIsNotReplayedOverFileData() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        File crashedFile = new File(tempDir, "crashed.fs");
+        var data = new byte[20 * 1024];
+        new Random(1).nextBytes(data);
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            fs.createFile("d/f");
+            fs.appendToFile("d/f", new byte[5000]);
+            fs.deleteFile("d/f");
+            fs.deleteFile("d");
+            // the first free blocks are those of the directory, written through the journal just before
+            fs.createFile("g");
+            fs.appendToFile("g", data);
+            // the state a crash would leave behind
+            Files.copy(containerFile.toPath(), crashedFile.toPath());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(crashedFile)) {
+            assertArrayEquals(data, fs.readFile("g").get());
+        }
+    }
+
+    @Test
+    void testFailedCommitFailsTheLaterOnesUntilReopened() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var failures = new int[]{1};
+
+        try (var device = new MeteredBlockDevice(BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            @Override
+            public void storeBlock(long blockOffset, ByteBuffer src) throws IOException {
+                if (blockOffset == TARGET_OFFSET && failures[0]-- > 0) {
+                    throw new IOException("write failed");
+                }
+                super.storeBlock(blockOffset, src);
+            }
+        }) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var first = new JournalTransaction();
+            first.addWrite(TARGET_OFFSET, "first".getBytes());
+            // the record is durable, its write in place fails
+            assertThrows(IOException.class, () -> journal.commit(first));
+
+            // the device works again, but the first write is still missing in place, so nothing is committed after it
+            var second = new JournalTransaction();
+            second.addWrite(TARGET_OFFSET + 8, "second".getBytes());
+            assertThrows(IOException.class, () -> journal.commit(second));
+            assertThrows(IOException.class, journal::close);
+        }
+
+        try (var device = BlockDeviceImpl.attachToFile(containerFile)) {
+            Journal.open(device, REGION_OFFSET, REGION_SIZE);
+            assertEquals("first", new String(device.readBlock(TARGET_OFFSET, 5)));
+            assertArrayEquals(new byte[6], device.readBlock(TARGET_OFFSET + 8, 6));
+        }
+    }
+
+    @Test
+    void testConcurrentCommitsAreGrouped() throws Exception {
+        File containerFile = new File(tempDir, "container.fs");
+        var numThreads = 8;
+        var transactionsPerThread = 50;
+
+        try (var device = BlockDeviceImpl.createNew(containerFile, 1024 * 1024)) {
+            var journal = Journal.format(device, REGION_OFFSET, REGION_SIZE);
+            var forcesBefore = journal.getNumForces();
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = new ArrayList<>();
+            for (int t = 0; t < numThreads; t++) {
+                var threadNum = t;
+                var thread = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < transactionsPerThread; i++) {
+                            var transaction = new JournalTransaction();
+                            var value = ByteBuffer.allocate(4).putInt(i).array();
+                            transaction.addWrite(TARGET_OFFSET + threadNum * 4L, value);
+                            journal.commit(transaction);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(failures.isEmpty());
+            assertEquals(numThreads * transactionsPerThread, journal.getNumCommittedTransactions());
+            // at most one force per record batch plus one per checkpoint
+            var maxForces = numThreads * transactionsPerThread * 2;
+            assertTrue(journal.getNumForces() - forcesBefore <= maxForces);
+            for (int t = 0; t < numThreads; t++) {
+                var value = ByteBuffer.wrap(device.readBlock(TARGET_OFFSET + t * 4, 4)).getInt();
+                assertEquals(transactionsPerThread - 1, value);
+            }
+        }
+    }
+}
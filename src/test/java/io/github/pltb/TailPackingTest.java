@@ -0,0 +1,205 @@
+package io.github.pltb;
+
+import static io.github.pltb.TestFiles.concat;
+import static io.github.pltb.TestFiles.randomBytes;
+import static io.github.pltb.TestFiles.writeFile;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TailPackingTest {
+
+    final private static int NUM_FILES = 100;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testTailsShareBlocks() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(1);
+        var contents = new byte[NUM_FILES][];
+        long initialFreeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var blockSize = fs.getBlockSizeBytes();
+            var metrics = fs.getMetrics();
+            initialFreeBlocks = metrics.getNumFreeBlocks();
+            for (int i = 0; i < NUM_FILES; i++) {
+                contents[i] = randomBytes(random, blockSize + 100 + i);
+                writeFile(fs, "files/" + i, contents[i]);
+            }
+            // a block for each chain, and the tails packed into few blocks
+            var usedBlocks = initialFreeBlocks - metrics.getNumFreeBlocks();
+            assertTrue(usedBlocks < NUM_FILES + 25, "used " + usedBlocks + " blocks");
+            assertFiles(fs, contents);
+
+            // ranges across the end of the chain
+            assertArrayEquals(Arrays.copyOfRange(contents[7], blockSize - 10, blockSize + 50),
+                    fs.readFileRange("files/7", blockSize - 10, 60).get());
+            assertArrayEquals(contents[8], fs.readFileConcurrently("files/8", Runnable::run).get());
+            try (var channel = fs.openForRead("files/9")) {
+                var buffer = ByteBuffer.allocate(contents[9].length);
+                while (buffer.hasRemaining()) {
+                    assertTrue(channel.read(buffer) > 0);
+                }
+                assertArrayEquals(contents[9], buffer.array());
+            }
+            var out = new ByteArrayOutputStream();
+            assertEquals(contents[10].length, fs.exportFile("files/10", Channels.newChannel(out)));
+            assertArrayEquals(contents[10], out.toByteArray());
+
+            // a write across the end of the chain, and appends that grow the tail, move it to the chain and pack it again
+            var change = randomBytes(random, 30);
+            assertEquals(1, fs.writeToFileFromOffset("files/11", change, blockSize - 15));
+            System.arraycopy(change, 0, contents[11], blockSize - 15, change.length);
+            for (int i = 12; i < 20; i++) {
+                var appended = randomBytes(random, (i - 11) * 300);
+                assertEquals(1, fs.appendToFile("files/" + i, appended));
+                contents[i] = concat(contents[i], appended);
+            }
+            try (var channel = fs.openForWrite("files/20", WriteMode.APPEND)) {
+                channel.write(ByteBuffer.wrap("through a channel".getBytes()));
+            }
+            contents[20] = concat(contents[20], "through a channel".getBytes());
+            assertEquals(1, fs.cloneFile("files/21", "clone"));
+            assertEquals(1, fs.appendToFile("files/21", "changed".getBytes()));
+            assertArrayEquals(contents[21], fs.readFile("clone").get());
+            contents[21] = concat(contents[21], "changed".getBytes());
+            assertFiles(fs, contents);
+
+            for (int i = 0; i < NUM_FILES; i += 2) {
+                assertEquals(1, fs.deleteFile("files/" + i));
+            }
+            assertEquals(1, fs.moveFile("files/1", "files/3"));
+            contents[3] = contents[1];
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            for (int i = 3; i < NUM_FILES; i += 2) {
+                assertArrayEquals(contents[i], fs.readFile("files/" + i).get());
+            }
+            assertArrayEquals(Arrays.copyOf(contents[21], contents[21].length - 7), fs.readFile("clone").get());
+            // the tail blocks are loaded from their headers when their tails are freed
+            for (int i = 3; i < NUM_FILES; i += 2) {
+                assertEquals(1, fs.deleteFile("files/" + i));
+            }
+            assertEquals(1, fs.deleteFile("clone"));
+            assertEquals(1, fs.deleteFile("files"));
+        }
+
+        // every tail block is freed with its last tail
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertEquals(initialFreeBlocks, fs.getMetrics().getNumFreeBlocks());
+        }
+    }
+
+    @Test
+    void testCompactionMovesTailBlocks() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        var random = new Random(2);
+        var contents = new byte[NUM_FILES][];
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var blockSize = fs.getBlockSizeBytes();
+            writeFile(fs, "padding.bin", new byte[200 * blockSize]);
+            for (int i = 0; i < NUM_FILES; i++) {
+                contents[i] = randomBytes(random, 2 * blockSize + 50 + i);
+                writeFile(fs, "files/" + i, contents[i]);
+            }
+            var sizeBefore = containerFile.length();
+            assertEquals(1, fs.deleteFile("padding.bin"));
+            fs.compact();
+            // the tail blocks come last, so they have been moved as well
+            assertTrue(sizeBefore - containerFile.length() >= 150L * blockSize);
+            assertFiles(fs, contents);
+            // the moved blocks take new tails
+            assertEquals(1, fs.appendToFile("files/0", "more".getBytes()));
+            contents[0] = concat(contents[0], "more".getBytes());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(containerFile)) {
+            assertFiles(fs, contents);
+        }
+    }
+
+    @Test
+    void testPackedTailsSurviveCrash() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        File crashedFile = new File(tempDir, "crashed.fs");
+        var random = new Random(3);
+        var contents = new byte[NUM_FILES][];
+        long freeBlocks;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var blockSize = fs.getBlockSizeBytes();
+            for (int i = 0; i < NUM_FILES; i++) {
+                contents[i] = randomBytes(random, blockSize + 300);
+                writeFile(fs, "files/" + i, contents[i]);
+            }
+            for (int i = 0; i < NUM_FILES; i += 3) {
+                assertEquals(1, fs.deleteFile("files/" + i));
+                contents[i] = null;
+            }
+            for (int i = 1; i < NUM_FILES; i += 3) {
+                var appended = randomBytes(random, 100);
+                assertEquals(1, fs.appendToFile("files/" + i, appended));
+                contents[i] = concat(contents[i], appended);
+            }
+            freeBlocks = fs.getMetrics().getNumFreeBlocks();
+            // the state a crash would leave behind
+            Files.copy(containerFile.toPath(), crashedFile.toPath());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(crashedFile)) {
+            assertEquals(freeBlocks, fs.getMetrics().getNumFreeBlocks());
+            for (int i = 0; i < NUM_FILES; i++) {
+                if (contents[i] == null) {
+                    assertTrue(fs.readFile("files/" + i).isEmpty());
+                } else {
+                    assertArrayEquals(contents[i], fs.readFile("files/" + i).get());
+                    assertEquals(1, fs.deleteFile("files/" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testFreedTailBlockIsNotReplayedOverFileData() throws IOException {
+        File containerFile = new File(tempDir, "container.fs");
+        File crashedFile = new File(tempDir, "crashed.fs");
+        byte[] data;
+
+        try (var fs = FileSystemImpl.createNew(containerFile, 16 * 1024 * 1024)) {
+            var blockSize = fs.getBlockSizeBytes();
+            writeFile(fs, "a.bin", randomBytes(new Random(4), blockSize + 100));
+            writeFile(fs, "b.bin", randomBytes(new Random(5), blockSize + 200));
+            // the tail block goes with its last tail, its header was written through the journal just before
+            assertEquals(1, fs.deleteFile("a.bin"));
+            assertEquals(1, fs.deleteFile("b.bin"));
+            data = randomBytes(new Random(6), 20 * blockSize);
+            writeFile(fs, "c.bin", data);
+            // the state a crash would leave behind
+            Files.copy(containerFile.toPath(), crashedFile.toPath());
+        }
+
+        try (var fs = FileSystemImpl.loadFromContainer(crashedFile)) {
+            assertArrayEquals(data, fs.readFile("c.bin").get());
+        }
+    }
+
+    private static void assertFiles(FileSystemImpl fs, byte[][] contents) throws IOException {
+        for (int i = 0; i < contents.length; i++) {
+            assertArrayEquals(contents[i], fs.readFile("files/" + i).get());
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.pltb;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+// the file contents and writes the tests share
+final class TestFiles {
+
+    private TestFiles() {
+    }
+
+    static void writeFile(FileSystemImpl fs, String path, byte[] bytes) throws IOException {
+        assertEquals(1, fs.createFile(path));
+        assertEquals(1, fs.appendToFile(path, bytes));
+    }
+
+    static byte[] concat(byte[] first, byte[] second) {
+        var result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    static byte[] randomBytes(Random random, int size) {
+        var bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}